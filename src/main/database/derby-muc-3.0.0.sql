@@ -56,6 +56,7 @@ create index tig_muc_room_affiliations_room_id on tig_muc_room_affiliations ( ro
 
 -- QUERY START:
 create table tig_muc_room_history (
+	id bigint generated by default as identity,
 	room_jid varchar(2049) not null,
 	room_jid_sha1 varchar(50) not null,
     event_type int,
@@ -76,6 +77,14 @@ create index tig_muc_room_history_room_jid on tig_muc_room_history ( room_jid_sh
 create index tig_muc_room_history_room_jid_ts on tig_muc_room_history ( room_jid_sha1, ts );
 -- QUERY END:
 
+-- QUERY START:
+alter table tig_muc_room_history add column id bigint generated by default as identity;
+-- QUERY END:
+
+-- QUERY START:
+create index tig_muc_room_history_room_jid_ts_id on tig_muc_room_history ( room_jid_sha1, ts, id );
+-- QUERY END:
+
 -- ---------------------
 -- Stored procedures
 -- ---------------------
@@ -203,6 +212,15 @@ create procedure Tig_MUC_MAM_GetMessagesCount(roomJid varchar(2049), "since" tim
     EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucMamGetMessagesCount';
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesKeyset(roomJid varchar(2049), "since" timestamp, "to" timestamp, "nickname" varchar(1024), "after_ts" timestamp, "after_id" bigint, "before_ts" timestamp, "before_id" bigint, "from_end" int, "limit" int)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucMamGetMessagesKeyset';
+-- QUERY END:
+
 -- QUERY START:
 call TigSetComponentVersion('muc', '3.0.0');
 -- QUERY END:
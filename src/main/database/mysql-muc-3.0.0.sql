@@ -55,6 +55,7 @@ ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
 
 -- QUERY START:
 create table if not exists tig_muc_room_history (
+	id bigint unsigned not null auto_increment,
 	room_jid varchar(2049) not null,
 	room_jid_sha1 char(40) not null,
     event_type int,
@@ -65,6 +66,7 @@ create table if not exists tig_muc_room_history (
 	public_event boolean,
 	msg text character set utf8mb4 collate utf8mb4_bin,
 
+	primary key ( id ),
 	index using hash ( room_jid_sha1 ),
 	index using hash ( room_jid_sha1, ts ),
 	index using hash ( room_jid(255) )
@@ -132,6 +134,10 @@ drop procedure if exists Tig_MUC_MAM_GetMessagePosition;
 drop procedure if exists Tig_MUC_MAM_GetMessagesCount;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists Tig_MUC_MAM_GetMessagesKeyset;
+-- QUERY END:
+
 -- QUERY START:
 drop procedure if exists TigExecuteIf;
 -- QUERY END:
@@ -296,6 +302,44 @@ begin
 end //
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesKeyset(_roomJid varchar(2049), _since timestamp(6), _to timestamp(6), _nickname varchar(1024), _after_ts timestamp(6), _after_id bigint, _before_ts timestamp(6), _before_id bigint, _from_end int, _limit int)
+begin
+    -- bounds of ts are never null, so messages are read by a range scan of (room_jid_sha1, ts) index (which holds id)
+    declare _lower timestamp(6) default coalesce(_since, timestamp('1970-01-02'));
+    declare _upper timestamp(6) default coalesce(_to, timestamp('2038-01-18'));
+
+    if _after_ts is not null and _after_ts > _lower then
+        set _lower = _after_ts;
+    end if;
+    if _before_ts is not null and _before_ts < _upper then
+        set _upper = _before_ts;
+    end if;
+
+    if _from_end = 1 then
+        select t.id, t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg from (
+            select h.id, h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg
+                from tig_muc_room_history h
+                where h.room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+                    and h.ts >= _lower and h.ts <= _upper
+                    and (_after_ts is null or h.ts > _after_ts or (h.ts = _after_ts and h.id > _after_id))
+                    and (_before_ts is null or h.ts < _before_ts or (h.ts = _before_ts and h.id < _before_id))
+                    and (_nickname is null or h.sender_nickname = _nickname)
+                order by h.ts desc, h.id desc limit _limit
+        ) AS t order by t.ts asc, t.id asc;
+    else
+        select h.id, h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg
+            from tig_muc_room_history h
+            where h.room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+                and h.ts >= _lower and h.ts <= _upper
+                and (_after_ts is null or h.ts > _after_ts or (h.ts = _after_ts and h.id > _after_id))
+                and (_before_ts is null or h.ts < _before_ts or (h.ts = _before_ts and h.id < _before_id))
+                and (_nickname is null or h.sender_nickname = _nickname)
+            order by h.ts asc, h.id asc limit _limit;
+    end if;
+end //
+-- QUERY END:
+
 -- QUERY START:
 create procedure TigExecuteIf(cond int, query text)
 begin
@@ -361,6 +405,12 @@ call TigExecuteIf((select count(1) from information_schema.COLUMNS where TABLE_S
 );
 -- QUERY END:
 
+-- QUERY START:
+call TigExecuteIf((select count(1) = 0 from information_schema.COLUMNS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_muc_room_history' AND COLUMN_NAME = 'id'),
+	'alter table tig_muc_room_history add `id` bigint unsigned not null auto_increment primary key first'
+);
+-- QUERY END:
+
 -- ---------------------
 -- Converting history to new format
 -- ---------------------
@@ -77,6 +77,7 @@ end$$;
 
 -- QUERY START:
 create table if not exists tig_muc_room_history (
+	id bigserial,
 	room_jid varchar(2049) not null,
     event_type int,
     ts timestamp with time zone not null,
@@ -111,6 +112,24 @@ end if;
 end$$;
 -- QUERY END:
 
+-- QUERY START:
+do $$
+begin
+if not exists (select 1 from information_schema.columns where table_name = 'tig_muc_room_history' and column_name = 'id') then
+    alter table tig_muc_room_history add column id bigserial;
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_muc_room_history_room_jid_ts_id')) is null) then
+    create index tig_muc_room_history_room_jid_ts_id on tig_muc_room_history ( lower(room_jid), ts, id );
+end if;
+end$$;
+-- QUERY END:
+
 -- ---------------------
 -- Stored procedures
 -- ---------------------
@@ -350,6 +369,46 @@ end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
 
+-- QUERY START:
+drop function if exists Tig_MUC_MAM_GetMessagesKeyset(varchar, timestamp with time zone, timestamp with time zone, varchar, timestamp with time zone, timestamp with time zone, int, int);
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_MAM_GetMessagesKeyset(_roomJid varchar(2049), _since timestamp with time zone, _to timestamp with time zone, _nickname varchar(1024), _after_ts timestamp with time zone, _after_id bigint, _before_ts timestamp with time zone, _before_id bigint, _from_end int, _limit int) returns table(
+    "id" bigint, "sender_nickname" varchar(1024), "ts" timestamp with time zone, "sender_jid" varchar(3074), "body" text, "msg" text
+) as $$
+declare
+    -- bounds of ts are never null, so messages are read by a range scan of (room_jid, ts, id) index
+    _lower timestamp with time zone := coalesce(greatest(_since, _after_ts), '-infinity');
+    _upper timestamp with time zone := coalesce(least(_to, _before_ts), 'infinity');
+begin
+    if _from_end = 1 then
+        return query select t.id, t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg from (
+            select h.id, h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg
+                from tig_muc_room_history h
+                where lower(h.room_jid) = lower(_roomJid)
+                    and h.ts >= _lower and h.ts <= _upper
+                    and (_after_ts is null or h.ts > _after_ts or (h.ts = _after_ts and h.id > _after_id))
+                    and (_before_ts is null or h.ts < _before_ts or (h.ts = _before_ts and h.id < _before_id))
+                    and (_nickname is null or h.sender_nickname = _nickname)
+                order by h.ts desc, h.id desc
+                limit _limit
+        ) AS t order by t.ts asc, t.id asc;
+    else
+        return query select h.id, h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg
+            from tig_muc_room_history h
+            where lower(h.room_jid) = lower(_roomJid)
+                and h.ts >= _lower and h.ts <= _upper
+                and (_after_ts is null or h.ts > _after_ts or (h.ts = _after_ts and h.id > _after_id))
+                and (_before_ts is null or h.ts < _before_ts or (h.ts = _before_ts and h.id < _before_id))
+                and (_nickname is null or h.sender_nickname = _nickname)
+            order by h.ts asc, h.id asc
+            limit _limit;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
 -- ---------------------
 -- Converting history to new format
 -- ---------------------
@@ -74,6 +74,7 @@ GO
 -- QUERY START:
 IF NOT EXISTS (SELECT * FROM sysobjects WHERE name='tig_muc_room_history' AND xtype='U')
     CREATE TABLE tig_muc_room_history (
+	    [id] [bigint] IDENTITY(1,1) NOT NULL,
 	    [room_jid] [nvarchar](2049) NOT NULL,
 	    [room_jid_sha1] [varbinary](40) NOT NULL,
         [event_type] [int],
@@ -99,6 +100,18 @@ IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_muc
 -- QUERY END:
 GO
 
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.columns WHERE object_id = object_id('dbo.tig_muc_room_history') AND NAME = 'id')
+	ALTER TABLE [dbo].[tig_muc_room_history] ADD [id] [bigint] IDENTITY(1,1) NOT NULL;
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_muc_room_history') AND NAME ='IX_tig_muc_room_history_room_jid_sha1_ts_id')
+	CREATE INDEX IX_tig_muc_room_history_room_jid_sha1_ts_id ON [dbo].[tig_muc_room_history](room_jid_sha1, ts, id);
+-- QUERY END:
+GO
+
 -- ---------------------
 -- Stored procedures
 -- ---------------------
@@ -445,6 +458,60 @@ END
 -- QUERY END:
 GO
 
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_MAM_GetMessagesKeyset')
+	DROP PROCEDURE Tig_MUC_MAM_GetMessagesKeyset
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_MAM_GetMessagesKeyset
+    @_roomJid [nvarchar](2049),
+    @_since [datetime],
+    @_to [datetime],
+    @_nickname [nvarchar](1024),
+    @_after_ts [datetime],
+    @_after_id [bigint],
+    @_before_ts [datetime],
+    @_before_id [bigint],
+    @_from_end [int],
+    @_limit [int]
+AS
+BEGIN
+    -- bounds of ts are never null, so messages are read by a seek on (room_jid_sha1, ts, id) index
+    DECLARE @_lower [datetime] = COALESCE( @_since, '1753-01-01' );
+    DECLARE @_upper [datetime] = COALESCE( @_to, '9999-12-31' );
+    IF @_after_ts IS NOT NULL AND @_after_ts > @_lower
+        SET @_lower = @_after_ts;
+    IF @_before_ts IS NOT NULL AND @_before_ts < @_upper
+        SET @_upper = @_before_ts;
+
+    IF @_from_end = 1
+        SELECT id, sender_nickname, ts, sender_jid, body, msg
+        FROM (
+            SELECT TOP (@_limit) id, sender_nickname, ts, sender_jid, body, msg
+            FROM dbo.tig_muc_room_history
+            WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+                AND ts >= @_lower AND ts <= @_upper
+                AND ( @_after_ts IS NULL OR ts > @_after_ts OR ( ts = @_after_ts AND id > @_after_id ) )
+                AND ( @_before_ts IS NULL OR ts < @_before_ts OR ( ts = @_before_ts AND id < @_before_id ) )
+                AND ( @_nickname IS NULL OR sender_nickname = @_nickname )
+            ORDER BY ts DESC, id DESC
+        ) AS t
+        ORDER BY ts ASC, id ASC;
+    ELSE
+        SELECT TOP (@_limit) id, sender_nickname, ts, sender_jid, body, msg
+        FROM dbo.tig_muc_room_history
+        WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+            AND ts >= @_lower AND ts <= @_upper
+            AND ( @_after_ts IS NULL OR ts > @_after_ts OR ( ts = @_after_ts AND id > @_after_id ) )
+            AND ( @_before_ts IS NULL OR ts < @_before_ts OR ( ts = @_before_ts AND id < @_before_id ) )
+            AND ( @_nickname IS NULL OR sender_nickname = @_nickname )
+        ORDER BY ts ASC, id ASC;
+END
+-- QUERY END:
+GO
+
 -- ---------------------
 -- Converting history to new format
 -- ---------------------
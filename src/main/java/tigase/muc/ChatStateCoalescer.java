@@ -0,0 +1,199 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xmpp.jid.JID;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces chat state notifications sent by occupants. Notification is delayed for configured time window and if the
+ * same occupant sends another notification before it is delivered, only the latest one is broadcasted. Pending
+ * notification is dropped if occupant sends a regular message or leaves the room. In rooms with number of occupants above configured
+ * limit chat states are not delivered at all.
+ */
+@Bean(name = "chatStateCoalescer", parent = MUCComponent.class, active = true)
+public class ChatStateCoalescer
+		implements MUCStatisticsProvider, UnregisterAware {
+
+	private static final Logger log = Logger.getLogger(ChatStateCoalescer.class.getName());
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong departed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Map<JID, Pending> pending = new ConcurrentHashMap<>();
+	private final AtomicLong received = new AtomicLong();
+	@Inject
+	private MUCConfig config;
+	private ScheduledExecutorService scheduler;
+
+	public ChatStateCoalescer() {
+	}
+
+	public ChatStateCoalescer(MUCConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * @param config configuration of component.
+	 * @param scheduler used to deliver coalesced notifications.
+	 */
+	public ChatStateCoalescer(MUCConfig config, ScheduledExecutorService scheduler) {
+		this.config = config;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Drops pending chat state notification of occupant. Should be called when occupant sends a regular message, as
+	 * it supersedes any chat state sent before.
+	 *
+	 * @param senderRoomJID JID of occupant in room.
+	 */
+	public void cancel(JID senderRoomJID) {
+		if (!pending.isEmpty() && pending.remove(senderRoomJID) != null) {
+			coalesced.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Chat states received", received.get(), Level.FINE);
+		list.add(compName, "Chat states delivered", delivered.get(), Level.FINE);
+		list.add(compName, "Chat states coalesced", coalesced.get(), Level.FINE);
+		list.add(compName, "Chat states dropped in large rooms", dropped.get(), Level.FINE);
+		list.add(compName, "Chat states dropped after occupant left", departed.get(), Level.FINE);
+	}
+
+	/**
+	 * Accepts chat state notification for delivery.
+	 *
+	 * @param room room to which notification was sent.
+	 * @param senderRoomJID JID of occupant in room.
+	 * @param msg message containing only chat state.
+	 * @param sender used to broadcast notification.
+	 */
+	public void submit(final Room room, final JID senderRoomJID, final Packet msg, final ChatStateSender sender)
+			throws TigaseStringprepException {
+		received.incrementAndGet();
+
+		final int maxOccupants = config.getChatStatesMaxOccupants();
+		if (maxOccupants > 0 && room.getOccupantsCount() > maxOccupants) {
+			dropped.incrementAndGet();
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Dropping chat state from " + senderRoomJID + ", room has more than " + maxOccupants +
+								   " occupants");
+			}
+			return;
+		}
+
+		final long window = config.getChatStatesCoalescingWindow();
+		if (window <= 0) {
+			delivered.incrementAndGet();
+			sender.send(room, senderRoomJID, msg);
+			return;
+		}
+
+		pending.compute(senderRoomJID, (jid, existing) -> {
+			if (existing != null) {
+				coalesced.incrementAndGet();
+				existing.packet = msg;
+				return existing;
+			}
+			final Pending p = new Pending(room, msg, sender);
+			getScheduler().schedule(() -> flush(jid, p), window, TimeUnit.MILLISECONDS);
+			return p;
+		});
+	}
+
+	private void flush(final JID senderRoomJID, final Pending p) {
+		if (!pending.remove(senderRoomJID, p)) {
+			return;
+		}
+		// occupant might have left the room (or changed nickname) while notification was waiting
+		final JID occupantJID = p.packet.getStanzaFrom();
+		final String nickname = occupantJID == null ? null : p.room.getOccupantsNickname(occupantJID);
+		if (nickname == null || !nickname.equals(senderRoomJID.getResource())) {
+			departed.incrementAndGet();
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Dropping chat state from " + senderRoomJID + ", occupant is not in room");
+			}
+			return;
+		}
+		try {
+			delivered.incrementAndGet();
+			p.sender.send(p.room, senderRoomJID, p.packet);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Could not deliver chat state from " + senderRoomJID, ex);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "muc-chat-states");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	public interface ChatStateSender {
+
+		void send(Room room, JID senderRoomJID, Packet msg) throws TigaseStringprepException;
+
+	}
+
+	private static class Pending {
+
+		private final Room room;
+		private final ChatStateSender sender;
+		private volatile Packet packet;
+
+		Pending(Room room, Packet packet, ChatStateSender sender) {
+			this.room = room;
+			this.packet = packet;
+			this.sender = sender;
+		}
+	}
+
+}
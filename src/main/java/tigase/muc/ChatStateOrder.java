@@ -0,0 +1,151 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.server.Packet;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps chat states of an occupant ordered after its groupchat messages when chat states are processed with lower
+ * priority. Message and chat states of the same sender are placed in the same queue, so message always leaves it
+ * before chat states queued after it. Chat states queued before a message may be taken after it, and as message
+ * supersedes them, they are dropped instead of being processed.
+ */
+class ChatStateOrder {
+
+	private final ConcurrentHashMap<Key, Counts> senders = new ConcurrentHashMap<Key, Counts>();
+
+	/**
+	 * Called when incoming stanza is placed in queue.
+	 */
+	void queued(final Packet packet, final TrafficClass trafficClass) {
+		if (trafficClass == TrafficClass.chatState) {
+			final Key key = key(packet);
+			if (key != null) {
+				senders.compute(key, (k, counts) -> {
+					final Counts result = counts == null ? new Counts() : counts;
+					result.queued++;
+					return result;
+				});
+			}
+		} else if (trafficClass == TrafficClass.groupchat && !senders.isEmpty()) {
+			final Key key = key(packet);
+			if (key != null) {
+				senders.computeIfPresent(key, (k, counts) -> {
+					counts.stale += counts.queued;
+					counts.queued = 0;
+					return counts;
+				});
+			}
+		}
+	}
+
+	/**
+	 * Called when incoming stanza was not accepted by queue.
+	 */
+	void rejected(final Packet packet, final TrafficClass trafficClass) {
+		if (trafficClass == TrafficClass.chatState) {
+			final Key key = key(packet);
+			if (key != null) {
+				// rejected chat state is the latest one, unless a message was queued in the meantime
+				senders.computeIfPresent(key, (k, counts) -> {
+					if (counts.queued > 0) {
+						counts.queued--;
+					} else if (counts.stale > 0) {
+						counts.stale--;
+					}
+					return (counts.queued == 0 && counts.stale == 0) ? null : counts;
+				});
+			}
+		}
+	}
+
+	/**
+	 * Called when stanza is taken from queue for processing.
+	 *
+	 * @return <code>false</code> if stanza is a chat state queued before a groupchat message of the same sender and
+	 * should be dropped.
+	 */
+	boolean process(final Packet packet) {
+		if (senders.isEmpty() || TrafficClass.classify(packet) != TrafficClass.chatState) {
+			return true;
+		}
+		final Key key = key(packet);
+		if (key == null) {
+			return true;
+		}
+		final boolean[] result = new boolean[]{true};
+		senders.computeIfPresent(key, (k, counts) -> {
+			if (counts.stale > 0) {
+				counts.stale--;
+				result[0] = false;
+			} else if (counts.queued > 0) {
+				counts.queued--;
+			}
+			return (counts.queued == 0 && counts.stale == 0) ? null : counts;
+		});
+		return result[0];
+	}
+
+	private static Key key(final Packet packet) {
+		final JID from = packet.getStanzaFrom();
+		final JID to = packet.getStanzaTo();
+		if (from == null || to == null) {
+			return null;
+		}
+		return new Key(from, to.getBareJID());
+	}
+
+	private static class Counts {
+
+		private int queued;
+		private int stale;
+	}
+
+	private static class Key {
+
+		private final JID from;
+		private final BareJID room;
+
+		Key(JID from, BareJID room) {
+			this.from = from;
+			this.room = room;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key) o;
+			return from.equals(key.from) && room.equals(key.room);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * from.hashCode() + room.hashCode();
+		}
+	}
+
+}
@@ -20,6 +20,7 @@ package tigase.muc;
 import tigase.component.ScheduledTask;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.muc.modules.PresenceModule;
 import tigase.muc.repository.IMucRepository;
 import tigase.server.Packet;
@@ -32,7 +33,9 @@ import tigase.xmpp.jid.JID;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,7 +44,8 @@ import java.util.logging.Logger;
  */
 @Bean(name = "ghostbuster", parent = MUCComponent.class, active = true)
 public class Ghostbuster2
-		extends ScheduledTask {
+		extends ScheduledTask
+		implements UnregisterAware {
 
 	private static final Set<String> intReasons = new HashSet<String>() {
 		private static final long serialVersionUID = 1L;
@@ -60,7 +64,10 @@ public class Ghostbuster2
 	public static final Set<String> R = Collections.unmodifiableSet(intReasons);
 	private static long idCounter;
 	protected final Map<JID, MonitoredObject> monitoredObjects = new ConcurrentHashMap<JID, MonitoredObject>();
+	private final Map<JID, Collection<BareJID>> pendingRemovals = new ConcurrentHashMap<JID, Collection<BareJID>>();
 	private final ReceiverTimeoutHandler pingHandler;
+	private final AtomicBoolean removalScheduled = new AtomicBoolean(false);
+	private ScheduledThreadPoolExecutor removalExecutor;
 	protected Logger log = Logger.getLogger(this.getClass().getName());
 	@Inject
 	private MUCConfig config;
@@ -128,6 +135,23 @@ public class Ghostbuster2
 
 	}
 
+	/**
+	 * Removes occupants waiting for batched removal and stops thread used for that.
+	 */
+	@Override
+	public void beforeUnregister() {
+		super.beforeUnregister();
+		quitPending();
+		final ScheduledThreadPoolExecutor executor;
+		synchronized (this) {
+			executor = removalExecutor;
+			removalExecutor = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
 	public PresenceModule getPresenceModule() {
 		return presenceModule;
 	}
@@ -165,6 +189,100 @@ public class Ghostbuster2
 		}
 	}
 
+	/**
+	 * Removes occupants from all rooms they are in, ie. after connection manager dropped many sessions at once.
+	 * Occupants of the same room are removed from it in a single batch.
+	 *
+	 * @param occupantJids JIDs of disconnected occupants.
+	 */
+	public void removeAll(Collection<JID> occupantJids) throws TigaseStringprepException {
+		final Map<JID, Collection<BareJID>> occupants = new HashMap<JID, Collection<BareJID>>();
+		for (JID jid : occupantJids) {
+			final MonitoredObject o = monitoredObjects.remove(jid);
+			if (o != null) {
+				synchronized (o.rooms) {
+					occupants.put(jid, new ArrayList<BareJID>(o.rooms));
+				}
+			}
+		}
+		quit(occupants);
+	}
+
+	/**
+	 * Removes occupants which are no longer monitored from rooms, grouping them by room.
+	 */
+	private void quit(Map<JID, Collection<BareJID>> occupants) throws TigaseStringprepException {
+		if ((presenceModule == null) || (repository == null)) {
+			return;
+		}
+
+		final Map<BareJID, List<JID>> occupantsByRoom = new HashMap<BareJID, List<JID>>();
+		for (Map.Entry<JID, Collection<BareJID>> e : occupants.entrySet()) {
+			for (BareJID roomJid : e.getValue()) {
+				occupantsByRoom.computeIfAbsent(roomJid, k -> new ArrayList<JID>()).add(e.getKey());
+			}
+		}
+
+		final Map<BareJID, Room> activeRooms = repository.getActiveRooms();
+		for (Map.Entry<BareJID, List<JID>> e : occupantsByRoom.entrySet()) {
+			final Room room = activeRooms.get(e.getKey());
+			if (room == null) {
+				continue;
+			}
+			final List<JID> jids = new ArrayList<JID>(e.getValue().size());
+			for (JID jid : e.getValue()) {
+				if (room.isOccupantInRoom(jid)) {
+					jids.add(jid);
+				}
+			}
+			if (jids.isEmpty()) {
+				continue;
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Removing " + jids.size() + " occupants from room " + room.getRoomJID());
+			}
+			if (jids.size() == 1) {
+				presenceModule.doQuit(room, jids.get(0));
+			} else {
+				presenceModule.doQuit(room, jids);
+			}
+		}
+	}
+
+	private void quitPending() {
+		removalScheduled.set(false);
+		final Map<JID, Collection<BareJID>> occupants = new HashMap<JID, Collection<BareJID>>();
+		final Iterator<Map.Entry<JID, Collection<BareJID>>> it = pendingRemovals.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<JID, Collection<BareJID>> e = it.next();
+			occupants.put(e.getKey(), e.getValue());
+			it.remove();
+		}
+		if (occupants.isEmpty()) {
+			return;
+		}
+		try {
+			quit(occupants);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Problem on removing " + occupants.size() + " disconnected occupants", e);
+		}
+	}
+
+	private synchronized ScheduledThreadPoolExecutor getRemovalExecutor() {
+		if (removalExecutor == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "muc-ghostbuster");
+				thread.setDaemon(true);
+				return thread;
+			});
+			// thread is stopped when there is nothing to remove
+			executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+			executor.allowCoreThreadTimeOut(true);
+			removalExecutor = executor;
+		}
+		return removalExecutor;
+	}
+
 	public void remove(Collection<JID> occupantJids, Room room) {
 		for (JID jid : occupantJids) {
 			remove(jid, room);
@@ -315,6 +433,11 @@ public class Ghostbuster2
 		}
 	}
 
+	/**
+	 * Removes occupant which is no longer reachable. When many sessions are dropped at once, errors are received for
+	 * many occupants in a short time, so removals are delayed for a moment to remove occupants of the same room in a
+	 * single batch.
+	 */
 	private void processError(MonitoredObject obj, Packet packet) throws TigaseStringprepException {
 		if ((presenceModule == null) || (repository == null)) {
 			return;
@@ -324,11 +447,22 @@ public class Ghostbuster2
 			log.finest("Forced removal last activity of " + obj.source);
 		}
 
-		this.monitoredObjects.remove(obj.source);
-		for (Room r : repository.getActiveRooms().values()) {
-			if (obj.rooms.contains(r.getRoomJID()) && r.isOccupantInRoom(obj.source)) {
-				presenceModule.doQuit(r, obj.source);
-			}
+		if (this.monitoredObjects.remove(obj.source) == null) {
+			return;
+		}
+		final Collection<BareJID> rooms;
+		synchronized (obj.rooms) {
+			rooms = new ArrayList<BareJID>(obj.rooms);
+		}
+
+		final long delay = config == null ? 0 : config.getGhostbusterRemovalDelay();
+		if (delay <= 0) {
+			quit(Collections.singletonMap(obj.source, rooms));
+			return;
+		}
+		pendingRemovals.put(obj.source, rooms);
+		if (removalScheduled.compareAndSet(false, true)) {
+			getRemovalExecutor().schedule(this::quitPending, delay, TimeUnit.MILLISECONDS);
 		}
 	}
 
@@ -0,0 +1,308 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.component.PacketWriter;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.PacketErrorTypeException;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces processing of joins to rooms, ie. when all clients rejoin their rooms after restart of the server. Joins are
+ * admitted at configured global rate. Joins exceeding the rate are queued: joins of owners and admins are admitted
+ * first, other joins are admitted in round-robin order of rooms, so a single busy room does not delay joins to other
+ * rooms. Admitted joins are passed back to the component for processing.
+ */
+@Bean(name = "joinAdmissionController", parent = MUCComponent.class, active = true)
+public class JoinAdmissionController
+		implements MUCStatisticsProvider, UnregisterAware {
+
+	private static final Logger log = Logger.getLogger(JoinAdmissionController.class.getName());
+	private final Set<Packet> admitted = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<Packet, Boolean>()));
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final ArrayDeque<Pending> priorityQueue = new ArrayDeque<Pending>();
+	private final LinkedHashMap<BareJID, ArrayDeque<Pending>> roomQueues = new LinkedHashMap<BareJID, ArrayDeque<Pending>>();
+	@Inject
+	private MUCComponent component;
+	@Inject
+	private MUCConfig config;
+	private long admittedFromQueue;
+	private Thread dispatcher;
+	private long lastRefill = System.nanoTime();
+	private long maxWaitTime;
+	private long overflowed;
+	private long queued;
+	private int queueSize;
+	private double tokens;
+	private long totalWaitTime;
+	@Inject
+	private PacketWriter writer;
+
+	public JoinAdmissionController() {
+	}
+
+	public JoinAdmissionController(MUCConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Decides if join may be processed immediately.
+	 *
+	 * @param packet presence joining the room.
+	 * @param roomJID JID of the room.
+	 * @param priority <code>true</code> if join should be admitted before joins of other users (ie. owners and
+	 * admins).
+	 *
+	 * @return <code>true</code> if join should be processed now, <code>false</code> if it was queued and will be passed
+	 * to component again when admitted.
+	 */
+	public boolean admit(final Packet packet, final BareJID roomJID, final boolean priority) {
+		if (!admitted.isEmpty() && admitted.remove(packet)) {
+			return true;
+		}
+		final int rate = config.getJoinAdmissionRate();
+		if (rate <= 0) {
+			return true;
+		}
+
+		lock.lock();
+		try {
+			refill(rate);
+			if (queueSize == 0 && tokens >= 1) {
+				tokens--;
+				return true;
+			}
+			if (queueSize >= config.getJoinAdmissionQueueSize()) {
+				// queue is full, join is processed instead of being rejected
+				overflowed++;
+				return true;
+			}
+
+			final Pending pending = new Pending(packet, packet.getStanzaFrom());
+			if (priority) {
+				priorityQueue.add(pending);
+			} else {
+				roomQueues.computeIfAbsent(roomJID, k -> new ArrayDeque<Pending>()).add(pending);
+			}
+			queueSize++;
+			queued++;
+			ensureDispatcher();
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Join of " + packet.getStanzaFrom() + " to room " + roomJID + " queued for admission");
+		}
+		return false;
+	}
+
+	/**
+	 * Stops admission of joins. Joins waiting for admission are rejected, so users are not left without response.
+	 */
+	@Override
+	public void beforeUnregister() {
+		final Thread thread;
+		final List<Pending> rejected = new ArrayList<Pending>();
+		lock.lock();
+		try {
+			thread = dispatcher;
+			dispatcher = null;
+			rejected.addAll(priorityQueue);
+			for (ArrayDeque<Pending> roomQueue : roomQueues.values()) {
+				rejected.addAll(roomQueue);
+			}
+			priorityQueue.clear();
+			roomQueues.clear();
+			queueSize = 0;
+		} finally {
+			lock.unlock();
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+		for (Pending pending : rejected) {
+			reject(pending.packet);
+		}
+	}
+
+	/**
+	 * Drops queued join of user, ie. when user left the room before join was admitted.
+	 */
+	public void cancel(final BareJID roomJID, final JID senderJID) {
+		lock.lock();
+		try {
+			if (queueSize == 0) {
+				return;
+			}
+			queueSize -= remove(priorityQueue, senderJID);
+			final ArrayDeque<Pending> roomQueue = roomQueues.get(roomJID);
+			if (roomQueue != null) {
+				queueSize -= remove(roomQueue, senderJID);
+				if (roomQueue.isEmpty()) {
+					roomQueues.remove(roomJID);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		lock.lock();
+		try {
+			list.add(compName, "Joins waiting for admission", queueSize, Level.FINE);
+			list.add(compName, "Joins queued for admission", queued, Level.FINE);
+			list.add(compName, "Joins admitted over queue limit", overflowed, Level.FINE);
+			list.add(compName, "Average join admission wait time [ms]",
+					 admittedFromQueue <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitTime / admittedFromQueue),
+					 Level.FINE);
+			list.add(compName, "Maximal join admission wait time [ms]", TimeUnit.NANOSECONDS.toMillis(maxWaitTime),
+					 Level.FINE);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void reinject(Packet packet) {
+		component.requeuePacket(packet);
+	}
+
+	protected void reject(Packet packet) {
+		try {
+			writer.write(Authorization.SERVICE_UNAVAILABLE.getResponseMessage(packet, "Service is stopping", true));
+		} catch (PacketErrorTypeException ex) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Could not reject join " + packet, ex);
+			}
+		}
+	}
+
+	private void dispatch() {
+		while (!Thread.currentThread().isInterrupted()) {
+			final Pending pending;
+			lock.lock();
+			try {
+				if (dispatcher != Thread.currentThread()) {
+					return;
+				}
+				if (queueSize == 0) {
+					notEmpty.await();
+					continue;
+				}
+				final int rate = config.getJoinAdmissionRate();
+				// if admission was disabled, queued joins are admitted immediately
+				if (rate > 0) {
+					refill(rate);
+					if (tokens < 1) {
+						notEmpty.awaitNanos((long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate) + 1);
+						continue;
+					}
+					tokens--;
+				}
+				pending = poll();
+				queueSize--;
+				admittedFromQueue++;
+				final long waitTime = System.nanoTime() - pending.queuedAt;
+				totalWaitTime += waitTime;
+				maxWaitTime = Math.max(maxWaitTime, waitTime);
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				admitted.add(pending.packet);
+				reinject(pending.packet);
+			} catch (Exception ex) {
+				admitted.remove(pending.packet);
+				log.log(Level.WARNING, "Could not process admitted join " + pending.packet, ex);
+			}
+		}
+	}
+
+	private void ensureDispatcher() {
+		if (dispatcher == null) {
+			dispatcher = new Thread(this::dispatch, "muc-join-admission");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+	}
+
+	private Pending poll() {
+		if (!priorityQueue.isEmpty()) {
+			return priorityQueue.poll();
+		}
+		// round-robin over rooms
+		final Iterator<Map.Entry<BareJID, ArrayDeque<Pending>>> it = roomQueues.entrySet().iterator();
+		final Map.Entry<BareJID, ArrayDeque<Pending>> entry = it.next();
+		final Pending pending = entry.getValue().poll();
+		it.remove();
+		if (!entry.getValue().isEmpty()) {
+			roomQueues.put(entry.getKey(), entry.getValue());
+		}
+		return pending;
+	}
+
+	private void refill(final int rate) {
+		final long now = System.nanoTime();
+		tokens = Math.min(rate, tokens + ((double) (now - lastRefill) * rate) / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+
+	private int remove(final ArrayDeque<Pending> queue, final JID senderJID) {
+		int removed = 0;
+		final Iterator<Pending> it = queue.iterator();
+		while (it.hasNext()) {
+			if (senderJID.equals(it.next().senderJID)) {
+				it.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private static class Pending {
+
+		private final Packet packet;
+		private final long queuedAt = System.nanoTime();
+		private final JID senderJID;
+
+		Pending(Packet packet, JID senderJID) {
+			this.packet = packet;
+			this.senderJID = senderJID;
+		}
+	}
+
+}
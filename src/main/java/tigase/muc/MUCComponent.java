@@ -33,13 +33,21 @@ import tigase.kernel.core.Kernel;
 import tigase.muc.modules.*;
 import tigase.muc.repository.IMucRepository;
 import tigase.server.Packet;
+import tigase.server.Priority;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMItemHandler;
 import tigase.xmpp.mam.MAMQueryParser;
 import tigase.xmpp.mam.modules.GetFormModule;
 
 import javax.script.Bindings;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 @Bean(name = "muc", parent = Kernel.class, active = true)
@@ -50,10 +58,26 @@ public class MUCComponent
 
 	public static final String DEFAULT_ROOM_CONFIG_KEY = "default_room_config";
 	public static final String DEFAULT_ROOM_CONFIG_PREFIX_KEY = DEFAULT_ROOM_CONFIG_KEY + "/";
+	public static final String ROOM_AFFINITY_ENABLED_KEY = "room-affinity-enabled";
+	public static final String TRAFFIC_CLASS_PRIORITIES_KEY = "traffic-class-priorities";
+	private final ChatStateOrder chatStateOrder = new ChatStateOrder();
+	private final LongAdder chatStatesSuperseded = new LongAdder();
 	@ConfigField(alias = DEFAULT_ROOM_CONFIG_KEY, desc = "Default room configuration", allowAliasFromParent = false)
 	private HashMap<String, String> defaultRoomConfig = new HashMap<>();
 	@Inject
 	private Ghostbuster2 ghostbuster;
+	@Inject(nullAllowed = true)
+	private OutgoingBatchQueue outgoingBatchQueue;
+	private volatile AtomicLongArray processedPerQueue;
+	@ConfigField(desc = "Process all stanzas addressed to the same room on a single queue", alias = ROOM_AFFINITY_ENABLED_KEY)
+	private boolean roomAffinityEnabled = false;
+	@Inject(nullAllowed = true)
+	private List<MUCStatisticsProvider> statisticsProviders;
+	@ConfigField(desc = "Priorities of traffic classes", alias = TRAFFIC_CLASS_PRIORITIES_KEY, allowAliasFromParent = false)
+	private HashMap<String, String> trafficClassPriorities = new HashMap<>();
+	private final LongAdder[] trafficIn = newCounters(TrafficClass.values().length);
+	private final LongAdder[] trafficOut = newCounters(TrafficClass.values().length);
+	private volatile TrafficPriorities trafficPriorities;
 
 	protected static void addIfExists(Bindings binds, String name, Object value) {
 		if (value != null) {
@@ -61,15 +85,84 @@ public class MUCComponent
 		}
 	}
 
+	private static LongAdder[] newCounters(int size) {
+		final LongAdder[] counters = new LongAdder[size];
+		for (int i = 0; i < size; i++) {
+			counters[i] = new LongAdder();
+		}
+		return counters;
+	}
+
 	public MUCComponent() {
 	}
 
+	@Override
+	public boolean addPacket(Packet packet) {
+		final TrafficClass trafficClass = applyTrafficClass(packet, trafficIn, false);
+		chatStateOrder.queued(packet, trafficClass);
+		final boolean result = super.addPacket(packet);
+		if (!result) {
+			chatStateOrder.rejected(packet, trafficClass);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean addPacketNB(Packet packet) {
+		final TrafficClass trafficClass = applyTrafficClass(packet, trafficIn, false);
+		chatStateOrder.queued(packet, trafficClass);
+		final boolean result = super.addPacketNB(packet);
+		if (!result) {
+			chatStateOrder.rejected(packet, trafficClass);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds packet, which was already received by the component (ie. a join waiting for admission), back to incoming
+	 * queues. Traffic class of the packet was already applied and counted when it was received.
+	 */
+	boolean requeuePacket(Packet packet) {
+		return super.addPacket(packet);
+	}
+
 	@Override
 	public String getComponentVersion() {
 		String version = this.getClass().getPackage().getImplementationVersion();
 		return version == null ? "0.0.0" : version;
 	}
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		final AtomicLongArray processed = processedPerQueue;
+		if (processed != null) {
+			long total = 0;
+			long max = 0;
+			for (int i = 0; i < processed.length(); i++) {
+				final long value = processed.get(i);
+				total += value;
+				max = Math.max(max, value);
+				list.add(getName(), "Processed packets on queue " + i, value, Level.FINEST);
+			}
+			// ratio of load of the busiest queue to average load, 1.0 means that load is distributed evenly
+			final float skew = total == 0 ? 1 : ((float) max * processed.length()) / total;
+			list.add(getName(), "Processing queues load skew", skew, Level.FINE);
+		}
+		for (TrafficClass trafficClass : TrafficClass.values()) {
+			list.add(getName(), "Traffic class " + trafficClass.getName() + " in",
+					 trafficIn[trafficClass.ordinal()].sum(), Level.FINE);
+			list.add(getName(), "Traffic class " + trafficClass.getName() + " out",
+					 trafficOut[trafficClass.ordinal()].sum(), Level.FINE);
+		}
+		list.add(getName(), "Chat states superseded by messages", chatStatesSuperseded.sum(), Level.FINE);
+		if (statisticsProviders != null) {
+			for (MUCStatisticsProvider provider : statisticsProviders) {
+				provider.getStatistics(getName(), list);
+			}
+		}
+	}
+
 	@Override
 	public String getDiscoCategory() {
 		return "conference";
@@ -87,6 +180,14 @@ public class MUCComponent
 
 	@Override
 	public int hashCodeForPacket(Packet packet) {
+		if (roomAffinityEnabled) {
+			final JID to = packet.getStanzaTo();
+			// stanzas addressed to rooms are processed on queue selected by room JID, stanzas addressed to the
+			// component itself (ie. disco#items) are distributed as usual
+			if (to != null && to.getLocalpart() != null) {
+				return to.getBareJID().hashCode();
+			}
+		}
 		if ((packet.getStanzaFrom() != null) && (packet.getPacketFrom() != null) &&
 				!getComponentId().equals(packet.getPacketFrom())) {
 			return packet.getStanzaFrom().hashCode();
@@ -111,6 +212,15 @@ public class MUCComponent
 
 	@Override
 	public void processPacket(Packet packet) {
+		countProcessedPacket(packet);
+		if (!chatStateOrder.process(packet)) {
+			// chat state was overtaken by a message of the same occupant, which supersedes it
+			chatStatesSuperseded.increment();
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Dropping chat state superseded by groupchat message: " + packet);
+			}
+			return;
+		}
 		if (ghostbuster != null) {
 			try {
 				ghostbuster.update(packet);
@@ -121,6 +231,85 @@ public class MUCComponent
 		super.processPacket(packet);
 	}
 
+	/**
+	 * Adds stanzas to outgoing queues. If batching of outgoing stanzas is enabled, all stanzas are added with a single
+	 * operation.
+	 *
+	 * @param packets stanzas to send, collection must not be modified after this call.
+	 */
+	public void addOutPackets(Collection<Packet> packets) {
+		final OutgoingBatchQueue batchQueue = this.outgoingBatchQueue;
+		if (batchQueue != null && batchQueue.isEnabled() && batchQueue.offer(packets)) {
+			return;
+		}
+		for (Packet packet : packets) {
+			enqueueOutPacket(packet);
+		}
+	}
+
+	@Override
+	protected boolean addOutPacket(Packet packet) {
+		final OutgoingBatchQueue batchQueue = this.outgoingBatchQueue;
+		// single stanzas follow the same path as batches, so they do not overtake broadcasts sent before them
+		if (batchQueue != null && batchQueue.isEnabled() && batchQueue.offer(packet)) {
+			return true;
+		}
+		return enqueueOutPacket(packet);
+	}
+
+	@Override
+	protected boolean addOutPacketNB(Packet packet) {
+		final OutgoingBatchQueue batchQueue = this.outgoingBatchQueue;
+		if (batchQueue != null && batchQueue.isEnabled() && batchQueue.offer(packet)) {
+			return true;
+		}
+		applyTrafficClass(packet, trafficOut, true);
+		return super.addOutPacketNB(packet);
+	}
+
+	boolean enqueueOutPacket(Packet packet) {
+		applyTrafficClass(packet, trafficOut, true);
+		return super.addOutPacket(packet);
+	}
+
+	private TrafficClass applyTrafficClass(Packet packet, LongAdder[] counters, boolean outgoing) {
+		final TrafficClass trafficClass = TrafficClass.classify(packet);
+		counters[trafficClass.ordinal()].increment();
+		// outgoing chat states are sent in lane of messages, as messages broadcasted after them must not overtake them
+		final Priority priority = getTrafficPriorities().get(
+				outgoing && trafficClass == TrafficClass.chatState ? TrafficClass.groupchat : trafficClass);
+		// priorities raised explicitly (ie. for self-presence) are kept
+		if (packet.getPriority().ordinal() >= Priority.NORMAL.ordinal() && packet.getPriority() != priority) {
+			packet.setPriority(priority);
+		}
+		return trafficClass;
+	}
+
+	private TrafficPriorities getTrafficPriorities() {
+		final HashMap<String, String> config = this.trafficClassPriorities;
+		TrafficPriorities priorities = this.trafficPriorities;
+		if (priorities == null || priorities.config != config) {
+			priorities = new TrafficPriorities(config);
+			this.trafficPriorities = priorities;
+		}
+		return priorities;
+	}
+
+	private void countProcessedPacket(Packet packet) {
+		AtomicLongArray processed = processedPerQueue;
+		if (processed == null) {
+			synchronized (this) {
+				processed = processedPerQueue;
+				if (processed == null) {
+					processed = new AtomicLongArray(processingInThreads());
+					processedPerQueue = processed;
+				}
+			}
+		}
+		// the same formula is used to select queue for incoming packet
+		processed.incrementAndGet(Math.abs(hashCodeForPacket(packet) % processed.length()));
+	}
+
 	@Override
 	public int processingInThreads() {
 		return Runtime.getRuntime().availableProcessors() * 4;
@@ -168,6 +357,38 @@ public class MUCComponent
 		//kernel.registerBean(Ghostbuster2.class).exec();
 	}
 
+	private class TrafficPriorities {
+
+		private final HashMap<String, String> config;
+		private final EnumMap<TrafficClass, Priority> priorities = new EnumMap<>(TrafficClass.class);
+
+		TrafficPriorities(HashMap<String, String> config) {
+			this.config = config;
+			for (TrafficClass trafficClass : TrafficClass.values()) {
+				priorities.put(trafficClass, trafficClass.getDefaultPriority());
+			}
+			if (config == null) {
+				return;
+			}
+			for (Entry<String, String> e : config.entrySet()) {
+				final TrafficClass trafficClass = TrafficClass.forName(e.getKey());
+				if (trafficClass == null) {
+					log.warning("Unknown traffic class '" + e.getKey() + "'");
+					continue;
+				}
+				try {
+					priorities.put(trafficClass, Priority.valueOf(e.getValue()));
+				} catch (IllegalArgumentException ex) {
+					log.warning("Unknown priority '" + e.getValue() + "' of traffic class '" + e.getKey() + "'");
+				}
+			}
+		}
+
+		Priority get(TrafficClass trafficClass) {
+			return priorities.get(trafficClass);
+		}
+	}
+
 	private void updateDefaultRoomConfig() throws RepositoryException {
 		final IMucRepository mucRepository = kernel.getInstance(IMucRepository.class);
 
@@ -29,12 +29,20 @@ import java.util.logging.Logger;
 @Bean(name = "mucConfig", parent = MUCComponent.class, active = true, exportable = true)
 public class MUCConfig {
 
+	public static final String CHAT_STATES_COALESCING_WINDOW_KEY = "chat-states-coalescing-window";
+	public static final String CHAT_STATES_MAX_OCCUPANTS_KEY = "chat-states-max-occupants";
+	public static final String GHOSTBUSTER_REMOVAL_DELAY_KEY = "ghostbuster-removal-delay";
+	public static final String JOIN_ADMISSION_QUEUE_SIZE_KEY = "join-admission-queue-size";
+	public static final String JOIN_ADMISSION_RATE_KEY = "join-admission-rate";
 	public static final String LOG_DIR_KEY = "room-log-directory";
 	public static final String MESSAGE_FILTER_ENABLED_KEY = "message-filter-enabled";
 	public static final String MUC_ADD_ID_TO_MESSAGE_IF_MISSING_KEY = "muc-add-id-to-message-if-missing";
 	public static final String MUC_ALLOW_CHAT_STATES_KEY = "muc-allow-chat-states";
 	public static final String MUC_LOCK_NEW_ROOM_KEY = "muc-lock-new-room";
 	public static final String MUC_MULTI_ITEM_ALLOWED_KEY = "muc-multi-item-allowed";
+	public static final String OCCUPANTS_COUNT_NOTIFICATION_PERIOD_KEY = "occupants-count-notification-period";
+	public static final String PARALLEL_FAN_OUT_PARALLELISM_KEY = "parallel-fan-out-parallelism";
+	public static final String PARALLEL_FAN_OUT_THRESHOLD_KEY = "parallel-fan-out-threshold";
 	public static final String PRESENCE_FILTER_ENABLED_KEY = "presence-filter-enabled";
 	protected static final String MUC_REPO_CLASS_PROP_KEY = "muc-repo-class";
 
@@ -46,16 +54,32 @@ public class MUCConfig {
 	protected boolean addMessageIdIfMissing = true;
 	@ConfigField(desc = "Allowing Chat-States", alias = MUC_ALLOW_CHAT_STATES_KEY)
 	protected Boolean chatStateAllowed = false;
+	@ConfigField(desc = "Time window (in ms) in which chat states of an occupant are coalesced (0 - disabled)", alias = CHAT_STATES_COALESCING_WINDOW_KEY)
+	private long chatStatesCoalescingWindow = 0;
+	@ConfigField(desc = "Number of occupants above which chat states are not delivered (0 - no limit)", alias = CHAT_STATES_MAX_OCCUPANTS_KEY)
+	private int chatStatesMaxOccupants = 0;
+	@ConfigField(desc = "Maximal number of joins waiting for admission", alias = JOIN_ADMISSION_QUEUE_SIZE_KEY)
+	private int joinAdmissionQueueSize = 100000;
+	@ConfigField(desc = "Number of joins to rooms admitted per second (0 - no limit)", alias = JOIN_ADMISSION_RATE_KEY)
+	private int joinAdmissionRate = 0;
 	@ConfigField(desc = "Logs Directory", alias = LOG_DIR_KEY)
 	private String chatLoggingDirectory = "./logs/";
 	@ConfigField(desc = "GhostBuster enabled", alias = GHOSTBUSTER_ENABLED_KEY)
 	private boolean ghostbusterEnabled = true;
+	@ConfigField(desc = "Time (in ms) for which removals of unreachable occupants are collected to remove them in batches (0 - disabled)", alias = GHOSTBUSTER_REMOVAL_DELAY_KEY)
+	private long ghostbusterRemovalDelay = 0;
 	@ConfigField(desc = "Passing only body element", alias = MESSAGE_FILTER_ENABLED_KEY)
 	private boolean messageFilterEnabled = true;
 	@ConfigField(desc = "Multi resources login allowed", alias = MUC_MULTI_ITEM_ALLOWED_KEY)
 	private boolean multiItemMode = true;
 	@ConfigField(desc = "Lock newly created room", alias = MUC_LOCK_NEW_ROOM_KEY)
 	private boolean newRoomLocked = true;
+	@ConfigField(desc = "Period (in ms) of notifications about number of occupants of large channels", alias = OCCUPANTS_COUNT_NOTIFICATION_PERIOD_KEY)
+	private long occupantsCountNotificationPeriod = 60000;
+	@ConfigField(desc = "Number of threads preparing broadcasts in parallel", alias = PARALLEL_FAN_OUT_PARALLELISM_KEY)
+	private int parallelFanOutParallelism = Runtime.getRuntime().availableProcessors();
+	@ConfigField(desc = "Number of occupants above which broadcasts are prepared in parallel (0 - disabled)", alias = PARALLEL_FAN_OUT_THRESHOLD_KEY)
+	private int parallelFanOutThreshold = 0;
 	@ConfigField(desc = "Passing only bare presence", alias = PRESENCE_FILTER_ENABLED_KEY)
 	private boolean presenceFilterEnabled = false;
 	@ConfigField(desc = "Send welcome messages on room creation", alias = "welcome-message")
@@ -63,10 +87,42 @@ public class MUCConfig {
 	@ConfigField(desc = "Enable sending timestamps in legacy format descibed in XEP-0091", alias = "legacy-delayed-delivery-enabled")
 	private boolean legacyDelayedDeliveryEnabled = false;
 
+	public long getChatStatesCoalescingWindow() {
+		return chatStatesCoalescingWindow;
+	}
+
+	public int getChatStatesMaxOccupants() {
+		return chatStatesMaxOccupants;
+	}
+
 	public String getChatLoggingDirectory() {
 		return chatLoggingDirectory;
 	}
 
+	public long getGhostbusterRemovalDelay() {
+		return ghostbusterRemovalDelay;
+	}
+
+	public int getJoinAdmissionQueueSize() {
+		return joinAdmissionQueueSize;
+	}
+
+	public int getJoinAdmissionRate() {
+		return joinAdmissionRate;
+	}
+
+	public long getOccupantsCountNotificationPeriod() {
+		return occupantsCountNotificationPeriod;
+	}
+
+	public int getParallelFanOutParallelism() {
+		return parallelFanOutParallelism;
+	}
+
+	public int getParallelFanOutThreshold() {
+		return parallelFanOutThreshold;
+	}
+
 	public BareJID getServiceName() {
 		return serviceName;
 	}
@@ -0,0 +1,135 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.component.PacketWriter;
+import tigase.component.ScheduledTask;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically notifies occupants of large channels, which do not receive presences of other occupants, about current
+ * number of occupants. Notification is sent only for rooms in which number of occupants could change since last
+ * notification.
+ */
+@Bean(name = "occupantsCountNotifier", parent = MUCComponent.class, active = true)
+public class OccupantsCountNotifier
+		extends ScheduledTask
+		implements MUCStatisticsProvider {
+
+	public static final String XMLNS = "tigase:muc:occupants";
+	private static final Logger log = Logger.getLogger(OccupantsCountNotifier.class.getName());
+	private final Set<Room> changedRooms = ConcurrentHashMap.newKeySet();
+	private final AtomicLong sent = new AtomicLong();
+	@Inject
+	private MUCConfig config;
+	private long lastNotification = System.currentTimeMillis();
+	@Inject
+	private PacketWriter writer;
+
+	public static Packet createNotification(Room room, JID destinationJID, int count) {
+		Element message = new Element("message", new String[]{"type", "from", "to"},
+									  new String[]{"headline", room.getRoomJID().toString(),
+												   destinationJID.toString()});
+		message.addChild(new Element("occupants", new String[]{"xmlns", "count"},
+									 new String[]{XMLNS, String.valueOf(count)}));
+		Packet packet = Packet.packetInstance(message, JID.jidInstanceNS(room.getRoomJID()), destinationJID);
+		packet.setXMLNS(Packet.CLIENT_XMLNS);
+		return packet;
+	}
+
+	public OccupantsCountNotifier() {
+		// task is run often, so changes of configured period are applied without rescheduling it
+		super(Duration.ofSeconds(1), Duration.ofSeconds(1));
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Occupants count notifications sent", sent.get(), Level.FINE);
+	}
+
+	/**
+	 * Marks that number of occupants of the room changed.
+	 */
+	public void occupantsChanged(Room room) {
+		if (room.getConfig().isLargeChannel()) {
+			changedRooms.add(room);
+		}
+	}
+
+	@Override
+	public void run() {
+		final long now = System.currentTimeMillis();
+		if (now - lastNotification < config.getOccupantsCountNotificationPeriod()) {
+			return;
+		}
+		lastNotification = now;
+
+		final Iterator<Room> it = changedRooms.iterator();
+		while (it.hasNext()) {
+			final Room room = it.next();
+			it.remove();
+			try {
+				notifyOccupants(room);
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Could not send occupants count of room " + room.getRoomJID(), ex);
+			}
+		}
+	}
+
+	protected void notifyOccupants(Room room) {
+		final Room.Roster roster = room.getRoster();
+		if (roster.size() == 0 || !room.getConfig().isLargeChannel()) {
+			return;
+		}
+		final List<Packet> packets = new ArrayList<Packet>(roster.size());
+		for (int i = 0; i < roster.size(); i++) {
+			final Room.Roster.Occupant occupant = roster.get(i);
+			// moderators receive presences of all occupants
+			if (occupant.getRole() == Role.moderator) {
+				continue;
+			}
+			for (int j = 0; j < occupant.getJidsCount(); j++) {
+				packets.add(createNotification(room, occupant.getJid(j), roster.size()));
+			}
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Sending occupants count " + roster.size() + " of room " + room.getRoomJID() + " to " +
+							   packets.size() + " occupants");
+		}
+		sent.addAndGet(packets.size());
+		if (!packets.isEmpty()) {
+			writer.write(packets);
+		}
+	}
+
+}
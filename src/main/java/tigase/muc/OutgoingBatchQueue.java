@@ -0,0 +1,208 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes outgoing stanzas of MUC component to its outgoing queues. Broadcast to all occupants of a room is added with a
+ * single operation and a single wake-up of a thread, instead of adding each stanza separately by the thread
+ * processing a stanza. Stanzas are passed further by a single thread, in order in which they were added, so order of
+ * stanzas sent to an occupant is not changed.
+ * <br>
+ * Component uses this queue for all outgoing stanzas if it is enabled. If number of waiting stanzas exceeds
+ * configured limit, new stanzas are not accepted and are added to outgoing queues directly by caller.
+ */
+@Bean(name = "outgoingBatchQueue", parent = MUCComponent.class, active = true)
+public class OutgoingBatchQueue
+		implements MUCStatisticsProvider, UnregisterAware {
+
+	public static final String ENABLED_KEY = "out-batching-enabled";
+	public static final String MAX_SIZE_KEY = "out-batching-max-size";
+	private static final Logger log = Logger.getLogger(OutgoingBatchQueue.class.getName());
+	private final LinkedBlockingQueue<Collection<Packet>> batches = new LinkedBlockingQueue<Collection<Packet>>();
+	private final LongAdder batchesCount = new LongAdder();
+	@Inject
+	private MUCComponent component;
+	private volatile Thread drainer;
+	@ConfigField(desc = "Pass outgoing broadcasts to outgoing queues in batches", alias = ENABLED_KEY)
+	private boolean enabled = false;
+	@ConfigField(desc = "Maximal number of stanzas waiting to be passed to outgoing queues", alias = MAX_SIZE_KEY)
+	private int maxSize = 100000;
+	private final LongAdder overflowed = new LongAdder();
+	private final LongAdder packetsCount = new LongAdder();
+	private final Sink sink;
+	private final AtomicInteger size = new AtomicInteger();
+
+	public OutgoingBatchQueue() {
+		this.sink = packet -> component.enqueueOutPacket(packet);
+	}
+
+	/**
+	 * @param sink used to pass stanzas to outgoing queues.
+	 * @param maxSize maximal number of waiting stanzas.
+	 */
+	public OutgoingBatchQueue(Sink sink, int maxSize) {
+		this.sink = sink;
+		this.maxSize = maxSize;
+		this.enabled = true;
+	}
+
+	@Override
+	public void beforeUnregister() {
+		shutdown();
+	}
+
+	public int getSize() {
+		return size.get();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		if (!enabled) {
+			return;
+		}
+		list.add(compName, "Outgoing batches size", size.get(), Level.FINE);
+		list.add(compName, "Outgoing batches", batchesCount.sum(), Level.FINE);
+		list.add(compName, "Outgoing batched stanzas", packetsCount.sum(), Level.FINE);
+		list.add(compName, "Outgoing batches overflowed", overflowed.sum(), Level.FINE);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Adds stanza to the queue.
+	 *
+	 * @return <code>false</code> if queue is full and stanza was not accepted.
+	 */
+	public boolean offer(Packet packet) {
+		return offer(Collections.singletonList(packet));
+	}
+
+	/**
+	 * Adds stanzas to the queue in a single operation. Collection must not be modified after it was added.
+	 *
+	 * @return <code>false</code> if queue is full and stanzas were not accepted.
+	 */
+	public boolean offer(Collection<Packet> packets) {
+		if (packets == null || packets.isEmpty()) {
+			return true;
+		}
+		final int count = packets.size();
+		if (size.addAndGet(count) > maxSize) {
+			size.addAndGet(-count);
+			overflowed.add(count);
+			return false;
+		}
+		if (drainer == null) {
+			start();
+		}
+		batches.offer(packets);
+		return true;
+	}
+
+	public synchronized void start() {
+		if (drainer != null) {
+			return;
+		}
+		Thread thread = new Thread(this::drain, "muc-outgoing-batches");
+		thread.setDaemon(true);
+		drainer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops thread passing stanzas and passes all waiting stanzas to outgoing queues.
+	 */
+	public void shutdown() {
+		final Thread thread;
+		synchronized (this) {
+			thread = drainer;
+			drainer = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Collection<Packet> batch;
+		while ((batch = batches.poll()) != null) {
+			send(batch);
+		}
+	}
+
+	private void drain() {
+		final List<Collection<Packet>> taken = new ArrayList<Collection<Packet>>();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				taken.add(batches.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			// all batches added in the meantime are taken at once
+			batches.drainTo(taken);
+			for (Collection<Packet> batch : taken) {
+				send(batch);
+			}
+			taken.clear();
+		}
+	}
+
+	private void send(Collection<Packet> batch) {
+		for (Packet packet : batch) {
+			try {
+				sink.send(packet);
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Could not pass stanza " + packet + " to outgoing queue", ex);
+			}
+		}
+		size.addAndGet(-batch.size());
+		batchesCount.increment();
+		packetsCount.add(batch.size());
+	}
+
+	/**
+	 * Passes single stanza to outgoing queue of component.
+	 */
+	public interface Sink {
+
+		void send(Packet packet);
+
+	}
+
+}
@@ -0,0 +1,208 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prepares packets broadcasted to occupants of a room. For rooms with number of occupants above configured threshold
+ * roster is split into chunks which are processed on a bounded {@link ForkJoinPool}. Packets are always returned in
+ * order of occupants in roster, so sending them at once keeps the same order of stanzas as sequential processing.
+ */
+@Bean(name = "parallelFanOut", parent = MUCComponent.class, active = true)
+public class ParallelFanOut
+		implements UnregisterAware {
+
+	private static final int MIN_CHUNK_SIZE = 64;
+	private static final Logger log = Logger.getLogger(ParallelFanOut.class.getName());
+	@Inject
+	private MUCConfig config;
+	private Pool pool;
+
+	public ParallelFanOut() {
+	}
+
+	public ParallelFanOut(MUCConfig config) {
+		this.config = config;
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		if (pool != null) {
+			pool.retire();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Prepares packets for all occupants of roster.
+	 *
+	 * @param roster snapshot of room occupants.
+	 * @param producer creates packets for single occupant.
+	 *
+	 * @return list of packets in order of occupants in roster.
+	 */
+	public List<Packet> prepare(final Room.Roster roster, final OccupantPacketsProducer producer)
+			throws TigaseStringprepException {
+		final int threshold = config.getParallelFanOutThreshold();
+		if (threshold <= 0 || roster.size() < threshold || config.getParallelFanOutParallelism() <= 1) {
+			final List<Packet> packets = new ArrayList<Packet>(roster.size());
+			for (int i = 0; i < roster.size(); i++) {
+				producer.prepare(roster.get(i), packets);
+			}
+			return packets;
+		}
+
+		final Pool pool = acquirePool();
+		try {
+			final int chunkSize = Math.max(MIN_CHUNK_SIZE, roster.size() / (pool.executor.getParallelism() * 4));
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Preparing packets for " + roster.size() + " occupants in parallel, chunk size " + chunkSize);
+			}
+			return pool.executor.invoke(new FanOutTask(roster, producer, 0, roster.size(), chunkSize));
+		} catch (ProducerException ex) {
+			throw ex.getCause();
+		} finally {
+			pool.release();
+		}
+	}
+
+	/**
+	 * Returns pool with currently configured parallelism. If parallelism was changed, previous pool is shut down
+	 * when all broadcasts prepared on it are finished.
+	 */
+	private synchronized Pool acquirePool() {
+		final int parallelism = config.getParallelFanOutParallelism();
+		if (pool == null || pool.executor.getParallelism() != parallelism) {
+			if (pool != null) {
+				pool.retire();
+			}
+			pool = new Pool(new ForkJoinPool(parallelism));
+		}
+		pool.users.incrementAndGet();
+		return pool;
+	}
+
+	/**
+	 * Creates packets which should be sent to single occupant. Implementations are called concurrently, so they must
+	 * not modify shared state.
+	 */
+	public interface OccupantPacketsProducer {
+
+		void prepare(Room.Roster.Occupant occupant, List<Packet> packets) throws TigaseStringprepException;
+
+	}
+
+	private static class Pool {
+
+		private final ForkJoinPool executor;
+		private volatile boolean retired = false;
+		private final AtomicInteger users = new AtomicInteger();
+
+		Pool(ForkJoinPool executor) {
+			this.executor = executor;
+		}
+
+		void release() {
+			if (users.decrementAndGet() == 0 && retired) {
+				executor.shutdown();
+			}
+		}
+
+		void retire() {
+			retired = true;
+			if (users.get() == 0) {
+				executor.shutdown();
+			}
+		}
+	}
+
+	private static class ProducerException
+			extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		ProducerException(TigaseStringprepException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized TigaseStringprepException getCause() {
+			return (TigaseStringprepException) super.getCause();
+		}
+	}
+
+	private static class FanOutTask
+			extends RecursiveTask<List<Packet>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int chunkSize;
+		private final int from;
+		private final OccupantPacketsProducer producer;
+		private final Room.Roster roster;
+		private final int to;
+
+		FanOutTask(Room.Roster roster, OccupantPacketsProducer producer, int from, int to, int chunkSize) {
+			this.roster = roster;
+			this.producer = producer;
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected List<Packet> compute() {
+			if (to - from <= chunkSize) {
+				final List<Packet> packets = new ArrayList<Packet>(to - from);
+				try {
+					for (int i = from; i < to; i++) {
+						producer.prepare(roster.get(i), packets);
+					}
+				} catch (TigaseStringprepException ex) {
+					throw new ProducerException(ex);
+				}
+				return packets;
+			}
+
+			final int middle = (from + to) >>> 1;
+			final FanOutTask left = new FanOutTask(roster, producer, from, middle, chunkSize);
+			final FanOutTask right = new FanOutTask(roster, producer, middle, to, chunkSize);
+			right.fork();
+			final List<Packet> result = left.compute();
+			final List<Packet> rightResult = right.join();
+			final List<Packet> packets = new ArrayList<Packet>(result.size() + rightResult.size());
+			packets.addAll(result);
+			packets.addAll(rightResult);
+			return packets;
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Debounces presence broadcasts of occupants in rooms with presence debounce window configured. Within the window
+ * successive status changes of an occupant are broadcasted once with the latest presence, and leave of an occupant
+ * followed by a rejoin from the same full JID is seen by other occupants as a presence update.
+ */
+@Bean(name = "presenceDebouncer", parent = MUCComponent.class, active = true)
+public class PresenceDebouncer
+		implements MUCStatisticsProvider, UnregisterAware {
+
+	private static final Logger log = Logger.getLogger(PresenceDebouncer.class.getName());
+	private final AtomicLong avoided = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final Map<JID, PendingLeave> pendingLeaves = new ConcurrentHashMap<>();
+	private final Map<JID, PendingUpdate> pendingUpdates = new ConcurrentHashMap<>();
+	private final AtomicLong rejoins = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+
+	public PresenceDebouncer() {
+	}
+
+	/**
+	 * @param scheduler used to broadcast delayed presences.
+	 */
+	public PresenceDebouncer(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		pendingUpdates.clear();
+		pendingLeaves.clear();
+	}
+
+	/**
+	 * Broadcasts immediately all delayed unavailable presences of occupants of the room. Should be called when room
+	 * becomes empty, so leaves are not processed after history of the room was removed.
+	 *
+	 * @param roomJID JID of room.
+	 */
+	public void flushLeaves(final BareJID roomJID) {
+		if (pendingLeaves.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<JID, PendingLeave> e : pendingLeaves.entrySet()) {
+			if (roomJID.equals(e.getKey().getBareJID())) {
+				flushLeave(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Presence changes coalesced", coalesced.get(), Level.FINE);
+		list.add(compName, "Presence rejoins merged", rejoins.get(), Level.FINE);
+		list.add(compName, "Presence broadcasts avoided", avoided.get(), Level.FINE);
+	}
+
+	/**
+	 * Checks if occupant joining the room has left it recently from the same full JID. In such case broadcast of
+	 * unavailable presence is dropped and join should be seen by other occupants as a presence update. If unavailable
+	 * presence of other occupant using the same nickname is pending, it is broadcasted immediately. Has to be called
+	 * before joining occupant is added to the room, so it does not receive unavailable presence of previous occupant.
+	 *
+	 * @param occupantRoomJID JID of occupant in room.
+	 * @param senderJID full JID of joining user.
+	 *
+	 * @return <code>true</code> if pending leave of the same occupant was dropped.
+	 */
+	public boolean rejoin(final JID occupantRoomJID, final JID senderJID) {
+		if (pendingLeaves.isEmpty()) {
+			return false;
+		}
+		final PendingLeave p = pendingLeaves.get(occupantRoomJID);
+		if (p == null) {
+			return false;
+		}
+		if (p.jid.equals(senderJID) && pendingLeaves.remove(occupantRoomJID, p)) {
+			rejoins.incrementAndGet();
+			avoided.incrementAndGet();
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Occupant " + senderJID + " rejoined as " + occupantRoomJID + " within debounce window");
+			}
+			return true;
+		}
+		// unavailable presence has to be delivered before presence of a new occupant using the same nickname
+		flushLeave(occupantRoomJID, p);
+		return false;
+	}
+
+	/**
+	 * Accepts broadcast of unavailable presence of occupant leaving the room. Pending status change of this occupant
+	 * is dropped. Broadcast is delayed for the debounce window of the room, unless room is empty.
+	 *
+	 * @param room room which occupant left.
+	 * @param occupantRoomJID JID of occupant in room.
+	 * @param senderJID full JID of leaving user.
+	 * @param broadcast sends unavailable presence to occupants.
+	 */
+	public void submitLeave(final Room room, final JID occupantRoomJID, final JID senderJID,
+							final Broadcast broadcast) throws TigaseStringprepException {
+		if (!pendingUpdates.isEmpty() && pendingUpdates.remove(occupantRoomJID) != null) {
+			avoided.incrementAndGet();
+		}
+		final PendingLeave existing = pendingLeaves.get(occupantRoomJID);
+		if (existing != null) {
+			flushLeave(occupantRoomJID, existing);
+		}
+
+		final long window = room.getConfig().getPresenceDebounceWindow();
+		if (window <= 0 || room.getOccupantsCount() == 0) {
+			broadcast.send();
+			return;
+		}
+
+		final PendingLeave p = new PendingLeave(senderJID, broadcast);
+		pendingLeaves.put(occupantRoomJID, p);
+		getScheduler().schedule(() -> flushLeave(occupantRoomJID, p), window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Accepts broadcast of changed presence of occupant. Broadcast is delayed for the debounce window of the room and
+	 * if another change of the same occupant is submitted in the meantime, only the latest one is broadcasted.
+	 *
+	 * @param room room in which presence was changed.
+	 * @param occupantRoomJID JID of occupant in room.
+	 * @param broadcast sends current presence of occupant to occupants.
+	 */
+	public void submitUpdate(final Room room, final JID occupantRoomJID, final Broadcast broadcast)
+			throws TigaseStringprepException {
+		final long window = room.getConfig().getPresenceDebounceWindow();
+		if (window <= 0) {
+			broadcast.send();
+			return;
+		}
+
+		pendingUpdates.compute(occupantRoomJID, (jid, existing) -> {
+			if (existing != null) {
+				coalesced.incrementAndGet();
+				avoided.incrementAndGet();
+				existing.broadcast = broadcast;
+				return existing;
+			}
+			final PendingUpdate p = new PendingUpdate(broadcast);
+			getScheduler().schedule(() -> flushUpdate(jid, p), window, TimeUnit.MILLISECONDS);
+			return p;
+		});
+	}
+
+	private void flushLeave(final JID occupantRoomJID, final PendingLeave p) {
+		if (!pendingLeaves.remove(occupantRoomJID, p)) {
+			return;
+		}
+		send(occupantRoomJID, p.broadcast);
+	}
+
+	private void flushUpdate(final JID occupantRoomJID, final PendingUpdate p) {
+		if (!pendingUpdates.remove(occupantRoomJID, p)) {
+			return;
+		}
+		send(occupantRoomJID, p.broadcast);
+	}
+
+	private void send(final JID occupantRoomJID, final Broadcast broadcast) {
+		try {
+			broadcast.send();
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Could not broadcast presence of " + occupantRoomJID, ex);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "muc-presence-debouncer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	public interface Broadcast {
+
+		void send() throws TigaseStringprepException;
+
+	}
+
+	private static class PendingLeave {
+
+		private final Broadcast broadcast;
+		private final JID jid;
+
+		PendingLeave(JID jid, Broadcast broadcast) {
+			this.jid = jid;
+			this.broadcast = broadcast;
+		}
+	}
+
+	private static class PendingUpdate {
+
+		private volatile Broadcast broadcast;
+
+		PendingUpdate(Broadcast broadcast) {
+			this.broadcast = broadcast;
+		}
+	}
+
+}
@@ -22,22 +22,29 @@ import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Date;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Keeps track of occupants which presences are delivered when presence filtering is enabled. Sets of filtered JIDs and
+ * nicknames are updated by room callbacks and exposed as immutable snapshots, which are shared between callers and
+ * rebuilt only after change.
+ *
  * @author Wojciech Kapcia
  */
 public class PresenceFiltered
 		implements Room.RoomOccupantListener, Room.RoomListener {
 
 	protected static final Logger log = Logger.getLogger(PresenceFiltered.class.getName());
+	private final Map<JID, String> filteredJids = new ConcurrentHashMap<>();
 	private final Collection<BareJID> occupantsPresenceFiltered = new ConcurrentSkipListSet<>();
 	private final Room room;
+	private final AtomicLong version = new AtomicLong();
+	private volatile Snapshot snapshot = new Snapshot(0, Collections.emptySet(), Collections.emptySet());
 
 	public PresenceFiltered(Room room) {
 		this.room = room;
@@ -47,27 +54,18 @@ public class PresenceFiltered
 		return occupantsPresenceFiltered;
 	}
 
+	/**
+	 * Returns immutable set of JIDs of filtered occupants.
+	 */
 	public Collection<JID> getOccupantsPresenceFilteredJIDs() {
-
-		Collection<JID> occupantsJIDs = new ConcurrentSkipListSet<JID>();
-		for (BareJID jid : occupantsPresenceFiltered) {
-			for (String occupantsNickname : room.getOccupantsNicknames(jid)) {
-				for (JID occuJID : room.getOccupantsJidsByNickname(occupantsNickname)) {
-					occupantsJIDs.add(occuJID);
-				}
-			}
-		}
-		return occupantsJIDs;
+		return getSnapshot().jids;
 	}
 
+	/**
+	 * Returns immutable set of nicknames of filtered occupants.
+	 */
 	public Collection<String> getOccupantsPresenceFilteredNicknames() {
-		Collection<String> occupantsNicknames = new ConcurrentSkipListSet<String>();
-		for (BareJID jid : occupantsPresenceFiltered) {
-			for (String occupantsNickname : room.getOccupantsNicknames(jid)) {
-				occupantsNicknames.add(occupantsNickname);
-			}
-		}
-		return occupantsNicknames;
+		return getSnapshot().nicknames;
 	}
 
 	@Override
@@ -79,31 +77,58 @@ public class PresenceFiltered
 	}
 
 	@Override
-	public void onOccupantAdded(Room room, JID occupantJid) {
+	public synchronized void onOccupantAdded(Room room, JID occupantJid) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Adding: " + occupantJid + " to occupantsPresenceFiltered: " +
 					Arrays.asList(occupantsPresenceFiltered));
 		}
 		occupantsPresenceFiltered.add(occupantJid.getBareJID());
+		final String nickname = room.getOccupantsNickname(occupantJid);
+		if (nickname != null) {
+			filteredJids.put(occupantJid, nickname);
+		}
+		version.incrementAndGet();
 	}
 
 	@Override
-	public void onOccupantChangedPresence(Room room, JID occupantJid, String nickname, Element presence,
-										  boolean newOccupant) {
-		// we don't need to do anything here
+	public synchronized void onOccupantChangedPresence(Room room, JID occupantJid, String nickname, Element presence,
+													   boolean newOccupant) {
+		// nickname may be changed together with presence
+		if (nickname != null && filteredJids.containsKey(occupantJid) &&
+				!nickname.equals(filteredJids.put(occupantJid, nickname))) {
+			version.incrementAndGet();
+		}
+	}
+
+	synchronized void onNicknameChanged(JID[] occupantJids, String nickname) {
+		boolean changed = false;
+		for (JID occupantJid : occupantJids) {
+			if (filteredJids.containsKey(occupantJid)) {
+				filteredJids.put(occupantJid, nickname);
+				changed = true;
+			}
+		}
+		if (changed) {
+			version.incrementAndGet();
+		}
 	}
 
 	@Override
-	public void onOccupantRemoved(Room room, JID occupantJid) {
+	public synchronized void onOccupantRemoved(Room room, JID occupantJid) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Removing: " + occupantJid + " to occupantsPresenceFiltered: " +
 					Arrays.asList(occupantsPresenceFiltered));
 		}
-		occupantsPresenceFiltered.remove(occupantJid.getBareJID());
+		filteredJids.remove(occupantJid);
+		final BareJID bareJid = occupantJid.getBareJID();
+		if (!hasFilteredJid(bareJid)) {
+			occupantsPresenceFiltered.remove(bareJid);
+		}
+		version.incrementAndGet();
 	}
 
 	@Override
-	public void onSetAffiliation(Room room, BareJID jid, Affiliation newAffiliation) {
+	public synchronized void onSetAffiliation(Room room, BareJID jid, Affiliation newAffiliation) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Modifying affiliation of: " + jid + " on occupantsPresenceFiltered: " +
 					Arrays.asList(occupantsPresenceFiltered));
@@ -111,9 +136,59 @@ public class PresenceFiltered
 		Collection<Affiliation> presenceFilterFrom = room.getConfig().getPresenceFilteredAffiliations();
 		if (presenceFilterFrom.contains(room.getAffiliation(jid))) {
 			occupantsPresenceFiltered.add(jid);
-
+			for (String nickname : room.getOccupantsNicknames(jid)) {
+				for (JID occupantJid : room.getOccupantsJidsByNickname(nickname)) {
+					filteredJids.put(occupantJid, nickname);
+				}
+			}
 		} else {
 			occupantsPresenceFiltered.remove(jid);
+			filteredJids.keySet().removeIf(occupantJid -> jid.equals(occupantJid.getBareJID()));
+		}
+		version.incrementAndGet();
+	}
+
+	private boolean hasFilteredJid(BareJID bareJid) {
+		for (String nickname : room.getOccupantsNicknames(bareJid)) {
+			for (JID occupantJid : room.getOccupantsJidsByNickname(nickname)) {
+				if (filteredJids.containsKey(occupantJid)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot s = this.snapshot;
+		final long current = version.get();
+		if (s.version == current) {
+			return s;
+		}
+		synchronized (this) {
+			s = this.snapshot;
+			if (s.version == version.get()) {
+				return s;
+			}
+			final long v = version.get();
+			final Set<JID> jids = new HashSet<>(filteredJids.keySet());
+			final Set<String> nicknames = new HashSet<>(filteredJids.values());
+			s = new Snapshot(v, Collections.unmodifiableSet(jids), Collections.unmodifiableSet(nicknames));
+			this.snapshot = s;
+			return s;
+		}
+	}
+
+	private static final class Snapshot {
+
+		private final Set<JID> jids;
+		private final Set<String> nicknames;
+		private final long version;
+
+		Snapshot(long version, Set<JID> jids, Set<String> nicknames) {
+			this.version = version;
+			this.jids = jids;
+			this.nicknames = nicknames;
 		}
 	}
 }
@@ -26,6 +26,7 @@ import tigase.xmpp.jid.JID;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,7 +54,8 @@ public class PresenceStore {
 
 	private final Map<BareJID, Presence> bestPresence = new ConcurrentHashMap<>();
 	private final Map<JID, Presence> presenceByJid = new ConcurrentHashMap<>();
-	private PresenceDeliveryLogic presenceOrdering;
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile PresenceDeliveryLogic presenceOrdering;
 	private Map<BareJID, Map<String, Presence>> presencesMapByBareJid = new ConcurrentHashMap<>();
 
 	public PresenceStore() {
@@ -64,7 +66,7 @@ public class PresenceStore {
 		presenceOrdering = pdl;
 	}
 
-	public void clear() {
+	public synchronized void clear() {
 		presenceByJid.clear();
 		bestPresence.clear();
 		presencesMapByBareJid.clear();
@@ -73,30 +75,28 @@ public class PresenceStore {
 	// ~--- methods
 	// --------------------------------------------------------------
 
-	private Presence findHighPriorityPresence(final BareJID jid) {
-		return findPresence(jid, (result, x) -> {
-			if ((result == null) || ((x.type == null) && (x.priority > result.priority ||
-					(x.priority == result.priority && x.lastUpdated.after(result.lastUpdated))))) {
-				return 1;
-			} else {
-				return -1;
-			}
-
-		});
-	}
-
-	private Presence findLastPresence(final BareJID jid) {
-		return findPresence(jid, (result, x) -> {
-			Date l = x.lastUpdated;
-			if ((result == null) || ((l.after(result.lastUpdated)) && (x.type == null))) {
-				return 1;
-			} else {
-				return -1;
-			}
-		});
+	/**
+	 * Checks if presence <code>x</code> should be selected as best presence instead of <code>current</code>.
+	 * Available presences are always preferred, then presences are compared according to delivery logic. Sequence
+	 * number is used as a tie-breaker, as timestamps of presences received within the same millisecond are equal.
+	 */
+	private boolean isBetter(final Presence x, final Presence current, final PresenceDeliveryLogic logic) {
+		if (current == null) {
+			return true;
+		}
+		if ((x.type == null) != (current.type == null)) {
+			return x.type == null;
+		}
+		if (logic == PresenceDeliveryLogic.PREFERE_PRIORITY && x.priority != current.priority) {
+			return x.priority > current.priority;
+		}
+		if (x.lastUpdated != current.lastUpdated) {
+			return x.lastUpdated > current.lastUpdated;
+		}
+		return x.sequence > current.sequence;
 	}
 
-	private Presence findPresence(final BareJID jid, final Comparator<Presence> c) {
+	private Presence findPresence(final BareJID jid, final PresenceDeliveryLogic logic) {
 		Map<String, Presence> resourcesPresence = this.presencesMapByBareJid.get(jid);
 		Presence result = null;
 
@@ -105,16 +105,10 @@ public class PresenceStore {
 		}
 
 		if (resourcesPresence != null) {
-			Iterator<Presence> it = resourcesPresence.values().iterator();
-
-			while (it.hasNext()) {
-				Presence x = it.next();
-				int r = c.compare(result, x);
-
-				if (r > 0) {
+			for (Presence x : resourcesPresence.values()) {
+				if (isBetter(x, result, logic)) {
 					result = x;
 				}
-
 			}
 		}
 		return result;
@@ -174,7 +168,13 @@ public class PresenceStore {
 		return result;
 	}
 
-	public void remove(final JID from) throws TigaseStringprepException {
+	/**
+	 * Removes presence of <code>from</code>.
+	 *
+	 * @return <code>true</code> if best presence of bare JID has changed.
+	 */
+	public synchronized boolean remove(final JID from) throws TigaseStringprepException {
+		final Presence before = this.bestPresence.get(from.getBareJID());
 		final String resource = (from.getResource() == null) ? "" : from.getResource();
 
 		this.presenceByJid.remove(from);
@@ -187,27 +187,40 @@ public class PresenceStore {
 				this.presencesMapByBareJid.remove(from.getBareJID());
 			}
 		}
-		updateBestPresence(from.getBareJID(), null);
+		presenceRemoved(from);
+		return isChanged(before, this.bestPresence.get(from.getBareJID()));
 	}
 
-	public void setOrdening(PresenceDeliveryLogic pdl) {
+	public synchronized void setOrdening(PresenceDeliveryLogic pdl) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Setting presence delivery logic to: " + pdl);
 		}
-		presenceOrdering = pdl;
+		if (presenceOrdering != pdl) {
+			presenceOrdering = pdl;
+			for (BareJID jid : presencesMapByBareJid.keySet()) {
+				recalculateBestPresence(jid);
+			}
+		}
 	}
 
-	public void update(final Element presence) throws TigaseStringprepException {
+	/**
+	 * Stores presence of sender of <code>presence</code>.
+	 *
+	 * @return <code>true</code> if best presence of bare JID has changed, <code>false</code> if it is semantically
+	 * the same as before (ie. client resent the same presence).
+	 */
+	public synchronized boolean update(final Element presence) throws TigaseStringprepException {
 		String f = presence.getAttributeStaticStr(Packet.FROM_ATT);
 
 		if (f == null) {
-			return;
+			return false;
 		}
 
 		final JID from = JID.jidInstance(f);
 		final BareJID bareFrom = from.getBareJID();
 		final String resource = (from.getResource() == null) ? "" : from.getResource();
-		final Presence p = new Presence(presence);
+		final Presence p = new Presence(presence, from);
+		final Presence before = this.bestPresence.get(bareFrom);
 
 		if ((p.type != null) && p.type.equals("unavailable")) {
 			this.presenceByJid.remove(from);
@@ -220,6 +233,12 @@ public class PresenceStore {
 					this.presencesMapByBareJid.remove(bareFrom);
 				}
 			}
+			if (presenceOrdering == PresenceDeliveryLogic.PREFERE_LAST) {
+				// last received presence is always selected, even if it is unavailable
+				setBestPresence(bareFrom, p);
+			} else {
+				presenceRemoved(from);
+			}
 		} else {
 			this.presenceByJid.put(from, p);
 
@@ -231,29 +250,110 @@ public class PresenceStore {
 			}
 			m.put(resource, p);
 
+			presenceUpdated(bareFrom, p);
 		}
-		updateBestPresence(bareFrom, p);
+		return isChanged(before, this.bestPresence.get(bareFrom));
 	}
 
-	private void updateBestPresence(final BareJID bareFrom, final Presence currentPresence)
-			throws TigaseStringprepException {
-		Presence x;
-
-		switch (presenceOrdering) {
-			case PREFERE_PRIORITY:
-				x = findHighPriorityPresence(bareFrom);
-				break;
-			case PREFERE_LAST:
-				if (currentPresence == null) {
-					x = findLastPresence(bareFrom);
-				} else {
-					x = currentPresence;
-				}
-				break;
-			default:
-				throw new RuntimeException("Unknown presenceOrdering");
+	private static boolean isChanged(final Presence before, final Presence after) {
+		if (before == null || after == null) {
+			return before != after;
+		}
+		if (before.fingerprint != after.fingerprint) {
+			return true;
+		}
+		// fingerprints may collide, so presence is not suppressed unless it is really the same
+		return before != after && !isSameContent(before.element, after.element);
+	}
+
+	/**
+	 * Checks if presences have the same type and children, ignoring <code>from</code>, <code>to</code> and
+	 * <code>id</code> attributes.
+	 */
+	static boolean isSameContent(final Element x, final Element y) {
+		if (!Objects.equals(x.getAttributeStaticStr(Packet.TYPE_ATT), y.getAttributeStaticStr(Packet.TYPE_ATT))) {
+			return false;
+		}
+		return isSameChildren(x, y);
+	}
+
+	/**
+	 * Calculates fingerprint of presence based on its type and children, so presences which differ only in
+	 * <code>from</code>, <code>to</code> or <code>id</code> attributes have the same fingerprint.
+	 */
+	static int calculateFingerprint(final Element presence) {
+		int result = Objects.hashCode(presence.getAttributeStaticStr(Packet.TYPE_ATT));
+		List<Element> children = presence.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				result = 31 * result + elementHash(child);
+			}
+		}
+		return result;
+	}
+
+	// elements are compared and hashed in place, without serializing them to strings
+	private static boolean isSameElement(final Element x, final Element y) {
+		return Objects.equals(x.getName(), y.getName()) && Objects.equals(x.getXMLNS(), y.getXMLNS()) &&
+				Objects.equals(x.getCData(), y.getCData()) && Objects.equals(x.getAttributes(), y.getAttributes()) &&
+				isSameChildren(x, y);
+	}
+
+	private static boolean isSameChildren(final Element x, final Element y) {
+		List<Element> xChildren = x.getChildren();
+		List<Element> yChildren = y.getChildren();
+		int xSize = (xChildren == null) ? 0 : xChildren.size();
+		int ySize = (yChildren == null) ? 0 : yChildren.size();
+		if (xSize != ySize) {
+			return false;
 		}
+		for (int i = 0; i < xSize; i++) {
+			if (!isSameElement(xChildren.get(i), yChildren.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
 
+	private static int elementHash(final Element element) {
+		int result = Objects.hashCode(element.getName());
+		result = 31 * result + Objects.hashCode(element.getXMLNS());
+		result = 31 * result + Objects.hashCode(element.getCData());
+		result = 31 * result + Objects.hashCode(element.getAttributes());
+		List<Element> children = element.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				result = 31 * result + elementHash(child);
+			}
+		}
+		return result;
+	}
+
+	private void presenceRemoved(final JID from) {
+		final BareJID bareFrom = from.getBareJID();
+		final Presence current = this.bestPresence.get(bareFrom);
+		// best presence needs to be recalculated only if it was sent from removed resource
+		if (current != null && current.from.equals(from)) {
+			recalculateBestPresence(bareFrom);
+		}
+	}
+
+	private void presenceUpdated(final BareJID bareFrom, final Presence p) {
+		final Presence current = this.bestPresence.get(bareFrom);
+		if (current == null || presenceOrdering == PresenceDeliveryLogic.PREFERE_LAST ||
+				isBetter(p, current, presenceOrdering)) {
+			setBestPresence(bareFrom, p);
+		} else if (current.from.equals(p.from)) {
+			// current best presence was replaced by a worse one
+			recalculateBestPresence(bareFrom);
+		}
+	}
+
+	private void recalculateBestPresence(final BareJID bareFrom) {
+		setBestPresence(bareFrom, findPresence(bareFrom, presenceOrdering));
+	}
+
+	private void setBestPresence(final BareJID bareFrom, final Presence x) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Selected BestPresence: " + (x != null ? x.element.toString() : "n/a"));
 		}
@@ -271,35 +371,53 @@ public class PresenceStore {
 	public class Presence {
 
 		final Element element;
+		final int fingerprint;
 		final JID from;
-		final Date lastUpdated;
+		final long lastUpdated;
 		final int priority;
+		final long sequence;
 		final String show;
 		final String type;
 
 		public Presence(Element presence) {
-			this.lastUpdated = new Date();
+			this(presence, JID.jidInstanceNS(presence.getAttributeStaticStr(Packet.FROM_ATT)));
+		}
+
+		Presence(Element presence, JID from) {
+			this.lastUpdated = System.currentTimeMillis();
+			this.sequence = PresenceStore.this.sequence.incrementAndGet();
 			this.element = presence;
 			this.type = presence.getAttributeStaticStr(Packet.TYPE_ATT);
-			this.from = JID.jidInstanceNS(presence.getAttributeStaticStr(Packet.FROM_ATT));
+			this.from = from;
 
 			this.show = presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_SHOW_PATH);
 
 			String p = presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_PRIORITY_PATH);
 			int x = 0;
 
-			try {
-				x = Integer.parseInt(p);
-			} catch (Exception e) {
+			if (p != null) {
+				try {
+					x = Integer.parseInt(p.trim());
+				} catch (NumberFormatException e) {
+				}
 			}
 			this.priority = x;
+			this.fingerprint = calculateFingerprint(presence);
 		}
 
 		public Element getElement() {
 			return element;
 		}
 
+		public int getFingerprint() {
+			return fingerprint;
+		}
+
 		public Date getLastUpdated() {
+			return new Date(lastUpdated);
+		}
+
+		public long getLastUpdatedTimestamp() {
 			return lastUpdated;
 		}
 
@@ -313,8 +431,8 @@ public class PresenceStore {
 
 		@Override
 		public String toString() {
-			return "Presence[" + "priority=" + priority + ", type=" + type + ", show=" + show + ", from=" + from +
-					", lastUpdated=" + lastUpdated + "]";
+			return "Presence[" + "priority=" + priority + ", fingerprint=" + fingerprint + ", type=" + type + ", show=" + show + ", from=" + from +
+					", lastUpdated=" + lastUpdated + ", sequence=" + sequence + "]";
 		}
 	}
 }
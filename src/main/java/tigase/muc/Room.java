@@ -29,6 +29,9 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,7 +51,13 @@ public class Room
 	private final List<RoomListener> listeners = new CopyOnWriteArrayList<RoomListener>();
 	private final List<Room.RoomOccupantListener> occupantListeners = new CopyOnWriteArrayList<Room.RoomOccupantListener>();
 	private final Map<String, OccupantEntry> occupants = new ConcurrentHashMap<String, OccupantEntry>();
+	private final Map<JID, OccupantEntry> occupantsByJid = new ConcurrentHashMap<JID, OccupantEntry>();
+	private final Map<BareJID, Set<String>> occupantsNicknamesByBareJid = new ConcurrentHashMap<BareJID, Set<String>>();
 	private final Map<String, Object> roomCustomData = new ConcurrentHashMap<String, Object>();
+	private final RosterChangelog rosterChangelog = new RosterChangelog(this.occupants::containsKey);
+	private final AtomicLong rosterVersion = new AtomicLong();
+	private volatile Roster roster;
+	private final ReentrantLock writeLock = new ReentrantLock();
 	private boolean roomLocked;
 	private String subject;
 	private Date subjectChangeDate;
@@ -66,10 +75,16 @@ public class Room
 	}
 
 	public void addAffiliationByJid(BareJID jid, Affiliation affiliation) throws RepositoryException {
-		if (affiliation == Affiliation.none) {
-			this.affiliations.remove(jid);
-		} else {
-			this.affiliations.put(jid, affiliation);
+		writeLock.lock();
+		try {
+			if (affiliation == Affiliation.none) {
+				this.affiliations.remove(jid);
+			} else {
+				this.affiliations.put(jid, affiliation);
+			}
+			affiliationChanged(jid);
+		} finally {
+			writeLock.unlock();
 		}
 		fireOnSetAffiliation(jid, affiliation);
 	}
@@ -80,39 +95,48 @@ public class Room
 
 	public void addOccupantByJid(JID senderJid, String nickName, Role role, Element pe)
 			throws TigaseStringprepException {
-		OccupantEntry entry = this.occupants.get(nickName);
-		this.presences.update(pe);
-		if (entry == null) {
-			entry = new OccupantEntry();
-			entry.nickname = nickName;
-			entry.jid = senderJid.getBareJID();
-			this.occupants.put(nickName, entry);
-
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Room {0}. Created OccupantEntry for {1}, nickname={2}",
-						new Object[]{config.getRoomJID(), senderJid, nickName});
+		writeLock.lock();
+		try {
+			OccupantEntry entry = this.occupants.get(nickName);
+			this.presences.update(pe);
+			if (entry == null) {
+				entry = new OccupantEntry();
+				entry.nickname = nickName;
+				entry.jid = senderJid.getBareJID();
+				this.occupants.put(nickName, entry);
+				addNicknameToIndex(entry.jid, nickName);
+
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Room {0}. Created OccupantEntry for {1}, nickname={2}",
+							new Object[]{config.getRoomJID(), senderJid, nickName});
+				}
 			}
-		}
 
-		entry.role = role;
-		boolean added = false;
-		synchronized (entry.jids) {
-			added = entry.jids.add(senderJid);
-		}
+			entry.role = role;
+			boolean added = false;
+			synchronized (entry.jids) {
+				added = entry.jids.add(senderJid);
+			}
+			this.occupantsByJid.put(senderJid, entry);
+			rosterChanged();
+			rosterChangelog.changed(nickName);
 
-		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "Room {0}. {1} occupant {2} ({3}) to room with role={4}; filtering enabled: {5}",
-					new Object[]{config.getRoomJID(), (added ? "Added" : "Updated"), senderJid, nickName, role,
-								 config.isPresenceFilterEnabled()});
-		}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Room {0}. {1} occupant {2} ({3}) to room with role={4}; filtering enabled: {5}",
+						new Object[]{config.getRoomJID(), (added ? "Added" : "Updated"), senderJid, nickName, role,
+									 config.isPresenceFilterEnabled()});
+			}
 
-		if (added) {
-			if (!config.isPresenceFilterEnabled() || (config.isPresenceFilterEnabled() &&
-					(!config.getPresenceFilteredAffiliations().isEmpty() && config.getPresenceFilteredAffiliations()
-							.contains(getAffiliation(senderJid.getBareJID()))))) {
-				fireOnOccupantAdded(senderJid);
-				fireOnOccupantChangedPresence(senderJid, nickName, pe, true);
+			if (added) {
+				if (!config.isPresenceFilterEnabled() || (config.isPresenceFilterEnabled() &&
+						(!config.getPresenceFilteredAffiliations().isEmpty() && config.getPresenceFilteredAffiliations()
+								.contains(getAffiliation(senderJid.getBareJID()))))) {
+					fireOnOccupantAdded(senderJid);
+					fireOnOccupantChangedPresence(senderJid, nickName, pe, true);
+				}
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
@@ -121,12 +145,28 @@ public class Room
 	}
 
 	public void changeNickName(JID senderJid, String nickName) {
-		OccupantEntry occ = getBySenderJid(senderJid);
-		String oldNickname = occ.nickname;
-
-		this.occupants.remove(oldNickname);
-		occ.nickname = nickName;
-		this.occupants.put(nickName, occ);
+		final String oldNickname;
+		writeLock.lock();
+		try {
+			OccupantEntry occ = getBySenderJid(senderJid);
+			oldNickname = occ.nickname;
+
+			this.occupants.remove(oldNickname);
+			removeNicknameFromIndex(occ.jid, oldNickname);
+			occ.nickname = nickName;
+			this.occupants.put(nickName, occ);
+			addNicknameToIndex(occ.jid, nickName);
+			rosterChanged();
+			rosterChangelog.changed(oldNickname);
+			rosterChangelog.changed(nickName);
+			final JID[] jids;
+			synchronized (occ.jids) {
+				jids = occ.jids.toArray(new JID[occ.jids.size()]);
+			}
+			presenceFiltered.onNicknameChanged(jids, nickName);
+		} finally {
+			writeLock.unlock();
+		}
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Room " + config.getRoomJID() + ". Occupant " + senderJid + " changed nickname from " +
@@ -164,8 +204,16 @@ public class Room
 	}
 
 	public void setAffiliations(Map<BareJID, Affiliation> affiliations) {
-		this.affiliations.clear();
-		this.affiliations.putAll(affiliations);
+		writeLock.lock();
+		try {
+			this.affiliations.clear();
+			this.affiliations.putAll(affiliations);
+			for (String nickname : this.occupants.keySet()) {
+				rosterChangelog.changed(nickname);
+			}
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	public Collection<JID> getAllOccupantsJID() {
@@ -201,6 +249,13 @@ public class Room
 		return getLastPresenceCopyByJid(occupantJid);
 	}
 
+	/**
+	 * Returns last presence of occupant as stored in room, without copying it. Returned element must not be modified.
+	 */
+	public Element getLastPresence(BareJID occupantJid) {
+		return this.presences.getBestPresence(occupantJid);
+	}
+
 	public Element getLastPresenceCopyByJid(BareJID occupantJid) {
 		Element e = this.presences.getBestPresence(occupantJid);
 		if (e != null) {
@@ -254,15 +309,12 @@ public class Room
 	}
 
 	public Collection<String> getOccupantsNicknames(BareJID bareJid) {
-		Set<String> result = new HashSet<String>();
-
-		for (Map.Entry<String, OccupantEntry> e : this.occupants.entrySet()) {
-			if (e.getValue().jid.equals(bareJid)) {
-				result.add(e.getKey());
-			}
+		Set<String> nicknames = bareJid == null ? null : this.occupantsNicknamesByBareJid.get(bareJid);
+		if (nicknames == null) {
+			return Collections.emptyList();
 		}
 
-		return Collections.unmodifiableCollection(new ConcurrentSkipListSet(result));
+		return Collections.unmodifiableCollection(new ArrayList<String>(nicknames));
 	}
 
 	public PresenceFiltered getPresenceFiltered() {
@@ -280,6 +332,52 @@ public class Room
 		return entry.role == null ? Role.none : entry.role;
 	}
 
+	/**
+	 * Returns lock serializing all modifications of occupants, roles, affiliations and presences of this room. Room
+	 * methods acquire it internally, so it only needs to be held by callers which have to perform a check and a
+	 * modification atomically (ie. nickname conflict check and joining). Readers never acquire it and should rely on
+	 * {@link #getRoster()} instead.
+	 */
+	public Lock getWriteLock() {
+		return writeLock;
+	}
+
+	/**
+	 * Returns log of changes of occupants used for presence versioning.
+	 */
+	public RosterChangelog getRosterChangelog() {
+		return rosterChangelog;
+	}
+
+	/**
+	 * Returns immutable snapshot of current occupants of the room. Snapshot is shared between callers and rebuilt only
+	 * after list of occupants, their JIDs, nicknames or roles changes, so iterating over it does not allocate.
+	 */
+	public Roster getRoster() {
+		final long version = rosterVersion.get();
+		Roster r = this.roster;
+		if (r != null && r.version == version) {
+			return r;
+		}
+
+		final ArrayList<OccupantEntry> entries = new ArrayList<OccupantEntry>(this.occupants.values());
+		final Roster.Occupant[] items = new Roster.Occupant[entries.size()];
+		int i = 0;
+		for (OccupantEntry entry : entries) {
+			final JID[] jids;
+			synchronized (entry.jids) {
+				jids = entry.jids.toArray(new JID[entry.jids.size()]);
+			}
+			items[i++] = new Roster.Occupant(entry.nickname, entry.jid, entry.role == null ? Role.none : entry.role,
+											 jids);
+		}
+		Arrays.sort(items, Roster.NICKNAME_ORDER);
+
+		r = new Roster(version, items);
+		this.roster = r;
+		return r;
+	}
+
 	public Object getRoomCustomData(String key) {
 		return roomCustomData.get(key);
 	}
@@ -333,53 +431,91 @@ public class Room
 	 * @return <code>true</code> if no more JIDs assigned to nickname. In other words: nickname is removed
 	 */
 	public boolean removeOccupant(JID jid) {
-		OccupantEntry e = getBySenderJid(jid);
-		if (e != null) {
-			try {
-				synchronized (e.jids) {
-					e.jids.remove(jid);
-					if (log.isLoggable(Level.FINEST)) {
-						log.finest("Room " + config.getRoomJID() + ". Removed JID " + jid + " of occupant");
-					}
-					if (e.jids.isEmpty()) {
-						this.occupants.remove(e.nickname);
+		writeLock.lock();
+		try {
+			OccupantEntry e = getBySenderJid(jid);
+			if (e != null) {
+				try {
+					synchronized (e.jids) {
+						e.jids.remove(jid);
+						this.occupantsByJid.remove(jid);
 						if (log.isLoggable(Level.FINEST)) {
-							log.finest("Room " + config.getRoomJID() + ". Removed occupant " + jid);
+							log.finest("Room " + config.getRoomJID() + ". Removed JID " + jid + " of occupant");
+						}
+						if (e.jids.isEmpty()) {
+							this.occupants.remove(e.nickname);
+							removeNicknameFromIndex(e.jid, e.nickname);
+							if (log.isLoggable(Level.FINEST)) {
+								log.finest("Room " + config.getRoomJID() + ". Removed occupant " + jid);
+							}
+							return true;
 						}
-						return true;
 					}
+				} finally {
+					rosterChanged();
+					rosterChangelog.changed(e.nickname);
+					fireOnOccupantRemoved(jid);
 				}
-			} finally {
-				fireOnOccupantRemoved(jid);
 			}
+			return false;
+		} finally {
+			writeLock.unlock();
 		}
-		return false;
 	}
 
 	public void removeOccupant(String occupantNick) {
-		OccupantEntry e = this.occupants.remove(occupantNick);
-		if (e != null) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Room " + config.getRoomJID() + ". Removed occupant " + occupantNick);
-			}
+		writeLock.lock();
+		try {
+			OccupantEntry e = this.occupants.remove(occupantNick);
+			if (e != null) {
+				removeNicknameFromIndex(e.jid, e.nickname);
+				final JID[] jids;
+				synchronized (e.jids) {
+					jids = e.jids.toArray(new JID[e.jids.size()]);
+				}
+				for (JID jid : jids) {
+					this.occupantsByJid.remove(jid, e);
+				}
+				rosterChanged();
+				rosterChangelog.changed(occupantNick);
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest("Room " + config.getRoomJID() + ". Removed occupant " + occupantNick);
+				}
 
-			for (JID jid : e.jids) {
-				fireOnOccupantRemoved(jid);
+				for (JID jid : jids) {
+					fireOnOccupantRemoved(jid);
+				}
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
 	public void setNewAffiliation(BareJID user, Affiliation affiliation) {
-		this.affiliations.put(user, affiliation);
+		writeLock.lock();
+		try {
+			this.affiliations.put(user, affiliation);
+			affiliationChanged(user);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	public void setNewRole(String nickname, Role newRole) {
-		OccupantEntry entry = this.occupants.get(nickname);
-		if (entry != null) {
-			entry.role = newRole;
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Room " + config.getRoomJID() + ". Changed role of occupant " + nickname + " to " + newRole);
+		writeLock.lock();
+		try {
+			OccupantEntry entry = this.occupants.get(nickname);
+			if (entry != null) {
+				entry.role = newRole;
+				rosterChanged();
+				rosterChangelog.changed(nickname);
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest(
+							"Room " + config.getRoomJID() + ". Changed role of occupant " + nickname + " to " + newRole);
+				}
 			}
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
@@ -396,20 +532,37 @@ public class Room
 		}
 	}
 
-	public void updatePresenceByJid(JID jid, String nickname, Element cp) throws TigaseStringprepException {
-		if (cp == null) {
-			this.presences.remove(jid);
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Room " + config.getRoomJID() + ". Removed presence from " + jid + " (" + nickname + ")");
+	/**
+	 * Updates presence of occupant.
+	 *
+	 * @return <code>true</code> if presence of occupant visible to other occupants has changed.
+	 */
+	public boolean updatePresenceByJid(JID jid, String nickname, Element cp) throws TigaseStringprepException {
+		writeLock.lock();
+		try {
+			final boolean changed;
+			if (cp == null) {
+				changed = this.presences.remove(jid);
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest(
+							"Room " + config.getRoomJID() + ". Removed presence from " + jid + " (" + nickname + ")");
+				}
+			} else {
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest(
+							"Room " + config.getRoomJID() + ". Updated presence from " + jid + " (" + nickname + ")");
+				}
+				changed = this.presences.update(cp);
 			}
-		} else {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Room " + config.getRoomJID() + ". Updated presence from " + jid + " (" + nickname + ")");
+			if (changed) {
+				rosterChangelog.changed(nickname);
 			}
-			this.presences.update(cp);
-		}
 
-		fireOnOccupantChangedPresence(jid, nickname, cp, false);
+			fireOnOccupantChangedPresence(jid, nickname, cp, false);
+			return changed;
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	private void fireOnOccupantAdded(JID occupantJid) {
@@ -442,15 +595,46 @@ public class Room
 		}
 	}
 
-	private OccupantEntry getBySenderJid(JID sender) {
-		for (Map.Entry<String, OccupantEntry> e : occupants.entrySet()) {
-			synchronized (e.getValue().jids) {
-				if (e.getValue().jids.contains(sender)) {
-					return e.getValue();
-				}
+	private void addNicknameToIndex(BareJID jid, String nickname) {
+		Set<String> nicknames = this.occupantsNicknamesByBareJid.get(jid);
+		if (nicknames == null) {
+			nicknames = ConcurrentHashMap.newKeySet();
+			Set<String> current = this.occupantsNicknamesByBareJid.putIfAbsent(jid, nicknames);
+			if (current != null) {
+				nicknames = current;
+			}
+		}
+		nicknames.add(nickname);
+	}
+
+	private void rosterChanged() {
+		this.rosterVersion.incrementAndGet();
+	}
+
+	private void affiliationChanged(BareJID jid) {
+		final Set<String> nicknames = this.occupantsNicknamesByBareJid.get(jid);
+		if (nicknames != null) {
+			for (String nickname : nicknames) {
+				rosterChangelog.changed(nickname);
+			}
+		}
+	}
+
+	private void removeNicknameFromIndex(BareJID jid, String nickname) {
+		Set<String> nicknames = this.occupantsNicknamesByBareJid.get(jid);
+		if (nicknames != null) {
+			nicknames.remove(nickname);
+			if (nicknames.isEmpty()) {
+				this.occupantsNicknamesByBareJid.remove(jid, nicknames);
 			}
 		}
-		return null;
+	}
+
+	private OccupantEntry getBySenderJid(JID sender) {
+		if (sender == null) {
+			return null;
+		}
+		return this.occupantsByJid.get(sender);
 	}
 
 	public static interface RoomFactory {
@@ -478,13 +662,129 @@ public class Room
 		void onOccupantRemoved(Room room, JID occupantJid);
 	}
 
+	/**
+	 * Immutable snapshot of room occupants ordered by nickname.
+	 */
+	public static final class Roster {
+
+		static final Comparator<Occupant> NICKNAME_ORDER = new Comparator<Occupant>() {
+			@Override
+			public int compare(Occupant o1, Occupant o2) {
+				return o1.nickname.compareTo(o2.nickname);
+			}
+		};
+
+		private final Occupant[] occupants;
+		private final long version;
+		private volatile Roster moderators;
+
+		Roster(long version, Occupant[] occupants) {
+			this.version = version;
+			this.occupants = occupants;
+		}
+
+		public Occupant get(int index) {
+			return occupants[index];
+		}
+
+		/**
+		 * Returns snapshot containing only occupants with moderator role. It is calculated once per snapshot.
+		 */
+		public Roster getModerators() {
+			Roster result = moderators;
+			if (result == null) {
+				final ArrayList<Occupant> list = new ArrayList<Occupant>();
+				for (Occupant occupant : occupants) {
+					if (occupant.role == Role.moderator) {
+						list.add(occupant);
+					}
+				}
+				result = list.size() == occupants.length
+						 ? this
+						 : new Roster(version, list.toArray(new Occupant[list.size()]));
+				moderators = result;
+			}
+			return result;
+		}
+
+		/**
+		 * Finds occupant by nickname.
+		 *
+		 * @return occupant or <code>null</code> if there is no occupant with such nickname in snapshot.
+		 */
+		public Occupant getOccupant(String nickname) {
+			int low = 0;
+			int high = occupants.length - 1;
+			while (low <= high) {
+				final int mid = (low + high) >>> 1;
+				final int cmp = occupants[mid].nickname.compareTo(nickname);
+				if (cmp < 0) {
+					low = mid + 1;
+				} else if (cmp > 0) {
+					high = mid - 1;
+				} else {
+					return occupants[mid];
+				}
+			}
+			return null;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public int size() {
+			return occupants.length;
+		}
+
+		public static final class Occupant {
+
+			private final BareJID jid;
+			private final JID[] jids;
+			private final String nickname;
+			private final Role role;
+
+			Occupant(String nickname, BareJID jid, Role role, JID[] jids) {
+				this.nickname = nickname;
+				this.jid = jid;
+				this.role = role;
+				this.jids = jids;
+			}
+
+			public BareJID getJid() {
+				return jid;
+			}
+
+			public JID getJid(int index) {
+				return jids[index];
+			}
+
+			public int getJidsCount() {
+				return jids.length;
+			}
+
+			public String getNickname() {
+				return nickname;
+			}
+
+			public Role getRole() {
+				return role;
+			}
+
+			@Override
+			public String toString() {
+				return "[" + nickname + "; " + role + "; " + jid + "; " + Arrays.toString(jids) + "]";
+			}
+		}
+	}
+
 	private static class OccupantEntry {
 
 		private final Set<JID> jids = new HashSet<JID>();
-		public BareJID jid;
-		private String nickname;
+		public volatile BareJID jid;
+		private volatile String nickname;
 
-		private Role role = Role.none;
+		private volatile Role role = Role.none;
 
 		@Override
 		public String toString() {
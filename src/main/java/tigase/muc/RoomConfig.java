@@ -48,6 +48,8 @@ public class RoomConfig {
 	public static final String MUC_ROOMCONFIG_ROOMDESC_KEY = "muc#roomconfig_roomdesc";
 	public static final String MUC_ROOMCONFIG_ROOMNAME_KEY = "muc#roomconfig_roomname";
 	public static final String MUC_ROOMCONFIG_ROOMSECRET_KEY = "muc#roomconfig_roomsecret";
+	public static final String TIGASE_ROOMCONFIG_LARGE_CHANNEL = "tigase#large_channel";
+	public static final String TIGASE_ROOMCONFIG_PRESENCE_DEBOUNCE_WINDOW = "tigase#presence_debounce_window";
 	public static final String TIGASE_ROOMCONFIG_PRESENCE_DELIVERY_LOGIC = "tigase#presence_delivery_logic";
 	public static final String TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS = "tigase#presence_filtered_affiliations";
 	public static final String TIGASE_ROOMCONFIG_PRESENCE_FILTERING = "tigase#presence_filtering";
@@ -276,6 +278,23 @@ public class RoomConfig {
 		return asString(form.getAsString(MUC_ROOMCONFIG_ROOMSECRET_KEY), "");
 	}
 
+	/**
+	 * Time window (in milliseconds) in which presence changes of occupant are collapsed into single broadcast.
+	 *
+	 * @return time window in milliseconds, <code>0</code> if debouncing is disabled.
+	 */
+	public long getPresenceDebounceWindow() {
+		try {
+			String v = form.getAsString(TIGASE_ROOMCONFIG_PRESENCE_DEBOUNCE_WINDOW);
+			if (v == null || v.isEmpty()) {
+				return 0;
+			}
+			return Math.max(0, Long.parseLong(v));
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
 	public PresenceStore.PresenceDeliveryLogic getPresenceDeliveryLogic() {
 		String PDLasString = form.getAsString(TIGASE_ROOMCONFIG_PRESENCE_DELIVERY_LOGIC);
 		PresenceStore.PresenceDeliveryLogic pdl = PresenceStore.PresenceDeliveryLogic.valueOf(PDLasString);
@@ -357,6 +376,12 @@ public class RoomConfig {
 											asStringTable(PresenceStore.PresenceDeliveryLogic.values()),
 											asStringTable(PresenceStore.PresenceDeliveryLogic.values())));
 
+		form.addField(Field.fieldBoolean(TIGASE_ROOMCONFIG_LARGE_CHANNEL, Boolean.FALSE,
+										 "Large channel (broadcasting presence only to moderators)"));
+
+		form.addField(Field.fieldTextSingle(TIGASE_ROOMCONFIG_PRESENCE_DEBOUNCE_WINDOW, "0",
+											"Presence debounce window in milliseconds (0 to disable)"));
+
 		form.addField(Field.fieldBoolean(TIGASE_ROOMCONFIG_PRESENCE_FILTERING, Boolean.FALSE,
 										 "Enable filtering of presence (broadcasting presence only between selected groups"));
 
@@ -380,6 +405,13 @@ public class RoomConfig {
 		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_ENABLELOGGING_KEY), false);
 	}
 
+	/**
+	 * In large channel presences of occupants are delivered only to moderators and to the occupant itself.
+	 */
+	public boolean isLargeChannel() {
+		return asBoolean(form.getAsBoolean(TIGASE_ROOMCONFIG_LARGE_CHANNEL), false);
+	}
+
 	public boolean isPasswordProtectedRoom() {
 		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_PASSWORDPROTECTEDROOM_KEY), false);
 	}
@@ -0,0 +1,145 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Changelog of presences of room occupants, used to send only changed presences to occupants rejoining the room
+ * (presence versioning in the style of XEP-0436). Each change of presence, role, affiliation or JIDs of an occupant,
+ * as well as joining and leaving the room, increases version of roster.
+ * <br>
+ * For each nickname only version of its last change is kept. Nicknames of occupants which left the room are kept as
+ * tombstones, so rejoining occupants receive their unavailable presences. Number of tombstones is bounded by the
+ * highest number of occupants of the room (but not lower than configured minimum), so changelog survives mass
+ * reconnection of all occupants. When tombstone is removed, versions older than it are no longer accepted.
+ * <br>
+ * Version is prefixed with random identifier of the changelog, so versions issued before room was recreated (ie. after
+ * restart of the server) are not accepted.
+ */
+public class RosterChangelog {
+
+	public static final int DEFAULT_MIN_TOMBSTONES = 512;
+	public static final String XMLNS = "tigase:muc:roster-versioning:0";
+
+	private final String id = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+	private final int minTombstones;
+	private final Predicate<String> occupantPresent;
+	private final LinkedHashMap<String, Long> present = new LinkedHashMap<String, Long>();
+	private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<String, Long>();
+	private long forgottenVersion = 0;
+	private int maxPresent = 0;
+	private long version;
+
+	/**
+	 * @param occupantPresent checks if occupant with nickname is in room.
+	 */
+	public RosterChangelog(Predicate<String> occupantPresent) {
+		this(occupantPresent, DEFAULT_MIN_TOMBSTONES);
+	}
+
+	/**
+	 * @param occupantPresent checks if occupant with nickname is in room.
+	 * @param minTombstones number of tombstones kept even if there are less occupants.
+	 */
+	public RosterChangelog(Predicate<String> occupantPresent, int minTombstones) {
+		this.occupantPresent = occupantPresent;
+		this.minTombstones = minTombstones;
+	}
+
+	/**
+	 * Records change of occupant. Has to be called after change is applied to room.
+	 *
+	 * @param nickname nickname of occupant.
+	 */
+	public synchronized void changed(String nickname) {
+		if (nickname == null) {
+			return;
+		}
+		version++;
+		// entries are reinserted, so both maps are ordered by version
+		present.remove(nickname);
+		tombstones.remove(nickname);
+		if (occupantPresent.test(nickname)) {
+			present.put(nickname, version);
+			maxPresent = Math.max(maxPresent, present.size());
+		} else {
+			tombstones.put(nickname, version);
+			final int limit = Math.max(minTombstones, maxPresent);
+			final Iterator<Long> it = tombstones.values().iterator();
+			while (tombstones.size() > limit && it.hasNext()) {
+				forgottenVersion = Math.max(forgottenVersion, it.next());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns nicknames of occupants changed after given version of roster.
+	 *
+	 * @param knownVersion version of roster known to client.
+	 *
+	 * @return nicknames of changed occupants or <code>null</code> if version is not known or changes since that version
+	 * are no longer available.
+	 */
+	public synchronized Set<String> getChangedSince(String knownVersion) {
+		final long known = parseVersion(knownVersion);
+		if (known < 0 || known > version) {
+			return null;
+		}
+		if (known < forgottenVersion) {
+			// tombstone of occupant which left after this version was removed
+			return null;
+		}
+		final LinkedHashSet<String> result = new LinkedHashSet<String>();
+		addChangedSince(result, present, known);
+		addChangedSince(result, tombstones, known);
+		return result;
+	}
+
+	public synchronized String getVersion() {
+		return id + "-" + version;
+	}
+
+	private static void addChangedSince(Set<String> result, Map<String, Long> entries, long known) {
+		for (Map.Entry<String, Long> e : entries.entrySet()) {
+			if (e.getValue() > known) {
+				result.add(e.getKey());
+			}
+		}
+	}
+
+	private long parseVersion(String value) {
+		if (value == null || value.length() <= id.length() + 1 || !value.startsWith(id) ||
+				value.charAt(id.length()) != '-') {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.substring(id.length() + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.server.Iq;
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.server.Presence;
+import tigase.server.Priority;
+import tigase.xml.Element;
+
+import java.util.List;
+
+/**
+ * Classes of traffic handled by MUC component. Each class is processed with its own priority. Queues of component keep
+ * separate lane for each priority and take stanzas from lanes of higher priority first, so stanzas of lower priority
+ * classes (by default presences and chat states) wait in their own lanes and are dropped first when component is
+ * overloaded.
+ */
+public enum TrafficClass {
+
+	groupchat("groupchat", Priority.NORMAL),
+	history("history", Priority.NORMAL),
+	iq("iq", Priority.NORMAL),
+	presence("presence", Priority.PRESENCE),
+	chatState("chat-state", Priority.LOWEST);
+
+	private static final String CHAT_STATES_XMLNS = "http://jabber.org/protocol/chatstates";
+	private static final String DELAY_XMLNS = "urn:xmpp:delay";
+
+	private final Priority defaultPriority;
+	private final String name;
+
+	public static TrafficClass classify(Packet packet) {
+		switch (packet.getElemName()) {
+			case Presence.ELEM_NAME:
+				return presence;
+			case Iq.ELEM_NAME:
+				return iq;
+			case Message.ELEM_NAME:
+				final Element element = packet.getElement();
+				if (element.getChild("body") == null && isChatState(element)) {
+					return chatState;
+				}
+				if (element.getChild("delay", DELAY_XMLNS) != null) {
+					return history;
+				}
+				return groupchat;
+			default:
+				return groupchat;
+		}
+	}
+
+	public static TrafficClass forName(String name) {
+		for (TrafficClass trafficClass : values()) {
+			if (trafficClass.name.equals(name)) {
+				return trafficClass;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isChatState(Element element) {
+		final List<Element> children = element.getChildren();
+		if (children == null) {
+			return false;
+		}
+		for (Element child : children) {
+			if (CHAT_STATES_XMLNS.equals(child.getXMLNS())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	TrafficClass(String name, Priority defaultPriority) {
+		this.name = name;
+		this.defaultPriority = defaultPriority;
+	}
+
+	public Priority getDefaultPriority() {
+		return defaultPriority;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+}
@@ -81,15 +81,39 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 		Packet message = Packet.packetInstance(
 				createMessageElement(roomJID, senderJID, msgSenderNickname, originalMessage, body));
 
-		// The 'from' attribute MUST be set to the JID of the room itself.
-		Element delay = new Element("delay", new String[]{"xmlns", "from", "stamp"},
-									new String[]{"urn:xmpp:delay", roomJID.toString(),
-												 timestampHelper.formatWithMs(msgTimestamp)});
-		message.getElement().addChild(delay);
+		message.getElement().addChild(createDelay(roomJID, msgTimestamp));
 
 		return message;
 	}
 
+	/**
+	 * Creates template of message from history, which may be sent to many occupants without parsing stored message
+	 * again.
+	 */
+	public HistoryMessageTemplate createMessageTemplate(BareJID roomJID, String msgSenderNickname,
+														String originalMessage, String body, Date msgTimestamp)
+			throws TigaseStringprepException {
+		// recipient is set for each occupant by template
+		final Element message = createMessageElement(roomJID, JID.jidInstance(roomJID), msgSenderNickname,
+													 originalMessage, body);
+		return createMessageTemplate(roomJID, msgSenderNickname, message, msgTimestamp);
+	}
+
+	/**
+	 * Creates template of message from history from a copy of already parsed message, so it does not need to be
+	 * serialized and parsed again.
+	 */
+	public HistoryMessageTemplate createMessageTemplate(BareJID roomJID, String msgSenderNickname,
+														Element originalMessage, String body, Date msgTimestamp)
+			throws TigaseStringprepException {
+		if (originalMessage == null) {
+			return createMessageTemplate(roomJID, msgSenderNickname, (String) null, body, msgTimestamp);
+		}
+		final Element message = originalMessage.clone();
+		prepareMessageElement(message, roomJID, JID.jidInstance(roomJID), msgSenderNickname);
+		return createMessageTemplate(roomJID, msgSenderNickname, message, msgTimestamp);
+	}
+
 	public Element createMessageElement(BareJID roomJID, JID senderJID, String msgSenderNickname,
 											   String originalMessage, String body) throws TigaseStringprepException {
 		Element message = null;
@@ -100,11 +124,7 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 
 			message = queue.poll();
 			if (message != null) {
-				message.setAttribute("type", "groupchat");
-				message.setAttribute("from", JID.jidInstance(roomJID, msgSenderNickname).toString());
-				message.setAttribute("to", senderJID.toString());
-
-				message.setXMLNS(Packet.CLIENT_XMLNS);
+				prepareMessageElement(message, roomJID, senderJID, msgSenderNickname);
 			}
 		}
 
@@ -118,4 +138,26 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 		return message;
 	}
 
+	private HistoryMessageTemplate createMessageTemplate(BareJID roomJID, String msgSenderNickname, Element message,
+														 Date msgTimestamp) throws TigaseStringprepException {
+		message.addChild(createDelay(roomJID, msgTimestamp));
+		return new HistoryMessageTemplate(JID.jidInstance(roomJID, msgSenderNickname), message);
+	}
+
+	private void prepareMessageElement(Element message, BareJID roomJID, JID senderJID, String msgSenderNickname)
+			throws TigaseStringprepException {
+		message.setAttribute("type", "groupchat");
+		message.setAttribute("from", JID.jidInstance(roomJID, msgSenderNickname).toString());
+		message.setAttribute("to", senderJID.toString());
+
+		message.setXMLNS(Packet.CLIENT_XMLNS);
+	}
+
+	private Element createDelay(BareJID roomJID, Date msgTimestamp) {
+		// The 'from' attribute MUST be set to the JID of the room itself.
+		return new Element("delay", new String[]{"xmlns", "from", "stamp"},
+						   new String[]{"urn:xmpp:delay", roomJID.toString(),
+										timestampHelper.formatWithMs(msgTimestamp)});
+	}
+
 }
@@ -30,6 +30,7 @@ import tigase.xmpp.jid.JID;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.logging.Level;
 
@@ -221,6 +222,7 @@ public abstract class AbstractJDBCHistoryProvider
 				room.getConfig().getRoomAnonymity() == Anonymity.semianonymous &&
 						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
 
+		ArrayList<Packet> result = new ArrayList<Packet>();
 		while (rs.next()) {
 			String msgSenderNickname = rs.getString("sender_nickname");
 			Date msgTimestamp = new Date(rs.getLong("timestamp"));
@@ -230,7 +232,10 @@ public abstract class AbstractJDBCHistoryProvider
 
 			Packet m = createMessage(room.getRoomJID(), senderJID, msgSenderNickname, msg, body, msgSenderJid,
 									 addRealJids, msgTimestamp);
-			writer.write(m);
+			result.add(m);
+		}
+		if (!result.isEmpty()) {
+			writer.write(result);
 		}
 	}
 
@@ -184,8 +184,8 @@ public class DerbySqlHistoryProvider
 			result.add(0, m);
 		}
 
-		for (Packet element : result) {
-			writer.write(element);
+		if (!result.isEmpty()) {
+			writer.write(result);
 		}
 
 	}
@@ -0,0 +1,265 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the most recent messages of rooms. Each room keeps up to <code>muc#maxhistoryfetch</code> messages loaded
+ * from database on first request and updated with every new message, so history sent to joining occupants is served
+ * from memory. Concurrent requests for a room which is not cached share a single load from database.
+ */
+class HistoryCache {
+
+	private static final Logger log = Logger.getLogger(HistoryCache.class.getName());
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final int maxRooms;
+	private final AtomicLong misses = new AtomicLong();
+
+	HistoryCache(int maxRooms) {
+		this.maxRooms = maxRooms;
+	}
+
+	/**
+	 * Adds message to cached history of a room, if history of this room is cached.
+	 */
+	void add(String roomJid, Item item) {
+		final Entry entry = entries.get(roomJid);
+		if (entry == null) {
+			return;
+		}
+		synchronized (entry) {
+			if (!entry.loaded) {
+				// message may be stored after it was read from database, so loaded history cannot be reused
+				entry.stale = true;
+				return;
+			}
+			entry.items.addLast(item);
+			while (entry.items.size() > entry.capacity) {
+				entry.items.removeFirst();
+				entry.complete = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns last <code>limit</code> messages of a room sent not before <code>since</code> (if set), oldest first,
+	 * or <code>null</code> if cached messages do not cover requested window.
+	 *
+	 * @param capacity maximal number of messages kept for the room.
+	 * @param loader used to load last <code>capacity</code> messages from database if room is not cached.
+	 */
+	List<Item> get(String roomJid, int capacity, int limit, Date since, Loader loader) throws Exception {
+		Entry entry = entries.get(roomJid);
+		if (entry != null && entry.capacity != capacity) {
+			entries.remove(roomJid, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			final Entry created = new Entry(capacity);
+			entry = entries.putIfAbsent(roomJid, created);
+			if (entry == null) {
+				entry = created;
+				evictIfNeeded();
+				misses.incrementAndGet();
+				load(roomJid, entry, loader);
+				return select(entry, limit, since);
+			}
+		}
+
+		entry.ready.await();
+		if (entry.failed) {
+			misses.incrementAndGet();
+			return null;
+		}
+		final List<Item> result = select(entry, limit, since);
+		if (result == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Checks if history of a room is cached.
+	 */
+	boolean contains(String roomJid) {
+		return entries.containsKey(roomJid);
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getLoads() {
+		return loads.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * Removes cached history of a room. Must be called after history is removed from database, as load started before
+	 * removal may still return removed messages. Such load is not published in cache and its result is not returned.
+	 */
+	void remove(String roomJid) {
+		final Entry entry = entries.remove(roomJid);
+		if (entry != null) {
+			synchronized (entry) {
+				entry.removed = true;
+			}
+		}
+	}
+
+	private void evictIfNeeded() {
+		if (entries.size() <= maxRooms) {
+			return;
+		}
+		String eldestJid = null;
+		long eldestAccess = Long.MAX_VALUE;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (e.getValue().lastAccess < eldestAccess) {
+				eldestAccess = e.getValue().lastAccess;
+				eldestJid = e.getKey();
+			}
+		}
+		if (eldestJid != null) {
+			entries.remove(eldestJid);
+		}
+	}
+
+	private void load(String roomJid, Entry entry, Loader loader) throws Exception {
+		loads.incrementAndGet();
+		try {
+			final List<Item> items = loader.load(entry.capacity);
+			synchronized (entry) {
+				entry.items.addAll(items);
+				entry.complete = items.size() < entry.capacity;
+				entry.loaded = true;
+				if (entry.stale || entry.removed) {
+					entries.remove(roomJid, entry);
+				}
+			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Could not load history of room " + roomJid, e);
+			}
+			entry.failed = true;
+			entries.remove(roomJid, entry);
+			throw e;
+		} finally {
+			entry.ready.countDown();
+		}
+	}
+
+	private List<Item> select(Entry entry, int limit, Date since) {
+		synchronized (entry) {
+			if (entry.removed) {
+				return null;
+			}
+			entry.lastAccess = System.currentTimeMillis();
+			final ArrayDeque<Item> items = entry.items;
+			if (since == null) {
+				if (!entry.complete && items.size() < limit) {
+					return null;
+				}
+			} else if (!entry.complete && items.size() < limit &&
+					(items.isEmpty() || !items.peekFirst().timestamp.before(since))) {
+				return null;
+			}
+
+			final ArrayList<Item> result = new ArrayList<>(Math.min(limit, items.size()));
+			final Iterator<Item> it = items.descendingIterator();
+			while (it.hasNext() && result.size() < limit) {
+				final Item item = it.next();
+				if (since != null && item.timestamp.before(since)) {
+					break;
+				}
+				result.add(item);
+			}
+			Collections.reverse(result);
+			return result;
+		}
+	}
+
+	interface Loader {
+
+		/**
+		 * Loads last messages of a room, oldest first.
+		 */
+		List<Item> load(int limit) throws Exception;
+
+	}
+
+	static class Item {
+
+		final String body;
+		final String msg;
+		final String senderJid;
+		final String senderNickname;
+		final Date timestamp;
+		// created when message is added or on first replay and shared by all recipients
+		volatile HistoryMessageTemplate template;
+
+		Item(Date timestamp, String senderJid, String senderNickname, String body, String msg) {
+			this.timestamp = timestamp;
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.body = body;
+			this.msg = msg;
+		}
+	}
+
+	private static class Entry {
+
+		private final int capacity;
+		private final ArrayDeque<Item> items = new ArrayDeque<>();
+		private final CountDownLatch ready = new CountDownLatch(1);
+		private boolean complete;
+		private volatile boolean failed;
+		private volatile long lastAccess = System.currentTimeMillis();
+		private boolean loaded;
+		// history of the room was removed, so messages loaded before removal must not be served
+		private boolean removed;
+		private boolean stale;
+
+		Entry(int capacity) {
+			this.capacity = capacity;
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.muc.modules.BroadcastPacketTemplate;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message from room history prepared for replaying to many occupants. Message is parsed and its <code>delay</code>
+ * element is created only once, and for each recipient only an envelope with <code>to</code> attribute is created.
+ */
+public final class HistoryMessageTemplate {
+
+	// approximate size of element with its attributes map and of a string, without characters
+	private static final int ELEMENT_OVERHEAD = 100;
+	private static final int STRING_OVERHEAD = 40;
+	private final JID from;
+	private final int size;
+	private final BroadcastPacketTemplate template;
+
+	static int estimateSize(Element element) {
+		int size = ELEMENT_OVERHEAD + estimateSize(element.getName()) + estimateSize(element.getCData());
+		final Map<String, String> attributes = element.getAttributes();
+		if (attributes != null) {
+			for (Map.Entry<String, String> e : attributes.entrySet()) {
+				size += estimateSize(e.getKey()) + estimateSize(e.getValue());
+			}
+		}
+		final List<Element> children = element.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				size += estimateSize(child);
+			}
+		}
+		return size;
+	}
+
+	private static int estimateSize(String str) {
+		return str == null ? 0 : STRING_OVERHEAD + 2 * str.length();
+	}
+
+	/**
+	 * @param from sender of message.
+	 * @param message message which is not modified after template is created.
+	 */
+	public HistoryMessageTemplate(JID from, Element message) {
+		this.from = from;
+		this.template = new BroadcastPacketTemplate(message);
+		this.size = estimateSize(message);
+	}
+
+	public Packet createPacket(JID to) {
+		return template.createPacket(from, to);
+	}
+
+	/**
+	 * Returns approximate size (in bytes) of memory retained by the message of this template.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+}
@@ -28,9 +28,11 @@ import tigase.db.beans.MDRepositoryBeanWithStatistics;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.MUCComponent;
+import tigase.muc.MUCStatisticsProvider;
 import tigase.muc.Room;
 import tigase.osgi.ModulesManagerImpl;
 import tigase.server.BasicComponent;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.JID;
@@ -46,7 +48,7 @@ import java.util.Date;
 @Bean(name = "historyProviderPool", parent = MUCComponent.class, active = true)
 public class HistoryProviderMDBean
 		extends MDRepositoryBeanWithStatistics<HistoryProvider>
-		implements HistoryProvider, MAMRepository {
+		implements HistoryProvider, MAMRepository, MUCStatisticsProvider {
 
 	@ConfigField(desc = "Use domain without component name to lookup for repository", alias = "map-component-to-bare-domain")
 	private boolean mapComponentToBareDomain = false;
@@ -102,6 +104,13 @@ public class HistoryProviderMDBean
 		getRepository(room).getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		repositoriesStream().filter(MUCStatisticsProvider.class::isInstance)
+				.forEach(repo -> ((MUCStatisticsProvider) repo).getStatistics(compName, list));
+	}
+
 	@Override
 	public boolean isPersistent(Room room) {
 		return getRepository(room).isPersistent(room);
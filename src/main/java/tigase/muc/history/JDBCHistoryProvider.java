@@ -23,25 +23,40 @@ import tigase.db.DataRepository;
 import tigase.db.Repository;
 import tigase.db.TigaseDBException;
 import tigase.db.util.RepositoryVersionAware;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.Affiliation;
+import tigase.muc.MUCStatisticsProvider;
 import tigase.muc.Room;
 import tigase.muc.RoomConfig;
 import tigase.muc.repository.Schema;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
+import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMRepository;
 import tigase.xmpp.mam.Query;
 import tigase.xmpp.mam.QueryImpl;
+import tigase.xmpp.rsm.RSM;
 
+import java.sql.BatchUpdateException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,9 +66,11 @@ import java.util.logging.Logger;
 @Repository.Meta(supportedUris = {"jdbc:.*"})
 @Repository.SchemaId(id = Schema.MUC_SCHEMA_ID, name = Schema.MUC_SCHEMA_NAME)
 public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
-		implements HistoryProvider<DataRepository>, MAMRepository, RepositoryVersionAware {
+		implements HistoryProvider<DataRepository>, MAMRepository, RepositoryVersionAware, UnregisterAware,
+				   MUCStatisticsProvider {
 
 	private static final Logger log = Logger.getLogger(JDBCHistoryProvider.class.getCanonicalName());
+	private static final long PENDING_WRITES_TIMEOUT = 5000;
 	protected DataRepository data_repo;
 	@ConfigField(desc = "Query to append message to history", alias = "add-message-query")
 	private String addMessageQuery = "{ call Tig_MUC_AddMessage(?,?,?,?,?,?,?) }";
@@ -61,12 +78,35 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 	private String deleteMessagesQuery = "{ call Tig_MUC_DeleteMessages(?) }";
 	@ConfigField(desc = "Retrieve messages from history", alias = "get-messages-query")
 	private String getMessagesQuery = "{ call Tig_MUC_GetMessages(?,?,?) }";
+	private volatile HistoryCache historyCache;
+	@ConfigField(desc = "Keep recent messages of rooms in memory", alias = "history-cache-enabled")
+	private boolean historyCacheEnabled = false;
+	@ConfigField(desc = "Maximal number of rooms with recent messages kept in memory", alias = "history-cache-rooms")
+	private int historyCacheRooms = 10000;
 	@ConfigField(desc = "Retrieve position of message in archive", alias = "mam-get-message-position-query")
 	private String mamGetMessagePositionQuery = "{ call Tig_MUC_MAM_GetMessagePosition(?,?,?,?,?) }";
 	@ConfigField(desc = "Retrieve messages from archive", alias = "mam-get-messages-count-query")
 	private String mamGetMessagesCountQuery = "{ call Tig_MUC_MAM_GetMessagesCount(?,?,?,?) }";
 	@ConfigField(desc = "Retrieve messages from archive", alias = "mam-get-messages-query")
 	private String mamGetMessagesQuery = "{ call Tig_MUC_MAM_GetMessages(?,?,?,?,?,?) }";
+	@ConfigField(desc = "Retrieve messages from archive after or before message", alias = "mam-get-messages-keyset-query")
+	private String mamGetMessagesKeysetQuery = "{ call Tig_MUC_MAM_GetMessagesKeyset(?,?,?,?,?,?,?,?,?,?) }";
+	@ConfigField(desc = "Pagination of archive queries (offset or keyset)", alias = "mam-pagination")
+	private String mamPagination = "offset";
+	private final Map<String, PendingWrites> pendingWrites = new ConcurrentHashMap<>();
+	private volatile boolean batchWritesSupported = true;
+	@ConfigField(desc = "Maximal number of messages written in a single batch", alias = "write-behind-batch-size")
+	private int writeBehindBatchSize = 100;
+	@ConfigField(desc = "Write messages to database asynchronously", alias = "write-behind-enabled")
+	private boolean writeBehindEnabled = false;
+	@ConfigField(desc = "Maximal time (in milliseconds) message waits for batch to be filled", alias = "write-behind-flush-interval")
+	private long writeBehindFlushInterval = 100;
+	@ConfigField(desc = "Maximal number of messages waiting to be written", alias = "write-behind-queue-size")
+	private int writeBehindQueueSize = 10000;
+	@ConfigField(desc = "Number of threads writing messages to database", alias = "write-behind-writers")
+	private int writeBehindWriters = 2;
+	private volatile Writer[] writers;
+	private volatile boolean writersStopped = false;
 
 	@Override
 	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
@@ -80,28 +120,52 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
-		PreparedStatement st = null;
-		try {
-			st = this.data_repo.getPreparedStatement(senderJid.getBareJID(), addMessageQuery);
-
-			synchronized (st) {
-				st.setString(1, room.getRoomJID().toString());
-				data_repo.setTimestamp(st, 2, new Timestamp(time.getTime()));
-				st.setString(3, senderJid.toString());
-				st.setString(4, senderNickname);
-				st.setString(5, body);
-				st.setBoolean(6, room.getConfig().isLoggingEnabled());
-				st.setString(7, message == null ? null : message.toString());
-
-				st.executeUpdate();
+		final PendingMessage item = new PendingMessage(room.getRoomJID(), new Timestamp(time.getTime()), senderJid,
+													   senderNickname, body, room.getConfig().isLoggingEnabled(),
+													   message == null ? null : message.toString());
+		final HistoryCache cache = this.historyCache;
+		final Writer[] writers = writeBehindEnabled ? getWriters() : null;
+		// message is counted as pending until it is stored, so loading of history waits for it
+		final boolean tracked = writers != null || cache != null;
+		if (tracked) {
+			writeStarted(item);
+		}
+		if (cache != null && cache.contains(item.roomJid)) {
+			final HistoryCache.Item cached = new HistoryCache.Item(item.timestamp, item.senderJid,
+																   item.senderNickname, item.body, item.msg);
+			try {
+				// message is already parsed, so template is created from its copy instead of parsing it on replay
+				cached.template = createMessageTemplate(room.getRoomJID(), senderNickname, message, body, time);
+			} catch (TigaseStringprepException e) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Can't create template of message to room " + item.roomJid, e);
+				}
+			}
+			cache.add(item.roomJid, cached);
+		}
+		if (writers != null) {
+			final Writer writer = writers[Math.abs(item.roomJid.hashCode() % writers.length)];
+			if (writer.queue.offer(item)) {
+				// writer may have already finished, so message which it will not write is written by the caller
+				if (!writer.stopped || !writer.queue.remove(item)) {
+					return;
+				}
 			}
+			// queue is full, so message is written by the caller
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Write-behind queue is full, writing message to room " + item.roomJid + " directly");
+			}
+		}
+		try {
+			writeMessage(item);
 		} catch (SQLException e) {
 			log.log(Level.WARNING, "Can't add MUC message to database", e);
 			throw new RuntimeException(e);
 		} finally {
-			data_repo.release(null, null);
+			if (tracked) {
+				writeCompleted(item);
+			}
 		}
-
 	}
 
 	@Override
@@ -111,8 +175,13 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 	}
 
 	@Override
-	public void destroy() {
+	public void beforeUnregister() {
+		stopWriters();
+	}
 
+	@Override
+	public void destroy() {
+		stopWriters();
 	}
 
 	@Override
@@ -155,6 +224,25 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		}
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		final HistoryCache cache = this.historyCache;
+		if (cache != null) {
+			list.add(compName, "History cache rooms", cache.getSize(), Level.FINE);
+			list.add(compName, "History cache hits", cache.getHits(), Level.FINE);
+			list.add(compName, "History cache misses", cache.getMisses(), Level.FINE);
+			list.add(compName, "History cache loads", cache.getLoads(), Level.FINE);
+		}
+		final Writer[] writers = this.writers;
+		if (writers != null) {
+			int waiting = 0;
+			for (Writer writer : writers) {
+				waiting += writer.queue.size();
+			}
+			list.add(compName, "History messages waiting for write", waiting, Level.FINE);
+		}
+	}
+
 	@Override
 	public boolean isPersistent(Room room) {
 		return false;
@@ -162,6 +250,7 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 	@Override
 	public void removeHistory(Room room) {
+		awaitPendingWrites(room.getRoomJID().toString());
 		PreparedStatement st = null;
 		try {
 			st = this.data_repo.getPreparedStatement(null, deleteMessagesQuery);
@@ -178,6 +267,11 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 				st.executeUpdate();
 			}
+			// invalidated after delete, so concurrent request cannot load removed messages again
+			final HistoryCache cache = this.historyCache;
+			if (cache != null) {
+				cache.remove(room.getRoomJID().toString());
+			}
 		} catch (SQLException e) {
 			if (log.isLoggable(Level.WARNING)) {
 				log.log(Level.WARNING, "Can't delete MUC messages from database", e);
@@ -190,6 +284,11 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 	@Override
 	public void queryItems(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
+		awaitPendingWrites(query.getComponentJID().getBareJID().toString());
+		if ("keyset".equals(mamPagination) && query.getRsm().getIndex() == null) {
+			queryItemsKeyset(query, itemHandler);
+			return;
+		}
 		try {
 			Integer count = countItems(query);
 			if (count == null) {
@@ -212,36 +311,7 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 					st.setInt(i++, query.getRsm().getIndex());
 
 					rs = st.executeQuery();
-
-					while (rs.next()) {
-						String msgSenderNickname = rs.getString("sender_nickname");
-						Date msgTimestamp = data_repo.getTimestamp(rs, "ts");
-						String msgSenderJid = rs.getString("sender_jid");
-						String body = rs.getString("body");
-						String msg = rs.getString("msg");
-
-						Element msgEl = createMessageElement(
-								query.getComponentJID().getBareJID(), query.getQuestionerJID(), msgSenderNickname, msg,
-								body);
-
-						Item item = new Item() {
-							@Override
-							public String getId() {
-								return String.valueOf(msgTimestamp.getTime());
-							}
-
-							@Override
-							public Element getMessage() {
-								return msgEl;
-							}
-
-							@Override
-							public Date getTimestamp() {
-								return msgTimestamp;
-							}
-						};
-						itemHandler.itemFound(query, item);
-					}
+					readItems(rs, query, itemHandler, false);
 				} finally {
 					data_repo.release(null, rs);
 				}
@@ -263,16 +333,37 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		} catch (SQLException ex) {
 			new RuntimeException("Failed to initialize access to SQL database for PubSubDAOJDBC", ex);
 		}
+		// PgJDBC rejects results returned by calls of functions in a batch, even if function returns void
+		this.batchWritesSupported = dataSource.getDatabaseType() != DataRepository.dbTypes.postgresql;
 		this.data_repo = dataSource;
 	}
 
 	protected void getMessagesSince(Room room, JID senderJID, int maxMessages, Timestamp since, PacketWriter writer)
 			throws SQLException, TigaseStringprepException {
+		final String roomJID = room.getRoomJID().toString();
+		final HistoryCache cache = getHistoryCache();
+		if (cache != null) {
+			final List<HistoryCache.Item> items;
+			try {
+				items = cache.get(roomJID, room.getConfig().getMaxHistory(), maxMessages, since,
+								  limit -> loadMessages(room, limit));
+			} catch (SQLException | TigaseStringprepException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new SQLException("Could not load history of room " + roomJID, e);
+			}
+			if (items != null) {
+				writeMessages(room, senderJID, items, writer);
+				return;
+			}
+		}
+
+		awaitPendingWrites(roomJID);
 		PreparedStatement st = data_repo.getPreparedStatement(senderJID.getBareJID(), getMessagesQuery);
 		synchronized (st) {
 			ResultSet rs = null;
 			try {
-				st.setString(1, room.getRoomJID().toString());
+				st.setString(1, roomJID);
 				st.setInt(2, maxMessages);
 				data_repo.setTimestamp(st, 3, since);
 				rs = st.executeQuery();
@@ -283,17 +374,57 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		}
 	}
 
+	private List<HistoryCache.Item> loadMessages(Room room, int maxMessages) throws SQLException {
+		final String roomJID = room.getRoomJID().toString();
+		awaitPendingWrites(roomJID);
+		final List<HistoryCache.Item> items = new ArrayList<>();
+		PreparedStatement st = data_repo.getPreparedStatement(room.getRoomJID(), getMessagesQuery);
+		synchronized (st) {
+			ResultSet rs = null;
+			try {
+				st.setString(1, roomJID);
+				st.setInt(2, maxMessages);
+				data_repo.setTimestamp(st, 3, null);
+				rs = st.executeQuery();
+				while (rs.next()) {
+					items.add(new HistoryCache.Item(data_repo.getTimestamp(rs, "ts"), rs.getString("sender_jid"),
+													rs.getString("sender_nickname"), rs.getString("body"),
+													rs.getString("msg")));
+				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+		return items;
+	}
+
+	private void writeMessages(Room room, JID senderJID, List<HistoryCache.Item> items, PacketWriter writer)
+			throws TigaseStringprepException {
+		if (items.isEmpty()) {
+			return;
+		}
+		final List<Packet> result = new ArrayList<Packet>(items.size());
+		for (HistoryCache.Item item : items) {
+			HistoryMessageTemplate template = item.template;
+			if (template == null) {
+				template = createMessageTemplate(room.getRoomJID(), item.senderNickname, item.msg, item.body,
+												 item.timestamp);
+				item.template = template;
+			}
+			result.add(template.createPacket(senderJID));
+		}
+		writer.write(result);
+	}
+
 	protected void processResultSet(Room room, JID senderJID, PacketWriter writer, ResultSet rs)
 			throws SQLException, TigaseStringprepException {
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Select messages for " + senderJID + " from room " + room.getRoomJID());
 		}
 
-		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID());
-		boolean addRealJids = room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.nonanonymous ||
-				room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.semianonymous &&
-						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+		boolean addRealJids = isRealJidsVisible(room, senderJID);
 
+		List<Packet> result = new ArrayList<Packet>();
 		while (rs.next()) {
 			String msgSenderNickname = rs.getString("sender_nickname");
 			Date msgTimestamp = data_repo.getTimestamp(rs, "ts");
@@ -303,7 +434,10 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 			Packet m = createMessage(room.getRoomJID(), senderJID, msgSenderNickname, msg, body,
 															 msgSenderJid, addRealJids, msgTimestamp);
-			writer.write(m);
+			result.add(m);
+		}
+		if (!result.isEmpty()) {
+			writer.write(result);
 		}
 	}
 
@@ -314,6 +448,213 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		repo.initPreparedStatement(mamGetMessagesQuery, mamGetMessagesQuery);
 		repo.initPreparedStatement(mamGetMessagesCountQuery, mamGetMessagesCountQuery);
 		repo.initPreparedStatement(mamGetMessagePositionQuery, mamGetMessagePositionQuery);
+		repo.initPreparedStatement(mamGetMessagesKeysetQuery, mamGetMessagesKeysetQuery);
+	}
+
+	protected boolean isRealJidsVisible(Room room, JID senderJID) {
+		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID());
+		return room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.nonanonymous ||
+				room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.semianonymous &&
+						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+	}
+
+	/**
+	 * Waits until messages of the room queued for asynchronous write before this method was called are stored in
+	 * database, so they are visible to queries. Messages added later are not waited for.
+	 */
+	protected void awaitPendingWrites(String roomJid) {
+		final PendingWrites writes = pendingWrites.get(roomJid);
+		if (writes == null) {
+			return;
+		}
+		final long deadline = System.currentTimeMillis() + PENDING_WRITES_TIMEOUT;
+		final Writer[] writers = this.writers;
+		if (writers != null) {
+			writers[Math.abs(roomJid.hashCode() % writers.length)].flushRequested = true;
+		}
+		final boolean written;
+		synchronized (writes) {
+			final long sequence = writes.lastSequence;
+			long remaining;
+			while (!writes.isWritten(sequence) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					writes.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			written = writes.isWritten(sequence);
+		}
+		if (!written && log.isLoggable(Level.WARNING)) {
+			log.warning("Messages of room " + roomJid + " are still not written to database after " +
+								PENDING_WRITES_TIMEOUT + "ms");
+		}
+	}
+
+	private HistoryCache getHistoryCache() {
+		HistoryCache cache = this.historyCache;
+		if (cache == null && historyCacheEnabled) {
+			synchronized (this) {
+				cache = this.historyCache;
+				if (cache == null) {
+					cache = new HistoryCache(historyCacheRooms);
+					this.historyCache = cache;
+				}
+			}
+		}
+		return cache;
+	}
+
+	private Writer[] getWriters() {
+		Writer[] writers = this.writers;
+		if (writers == null) {
+			synchronized (this) {
+				writers = this.writers;
+				if (writers == null && data_repo != null && !writersStopped) {
+					writers = new Writer[Math.max(1, writeBehindWriters)];
+					final int queueSize = Math.max(1, writeBehindQueueSize / writers.length);
+					for (int i = 0; i < writers.length; i++) {
+						writers[i] = new Writer(i, queueSize);
+						writers[i].start();
+					}
+					this.writers = writers;
+				}
+			}
+		}
+		return writers;
+	}
+
+	private void stopWriters() {
+		final Writer[] writers;
+		synchronized (this) {
+			// provider is not restarted, so messages added from now on are written directly
+			writersStopped = true;
+			writers = this.writers;
+			this.writers = null;
+		}
+		if (writers == null) {
+			return;
+		}
+		for (Writer writer : writers) {
+			writer.stopped = true;
+		}
+		for (Writer writer : writers) {
+			try {
+				writer.join(PENDING_WRITES_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private void writeStarted(PendingMessage item) {
+		while (true) {
+			final PendingWrites writes = pendingWrites.computeIfAbsent(item.roomJid, k -> new PendingWrites());
+			synchronized (writes) {
+				// instance removed from the map cannot be reused, as its waiters already returned
+				if (!writes.removed) {
+					item.sequence = ++writes.lastSequence;
+					item.writes = writes;
+					writes.pending.add(item.sequence);
+					return;
+				}
+			}
+		}
+	}
+
+	private void writeCompleted(PendingMessage item) {
+		final PendingWrites writes = item.writes;
+		synchronized (writes) {
+			writes.pending.remove(item.sequence);
+			if (writes.pending.isEmpty()) {
+				writes.removed = true;
+				pendingWrites.remove(item.roomJid, writes);
+			}
+			writes.notifyAll();
+		}
+	}
+
+	private void setMessageParams(PreparedStatement st, PendingMessage item) throws SQLException {
+		st.setString(1, item.roomJid);
+		data_repo.setTimestamp(st, 2, item.timestamp);
+		st.setString(3, item.senderJid);
+		st.setString(4, item.senderNickname);
+		st.setString(5, item.body);
+		st.setBoolean(6, item.loggingEnabled);
+		st.setString(7, item.msg);
+	}
+
+	private void writeMessage(PendingMessage item) throws SQLException {
+		try {
+			PreparedStatement st = this.data_repo.getPreparedStatement(item.sender, addMessageQuery);
+			synchronized (st) {
+				setMessageParams(st, item);
+				st.executeUpdate();
+			}
+		} finally {
+			data_repo.release(null, null);
+		}
+	}
+
+	private void writeMessages(List<PendingMessage> batch) {
+		List<PendingMessage> failed = batch;
+		if (batchWritesSupported && batch.size() > 1) {
+			try {
+				// messages of a batch are written by the same writer, so use connection selected by the room
+				PreparedStatement st = this.data_repo.getPreparedStatement(batch.get(0).room, addMessageQuery);
+				synchronized (st) {
+					try {
+						for (PendingMessage item : batch) {
+							setMessageParams(st, item);
+							st.addBatch();
+						}
+						st.executeBatch();
+						failed = null;
+					} catch (BatchUpdateException e) {
+						failed = getFailedMessages(batch, e.getUpdateCounts());
+						log.log(Level.WARNING, "Can't add " + failed.size() + " of " + batch.size() +
+								" MUC messages to database in batch, retrying one by one", e);
+					} finally {
+						st.clearBatch();
+					}
+				}
+			} catch (SQLException e) {
+				// batch was not executed (ie. connection was not available), so all messages are retried
+				log.log(Level.WARNING, "Can't add batch of " + batch.size() + " MUC messages to database, retrying one by one",
+						e);
+			} finally {
+				data_repo.release(null, null);
+			}
+		}
+		if (failed == null) {
+			return;
+		}
+		for (PendingMessage item : failed) {
+			try {
+				writeMessage(item);
+			} catch (SQLException ex) {
+				log.log(Level.WARNING, "Can't add MUC message to database", ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns messages of a batch which were not stored, so retrying them will not create duplicates. Driver may stop
+	 * processing of a batch at the first failure, so messages without update count were not executed.
+	 */
+	private static List<PendingMessage> getFailedMessages(List<PendingMessage> batch, int[] updateCounts) {
+		if (updateCounts == null) {
+			return batch;
+		}
+		final List<PendingMessage> failed = new ArrayList<>();
+		for (int i = 0; i < batch.size(); i++) {
+			if (i >= updateCounts.length || updateCounts[i] == Statement.EXECUTE_FAILED) {
+				failed.add(batch.get(i));
+			}
+		}
+		return failed;
 	}
 
 	private int setStatementParamsForMAM(PreparedStatement st, Query query) throws SQLException {
@@ -337,6 +678,116 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		return i;
 	}
 
+	/**
+	 * Retrieves page of messages by seeking directly to the message passed in RSM <code>after</code> or
+	 * <code>before</code> instead of calculating its position and an offset. Id of a message consists of its timestamp
+	 * and its id in the history table, so messages sent within the same millisecond are not skipped. Number of messages
+	 * is retrieved only if client asks for it by requesting an empty page.
+	 */
+	private void queryItemsKeyset(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
+		RSM rsm = query.getRsm();
+		if (rsm.getMax() == 0) {
+			Integer count = countItems(query);
+			rsm.setCount(count == null ? 0 : count);
+			return;
+		}
+
+		ItemKey after = parseItemId(rsm.getAfter());
+		ItemKey before = parseItemId(rsm.getBefore());
+		boolean fromEnd = after == null && rsm.hasBefore();
+
+		try {
+			PreparedStatement st = data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
+																  mamGetMessagesKeysetQuery);
+
+			synchronized (st) {
+				ResultSet rs = null;
+				try {
+					int i = setStatementParamsForMAM(st, query);
+					i = setItemKeyParams(st, i, after);
+					i = setItemKeyParams(st, i, before);
+					st.setInt(i++, fromEnd ? 1 : 0);
+					st.setInt(i++, rsm.getMax());
+
+					rs = st.executeQuery();
+					readItems(rs, query, itemHandler, true);
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException | TigaseStringprepException ex) {
+			throw new TigaseDBException("Cound not retrieve items", ex);
+		}
+	}
+
+	private int setItemKeyParams(PreparedStatement st, int i, ItemKey key) throws SQLException {
+		if (key == null) {
+			st.setObject(i++, null);
+			st.setObject(i++, null);
+			return i;
+		}
+		data_repo.setTimestamp(st, i++, key.timestamp);
+		if (key.id != null) {
+			st.setLong(i++, key.id);
+		} else {
+			st.setObject(i++, null);
+		}
+		return i;
+	}
+
+	/**
+	 * Parses id of a message, which is its timestamp optionally followed by <code>-</code> and its id in the history
+	 * table (ids of messages returned by offset pagination contain only timestamp).
+	 */
+	private ItemKey parseItemId(String msgId) throws ComponentException {
+		if (msgId == null || msgId.isEmpty()) {
+			return null;
+		}
+		try {
+			final int idx = msgId.indexOf('-');
+			if (idx < 0) {
+				return new ItemKey(new Timestamp(Long.parseLong(msgId)), null);
+			}
+			return new ItemKey(new Timestamp(Long.parseLong(msgId.substring(0, idx))),
+							   Long.parseLong(msgId.substring(idx + 1)));
+		} catch (NumberFormatException ex) {
+			throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Not found message with id = " + msgId);
+		}
+	}
+
+	private void readItems(ResultSet rs, Query query, ItemHandler itemHandler, boolean withRowId)
+			throws SQLException, TigaseStringprepException {
+		while (rs.next()) {
+			final long rowId = withRowId ? rs.getLong("id") : 0;
+			String msgSenderNickname = rs.getString("sender_nickname");
+			Date msgTimestamp = data_repo.getTimestamp(rs, "ts");
+			String msgSenderJid = rs.getString("sender_jid");
+			String body = rs.getString("body");
+			String msg = rs.getString("msg");
+
+			Element msgEl = createMessageElement(query.getComponentJID().getBareJID(), query.getQuestionerJID(),
+												 msgSenderNickname, msg, body);
+
+			Item item = new Item() {
+				@Override
+				public String getId() {
+					return withRowId ? msgTimestamp.getTime() + "-" + rowId : String.valueOf(msgTimestamp.getTime());
+				}
+
+				@Override
+				public Element getMessage() {
+					return msgEl;
+				}
+
+				@Override
+				public Date getTimestamp() {
+					return msgTimestamp;
+				}
+			};
+			itemHandler.itemFound(query, item);
+		}
+	}
+
 	private Integer countItems(Query query) throws TigaseDBException {
 		try {
 			PreparedStatement st = this.data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
@@ -368,7 +819,7 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		}
 
 		try {
-			java.sql.Timestamp ts = new Timestamp(Long.parseLong(msgId));
+			java.sql.Timestamp ts = parseItemId(msgId).timestamp;
 
 			PreparedStatement st = this.data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
 																	   mamGetMessagePositionQuery);
@@ -396,4 +847,112 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		}
 	}
 
+	private static class ItemKey {
+
+		private final Long id;
+		private final Timestamp timestamp;
+
+		ItemKey(Timestamp timestamp, Long id) {
+			this.timestamp = timestamp;
+			this.id = id;
+		}
+	}
+
+	private static class PendingMessage {
+
+		private final String body;
+		private long sequence;
+		private PendingWrites writes;
+		private final boolean loggingEnabled;
+		private final String msg;
+		private final BareJID room;
+		private final String roomJid;
+		private final BareJID sender;
+		private final String senderJid;
+		private final String senderNickname;
+		private final Timestamp timestamp;
+
+		PendingMessage(BareJID room, Timestamp timestamp, JID senderJid, String senderNickname, String body,
+					   boolean loggingEnabled, String msg) {
+			this.room = room;
+			this.roomJid = room.toString();
+			this.timestamp = timestamp;
+			this.sender = senderJid.getBareJID();
+			this.senderJid = senderJid.toString();
+			this.senderNickname = senderNickname;
+			this.body = body;
+			this.loggingEnabled = loggingEnabled;
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Messages of a room which are not stored in database yet. Each message gets next sequence number of the room.
+	 */
+	private static class PendingWrites {
+
+		private final TreeSet<Long> pending = new TreeSet<>();
+		private long lastSequence = 0;
+		private boolean removed = false;
+
+		boolean isWritten(long sequence) {
+			return pending.isEmpty() || pending.first() > sequence;
+		}
+	}
+
+	/**
+	 * Writes queued messages to database in batches. Messages of a room are always handled by the same writer, so they
+	 * are written in order in which they were added.
+	 */
+	private class Writer
+			extends Thread {
+
+		private final BlockingQueue<PendingMessage> queue;
+		private volatile boolean flushRequested = false;
+		private volatile boolean stopped = false;
+
+		Writer(int id, int queueSize) {
+			super("muc-history-writer-" + id);
+			setDaemon(true);
+			this.queue = new ArrayBlockingQueue<>(queueSize);
+		}
+
+		@Override
+		public void run() {
+			final List<PendingMessage> batch = new ArrayList<>(writeBehindBatchSize);
+			while (!stopped || !queue.isEmpty()) {
+				try {
+					final PendingMessage first = queue.poll(writeBehindFlushInterval, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					final long deadline = System.currentTimeMillis() + writeBehindFlushInterval;
+					queue.drainTo(batch, writeBehindBatchSize - batch.size());
+					long remaining;
+					while (batch.size() < writeBehindBatchSize && !flushRequested && !stopped &&
+							(remaining = deadline - System.currentTimeMillis()) > 0) {
+						final PendingMessage next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+						queue.drainTo(batch, writeBehindBatchSize - batch.size());
+					}
+				} catch (InterruptedException e) {
+					// we will write what we have and check if we should stop
+				}
+				if (batch.isEmpty()) {
+					continue;
+				}
+				flushRequested = false;
+				writeMessages(batch);
+				for (PendingMessage item : batch) {
+					writeCompleted(item);
+				}
+				batch.clear();
+			}
+		}
+	}
+
 }
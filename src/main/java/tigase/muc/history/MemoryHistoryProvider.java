@@ -19,28 +19,50 @@ package tigase.muc.history;
 
 import tigase.component.PacketWriter;
 import tigase.db.DataSource;
-import tigase.muc.Affiliation;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.MUCStatisticsProvider;
 import tigase.muc.Room;
-import tigase.muc.RoomConfig.Anonymity;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 
 /**
+ * History provider keeping history of rooms in memory. History of each room is kept in a ring buffer holding up to
+ * <code>muc#maxhistoryfetch</code> messages, which may be read without locking while new messages are added. Total
+ * size of kept messages is limited and when it is exceeded, histories of least recently used rooms are removed.
+ *
  * @author bmalkow
  */
 public class MemoryHistoryProvider
-		extends AbstractHistoryProvider {
+		extends AbstractHistoryProvider
+		implements MUCStatisticsProvider {
+
+	private static final int DEFAULT_MAX_HISTORY = 50;
+	// approximate size of item, its slot and template without the message
+	private static final int ITEM_OVERHEAD = 200;
+	private final AtomicLong evictions = new AtomicLong();
+	private final Map<BareJID, RoomHistory> history = new ConcurrentHashMap<BareJID, RoomHistory>();
+	@ConfigField(desc = "Maximal size (in bytes) of history of all rooms kept in memory", alias = "memory-limit")
+	private long memoryLimit = 64 * 1024 * 1024;
+	private final AtomicLong usedMemory = new AtomicLong();
 
-	private final Map<BareJID, LinkedList<HItem>> history = new ConcurrentHashMap<BareJID, LinkedList<HItem>>();
-	private int maxSize = 256;
+	private static int getCapacity(Room room) {
+		final Integer maxHistory = room.getConfig().getMaxHistory();
+		return Math.max(1, maxHistory == null ? DEFAULT_MAX_HISTORY : maxHistory);
+	}
 
 	public MemoryHistoryProvider() {
 	}
@@ -55,24 +77,23 @@ public class MemoryHistoryProvider
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
-		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
+		final HItem item;
+		try {
+			final HistoryMessageTemplate template = createMessageTemplate(room.getRoomJID(), senderNickname, message,
+																		  body, time);
+			item = new HItem(template, time, ITEM_OVERHEAD + template.getSize());
+		} catch (TigaseStringprepException e) {
+			log.log(Level.WARNING, "Can't add message to history of room " + room.getRoomJID(), e);
+			return;
 		}
-
-		if (stanzas.size() >= this.maxSize) {
-			stanzas.poll();
+		RoomHistory stanzas;
+		do {
+			stanzas = getRoomHistory(room, true);
+			// history could be removed in the meantime
+		} while (!stanzas.add(item, usedMemory));
+		if (usedMemory.get() > memoryLimit) {
+			evict(stanzas);
 		}
-
-		HItem item = new HItem();
-		item.body = body;
-		item.senderJid = senderJid;
-		item.senderNickname = senderNickname;
-		item.timestamp = time;
-		item.msg = message == null ? null : message.toString();
-
-		stanzas.add(item);
 	}
 
 	@Override
@@ -88,52 +109,38 @@ public class MemoryHistoryProvider
 	@Override
 	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
 								   Date since, PacketWriter writer) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
+		final RoomHistory stanzas = getRoomHistory(room, false);
 		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
+			return;
 		}
 
-		int c = 0;
-		final Date now = new Date();
-		for (HItem item : stanzas) {
-
-			if (since != null) {
-				if (item.timestamp.before(since)) {
-					continue;
-				}
-			} else if (maxstanzas != null) {
-				if (c >= maxstanzas) {
-					break;
-				}
-			} else if (seconds != null) {
-				if (item.timestamp.getTime() < now.getTime() - seconds * 1000) {
-					continue;
-				}
-			} else {
-				if (c >= 25) {
-					break;
-				}
-			}
-
-			Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID());
-			boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous ||
-					room.getConfig().getRoomAnonymity() == Anonymity.semianonymous &&
-							(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+		int limit = stanzas.capacity;
+		Date from = null;
+		if (since != null) {
+			from = since;
+		} else if (maxstanzas != null) {
+			limit = Math.min(maxstanzas, limit);
+		} else if (seconds != null) {
+			from = new Date(System.currentTimeMillis() - seconds * 1000);
+		}
 
-			try {
-				Packet message = createMessage(room.getRoomJID(), senderJID, item.senderNickname, item.msg, item.body,
-											   item.senderJid.toString(), addRealJids, item.timestamp);
+		final List<HItem> items = stanzas.getLast(limit, from);
+		if (items.isEmpty()) {
+			return;
+		}
 
-				writer.write(message);
-				++c;
-			} catch (Exception e) {
-				if (log.isLoggable(Level.SEVERE)) {
-					log.log(Level.SEVERE, "Can't get history", e);
-				}
-				throw new RuntimeException(e);
-			}
+		final List<Packet> result = new ArrayList<Packet>(items.size());
+		for (HItem item : items) {
+			result.add(item.template.createPacket(senderJID));
 		}
+		writer.write(result);
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Memory history rooms", history.size(), Level.FINE);
+		list.add(compName, "Memory history size [B]", usedMemory.get(), Level.FINE);
+		list.add(compName, "Memory history evicted rooms", evictions.get(), Level.FINE);
 	}
 
 	@Override
@@ -141,6 +148,10 @@ public class MemoryHistoryProvider
 		return false;
 	}
 
+	void setMemoryLimit(long memoryLimit) {
+		this.memoryLimit = memoryLimit;
+	}
+
 	@Override
 	public void setDataSource(DataSource dataSource) {
 
@@ -148,19 +159,171 @@ public class MemoryHistoryProvider
 
 	@Override
 	public void removeHistory(Room room) {
-		this.history.remove(room.getRoomJID());
+		final RoomHistory removed = this.history.remove(room.getRoomJID());
+		if (removed != null) {
+			removed.release(usedMemory);
+		}
+	}
+
+	private void evict(RoomHistory current) {
+		// we remove more than needed, so that we would not need to evict on every new message
+		final long target = memoryLimit - memoryLimit / 10;
+		while (usedMemory.get() > target) {
+			BareJID eldestJid = null;
+			RoomHistory eldest = null;
+			for (Map.Entry<BareJID, RoomHistory> e : history.entrySet()) {
+				final RoomHistory candidate = e.getValue();
+				if (candidate != current && (eldest == null || candidate.lastAccess < eldest.lastAccess)) {
+					eldest = candidate;
+					eldestJid = e.getKey();
+				}
+			}
+			if (eldest == null) {
+				return;
+			}
+			if (history.remove(eldestJid, eldest)) {
+				eldest.release(usedMemory);
+				evictions.incrementAndGet();
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest("Removed history of room " + eldestJid + " from memory, used memory: " +
+									   usedMemory.get());
+				}
+			}
+		}
+	}
+
+	private RoomHistory getRoomHistory(Room room, boolean create) {
+		final int capacity = getCapacity(room);
+		while (true) {
+			final RoomHistory stanzas = this.history.get(room.getRoomJID());
+			if (stanzas != null && stanzas.capacity == capacity) {
+				return stanzas;
+			}
+			if (stanzas == null) {
+				if (!create) {
+					return null;
+				}
+				final RoomHistory created = new RoomHistory(capacity);
+				if (this.history.putIfAbsent(room.getRoomJID(), created) == null) {
+					return created;
+				}
+				continue;
+			}
+			// room configuration changed, so we need to resize history. Old history is released before messages are
+			// copied, so messages added concurrently are not lost but retried against the new history.
+			if (!stanzas.release(usedMemory)) {
+				// history is being resized or removed by other thread
+				Thread.yield();
+				continue;
+			}
+			final RoomHistory created = new RoomHistory(capacity);
+			for (HItem item : stanzas.getLast(capacity, null)) {
+				created.add(item, usedMemory);
+			}
+			if (this.history.replace(room.getRoomJID(), stanzas, created)) {
+				return created;
+			}
+			// history was removed in the meantime
+			created.release(usedMemory);
+		}
 	}
 
 	private static class HItem {
 
-		String body;
+		final int size;
+		final HistoryMessageTemplate template;
+		final Date timestamp;
+
+		HItem(HistoryMessageTemplate template, Date timestamp, int size) {
+			this.template = template;
+			this.timestamp = timestamp;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Ring buffer of messages of a room. Messages are added under lock, readers do not lock and skip messages which
+	 * were overwritten while reading.
+	 */
+	private static class RoomHistory {
+
+		private final int capacity;
+		private final AtomicReferenceArray<Slot> slots;
+		private volatile long count = 0;
+		private volatile long lastAccess = System.currentTimeMillis();
+		private boolean released = false;
+		private long size = 0;
+
+		RoomHistory(int capacity) {
+			this.capacity = capacity;
+			this.slots = new AtomicReferenceArray<>(capacity);
+		}
+
+		/**
+		 * @return <code>false</code> if history was already removed and message was not added.
+		 */
+		synchronized boolean add(HItem item, AtomicLong usedMemory) {
+			if (released) {
+				return false;
+			}
+			final int idx = (int) (count % capacity);
+			final Slot old = slots.getAndSet(idx, new Slot(count, item));
+			final long change = item.size - (old == null ? 0 : old.item.size);
+			size += change;
+			usedMemory.addAndGet(change);
+			count = count + 1;
+			lastAccess = System.currentTimeMillis();
+			return true;
+		}
+
+		/**
+		 * Returns up to <code>limit</code> last messages sent not before <code>from</code> (if set), oldest first.
+		 */
+		List<HItem> getLast(int limit, Date from) {
+			lastAccess = System.currentTimeMillis();
+			final long end = count;
+			final long start = Math.max(0, end - Math.min(limit, capacity));
+			final ArrayList<HItem> result = new ArrayList<>((int) (end - start));
+			for (long seq = end - 1; seq >= start; seq--) {
+				final Slot slot = slots.get((int) (seq % capacity));
+				// item was overwritten by a newer one, so older items are gone too
+				if (slot == null || slot.seq != seq) {
+					break;
+				}
+				if (from != null && slot.item.timestamp.before(from)) {
+					break;
+				}
+				result.add(slot.item);
+			}
+			Collections.reverse(result);
+			return result;
+		}
+
 		/**
-		 * whole stanza
+		 * Marks history as removed, so no more messages are added to it. Messages kept in it may still be read.
+		 *
+		 * @return <code>false</code> if history was already released.
 		 */
-		String msg;
-		JID senderJid;
-		String senderNickname;
-		Date timestamp;
+		synchronized boolean release(AtomicLong usedMemory) {
+			if (released) {
+				return false;
+			}
+			released = true;
+			usedMemory.addAndGet(-size);
+			size = 0;
+			return true;
+		}
+	}
+
+	private static class Slot {
+
+		private final HItem item;
+		private final long seq;
+
+		Slot(long seq, HItem item) {
+			this.seq = seq;
+			this.item = item;
+		}
 	}
 
 }
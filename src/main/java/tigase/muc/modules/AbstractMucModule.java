@@ -18,6 +18,9 @@
 package tigase.muc.modules;
 
 import tigase.component.modules.AbstractModule;
+import tigase.kernel.beans.Inject;
+import tigase.muc.MUCComponent;
+import tigase.muc.OutgoingBatchQueue;
 import tigase.muc.Room;
 import tigase.server.Iq;
 import tigase.server.Message;
@@ -27,7 +30,9 @@ import tigase.xml.Element;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.JID;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * @author bmalkow
@@ -35,6 +40,11 @@ import java.util.Collection;
 public abstract class AbstractMucModule
 		extends AbstractModule {
 
+	@Inject(nullAllowed = true)
+	private MUCComponent component;
+	@Inject(nullAllowed = true)
+	private OutgoingBatchQueue outgoingBatchQueue;
+
 	public static Element createResultIQ(Element iq) {
 		return new Element(Iq.ELEM_NAME, new String[]{Packet.TYPE_ATT, Packet.FROM_ATT, Packet.TO_ATT, Packet.ID_ATT},
 						   new String[]{"result", iq.getAttributeStaticStr(Packet.TO_ATT),
@@ -53,15 +63,32 @@ public abstract class AbstractMucModule
 	public AbstractMucModule() {
 	}
 
+	/**
+	 * Passes all packets to the outgoing queue in a single operation (if batching of outgoing stanzas is enabled).
+	 * Should be used instead of calling <code>write(Packet)</code> for each packet of a broadcast to many occupants.
+	 */
+	protected void writeAll(Collection<Packet> packets) {
+		if (packets == null || packets.isEmpty()) {
+			return;
+		}
+		if (component != null && outgoingBatchQueue != null && outgoingBatchQueue.isEnabled()) {
+			component.addOutPackets(packets);
+		} else {
+			writer.write(packets);
+		}
+	}
+
 	protected void sendMucMessage(Room room, String recipientNickame, String message) throws TigaseStringprepException {
 		Collection<JID> occupantJids = room.getOccupantsJidsByNickname(recipientNickame);
+		List<Packet> packets = new ArrayList<Packet>(occupantJids.size());
 
 		for (JID jid : occupantJids) {
 			Packet msg = Message.getMessage(JID.jidInstance(room.getRoomJID()), jid, StanzaType.groupchat, message,
 											null, null, null);
 			msg.setXMLNS(Packet.CLIENT_XMLNS);
-			writer.write(msg);
+			packets.add(msg);
 		}
+		writeAll(packets);
 	}
 
 }
\ No newline at end of file
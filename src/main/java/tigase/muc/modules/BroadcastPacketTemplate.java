@@ -0,0 +1,107 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Template of stanza broadcasted to many recipients. Attributes and payload of stanza are extracted once, and for each
+ * recipient only a lightweight envelope element with <code>from</code> and <code>to</code> attributes is created.
+ * Payload elements are shared by all created packets, so they must not be modified after template is created.
+ */
+public final class BroadcastPacketTemplate {
+
+	private final String[] attNames;
+	private final String[] attValues;
+	private final String name;
+	private final List<Element> payload;
+	private final String xmlns;
+
+	public BroadcastPacketTemplate(final Packet packet) {
+		this(packet.getElement());
+	}
+
+	public BroadcastPacketTemplate(final Element element) {
+		this.name = element.getName();
+		this.xmlns = element.getXMLNS();
+		this.payload = element.getChildren();
+
+		final Map<String, String> attributes = element.getAttributes();
+		int count = 0;
+		if (attributes != null) {
+			for (String key : attributes.keySet()) {
+				if (isCopiedAttribute(key)) {
+					count++;
+				}
+			}
+		}
+		// two last positions are reserved for from and to attributes
+		this.attNames = new String[count + 2];
+		this.attValues = new String[count + 2];
+		if (attributes != null) {
+			int i = 0;
+			for (Map.Entry<String, String> e : attributes.entrySet()) {
+				if (isCopiedAttribute(e.getKey())) {
+					attNames[i] = e.getKey();
+					attValues[i] = e.getValue();
+					i++;
+				}
+			}
+		}
+		attNames[count] = Packet.FROM_ATT;
+		attNames[count + 1] = Packet.TO_ATT;
+	}
+
+	private static boolean isCopiedAttribute(String key) {
+		return !Packet.FROM_ATT.equals(key) && !Packet.TO_ATT.equals(key) && !"xmlns".equals(key);
+	}
+
+	/**
+	 * Creates packet for single recipient.
+	 *
+	 * @param from sender of packet.
+	 * @param to recipient of packet.
+	 *
+	 * @return packet sharing payload with all other packets created by this template.
+	 */
+	public Packet createPacket(final JID from, final JID to) {
+		final String[] values = attValues.clone();
+		values[values.length - 2] = from.toString();
+		values[values.length - 1] = to.toString();
+
+		final Element envelope = new Element(name, attNames, values);
+		if (xmlns != null) {
+			envelope.setXMLNS(xmlns);
+		}
+		if (payload != null) {
+			for (Element child : payload) {
+				envelope.addChild(child);
+			}
+		}
+
+		final Packet packet = Packet.packetInstance(envelope, from, to);
+		packet.setXMLNS(Packet.CLIENT_XMLNS);
+		return packet;
+	}
+
+}
@@ -0,0 +1,246 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import tigase.component.PacketWriter;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.MUCComponent;
+import tigase.muc.MUCStatisticsProvider;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of stanzas delivered after configured delay. Stanzas are delivered in batches by a scheduled task, in order in
+ * which they were added. Number of waiting stanzas is limited and stanzas over the limit are not accepted, so caller
+ * may deliver them immediately. Waiting stanzas are delivered when queue is shut down.
+ * <br>
+ * Component uses the queue to deliver room history to joining occupants after configured delay. Delayed delivery is
+ * disabled if delay is not greater than 0.
+ */
+@Bean(name = "delayedDeliveryQueue", parent = MUCComponent.class, active = true)
+public class DelayedDeliveryQueue
+		implements MUCStatisticsProvider, UnregisterAware {
+
+	public static final String DELAY_KEY = "delayed-delivery-delay";
+	public static final String MAX_BATCH_SIZE_KEY = "delayed-delivery-batch-size";
+	public static final String MAX_SIZE_KEY = "delayed-delivery-max-size";
+	private static final Logger log = Logger.getLogger(DelayedDeliveryQueue.class.getName());
+	@ConfigField(desc = "Delay (in milliseconds) of delivery of room history to joining occupant", alias = DELAY_KEY)
+	private long delay = 0;
+	private final AtomicLong delivered = new AtomicLong();
+	private final ConcurrentLinkedQueue<Item> items = new ConcurrentLinkedQueue<Item>();
+	private final AtomicLong lastLag = new AtomicLong();
+	@ConfigField(desc = "Maximal number of stanzas delivered at once by delayed delivery", alias = MAX_BATCH_SIZE_KEY)
+	private int maxBatchSize = 1000;
+	private final AtomicLong maxLag = new AtomicLong();
+	@ConfigField(desc = "Maximal number of stanzas waiting for delayed delivery", alias = MAX_SIZE_KEY)
+	private int maxSize = 10000;
+	private final AtomicLong rejected = new AtomicLong();
+	private final DelDeliverySend sender;
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile ScheduledExecutorService scheduler;
+	@Inject
+	private PacketWriter writer;
+
+	public DelayedDeliveryQueue() {
+		this.sender = packet -> writer.write(packet);
+	}
+
+	/**
+	 * @param sender used to deliver stanzas.
+	 * @param delay time (in milliseconds) after which stanza is delivered.
+	 * @param maxSize maximal number of stanzas waiting for delivery.
+	 * @param maxBatchSize maximal number of stanzas delivered in a single run of scheduled task.
+	 */
+	public DelayedDeliveryQueue(DelDeliverySend sender, long delay, int maxSize, int maxBatchSize) {
+		this.sender = sender;
+		this.delay = delay;
+		this.maxSize = maxSize;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	@Override
+	public void beforeUnregister() {
+		shutdown();
+	}
+
+	public int getSize() {
+		return size.get();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Delayed delivery queue size", size.get(), Level.FINE);
+		list.add(compName, "Delayed delivery delivered", delivered.get(), Level.FINE);
+		list.add(compName, "Delayed delivery rejected", rejected.get(), Level.FINE);
+		list.add(compName, "Delayed delivery last lag [ms]", lastLag.get(), Level.FINE);
+		list.add(compName, "Delayed delivery max lag [ms]", maxLag.get(), Level.FINE);
+	}
+
+	/**
+	 * Adds stanzas to the queue. Stanzas are delivered together.
+	 *
+	 * @return <code>false</code> if queue is full and stanzas were not accepted.
+	 */
+	public boolean put(Collection<Element> elements) {
+		if ((elements == null) || elements.isEmpty()) {
+			return true;
+		}
+		return put(elements.toArray(new Element[elements.size()]));
+	}
+
+	/**
+	 * Adds stanza to the queue.
+	 *
+	 * @return <code>false</code> if queue is full and stanza was not accepted.
+	 */
+	public boolean put(Element element) {
+		return put(new Element[]{element});
+	}
+
+	/**
+	 * Checks if stanzas should be delivered with delay.
+	 *
+	 * @return <code>true</code> if delay greater than 0 is configured.
+	 */
+	public boolean isEnabled() {
+		return delay > 0;
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "muc-delayed-delivery");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		// checking queue more often than the delay keeps delivery lag low
+		final long period = Math.max(1, Math.min(delay, 100));
+		executor.scheduleWithFixedDelay(this::drain, period, period, TimeUnit.MILLISECONDS);
+		scheduler = executor;
+	}
+
+	/**
+	 * Stops scheduled delivery and delivers all waiting stanzas.
+	 */
+	public void shutdown() {
+		final ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = scheduler;
+			scheduler = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Item item;
+		while ((item = items.poll()) != null) {
+			size.addAndGet(-item.elements.length);
+			deliver(item);
+		}
+	}
+
+	protected void drain() {
+		final long now = System.nanoTime();
+		final long due = now - TimeUnit.MILLISECONDS.toNanos(delay);
+		int count = 0;
+		Item item;
+		while (count < maxBatchSize && (item = items.peek()) != null && item.enqueuedAt - due <= 0) {
+			if (!items.remove(item)) {
+				continue;
+			}
+			size.addAndGet(-item.elements.length);
+			count += item.elements.length;
+
+			final long lag = TimeUnit.NANOSECONDS.toMillis(now - item.enqueuedAt - TimeUnit.MILLISECONDS.toNanos(delay));
+			lastLag.set(lag);
+			if (lag > maxLag.get()) {
+				maxLag.set(lag);
+			}
+			deliver(item);
+		}
+	}
+
+	private void deliver(Item item) {
+		for (Element element : item.elements) {
+			try {
+				Packet p = Packet.packetInstance(element);
+				p.setXMLNS(Packet.CLIENT_XMLNS);
+				sender.sendDelayedPacket(p);
+				delivered.incrementAndGet();
+			} catch (TigaseStringprepException ex) {
+				if (log.isLoggable(Level.INFO)) {
+					log.info("Packet addressing problem, stringprep failed: " + element);
+				}
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Error during delayed delivery of " + element, ex);
+			}
+		}
+	}
+
+	private boolean put(Element[] elements) {
+		if (size.addAndGet(elements.length) > maxSize) {
+			size.addAndGet(-elements.length);
+			rejected.addAndGet(elements.length);
+			return false;
+		}
+		items.add(new Item(elements));
+		if (scheduler == null) {
+			start();
+		}
+		return true;
+	}
+
+	public interface DelDeliverySend {
+
+		void sendDelayedPacket(Packet packet);
+	}
+
+	private static class Item {
+
+		private final Element[] elements;
+		private final long enqueuedAt = System.nanoTime();
+
+		Item(Element[] elements) {
+			this.elements = elements;
+		}
+	}
+
+}
@@ -54,6 +54,9 @@ public class GroupchatMessageModule
 	private static final Charset UTF8 = Charset.forName("UTF-8");
 	private final Set<Criteria> allowedElements = new HashSet<Criteria>();
 
+	@Inject
+	private ChatStateCoalescer chatStateCoalescer;
+
 	@Inject
 	private MUCConfig config;
 
@@ -63,6 +66,9 @@ public class GroupchatMessageModule
 	@Inject(nullAllowed = true)
 	private MucLogger mucLogger;
 
+	@Inject
+	private ParallelFanOut parallelFanOut;
+
 	@Inject
 	private IMucRepository repository;
 
@@ -177,6 +183,15 @@ public class GroupchatMessageModule
 				}
 			}
 
+			// messages containing only chat state notification may be coalesced
+			boolean chatStateOnly = config.isChatStateAllowed() && !content.isEmpty();
+			for (Element c : content) {
+				if (!CRIT_CHAT_STAT.match(c)) {
+					chatStateOnly = false;
+					break;
+				}
+			}
+
 			final JID senderRoomJID = JID.jidInstance(roomJID, nickName);
 
 			Date sendDate;
@@ -224,7 +239,12 @@ public class GroupchatMessageModule
 				addSubjectChangeToHistory(room, msg.getElement(), subject.getCData(), senderJID, nickName, sendDate);
 			}
 
-			sendMessagesToAllOccupants(room, senderRoomJID, msg);
+			if (chatStateOnly) {
+				chatStateCoalescer.submit(room, senderRoomJID, msg, this::sendMessagesToAllOccupants);
+			} else {
+				chatStateCoalescer.cancel(senderRoomJID);
+				sendMessagesToAllOccupants(room, senderRoomJID, msg);
+			}
 		} catch (MUCException e1) {
 			throw e1;
 		} catch (TigaseStringprepException e) {
@@ -257,23 +277,19 @@ public class GroupchatMessageModule
 	public void sendMessagesToAllOccupantsJids(final Room room, final JID fromJID, final Packet msg)
 			throws TigaseStringprepException {
 
-		for (String nickname : room.getOccupantsNicknames()) {
-			final Role role = room.getRole(nickname);
-
-			if (!role.isReceiveMessages()) {
-				continue;
+		final Room.Roster roster = room.getRoster();
+		// payload is shared between all sent messages, only envelope is created for each recipient
+		final BroadcastPacketTemplate template = new BroadcastPacketTemplate(msg);
+		final List<Packet> packets = parallelFanOut.prepare(roster, (occupant, result) -> {
+			if (!occupant.getRole().isReceiveMessages()) {
+				return;
 			}
 
-			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
-
-			for (JID jid : occupantJids) {
-				Packet message = msg.copyElementOnly();// Packet.packetInstance(e);
-				message.initVars(fromJID, jid);
-				message.setXMLNS(Packet.CLIENT_XMLNS);
-
-				write(message);
+			for (int j = 0; j < occupant.getJidsCount(); j++) {
+				result.add(template.createPacket(fromJID, occupant.getJid(j)));
 			}
-		}
+		});
+		writeAll(packets);
 	}
 
 	protected void addMessageToHistory(Room room, final Element message, String body, JID senderJid,
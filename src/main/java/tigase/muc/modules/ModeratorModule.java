@@ -38,6 +38,7 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 
 /**
@@ -377,9 +378,12 @@ public class ModeratorModule
 			}
 		}
 
-		for (String occupantNickname : room.getOccupantsNicknames()) {
-			final Role role = room.getRole(occupantNickname);
-			final BareJID occupantBareJid = room.getOccupantsJidByNickname(occupantNickname);
+		final Room.Roster roster = room.getRoster();
+		for (int i = 0; i < roster.size(); i++) {
+			final Room.Roster.Occupant occupant = roster.get(i);
+			final String occupantNickname = occupant.getNickname();
+			final Role role = occupant.getRole();
+			final BareJID occupantBareJid = occupant.getJid();
 			final Affiliation affiliation = room.getAffiliation(occupantBareJid);
 
 			if (filterRole != null && role == filterRole ||
@@ -415,22 +419,34 @@ public class ModeratorModule
 				throw new MUCException(Authorization.NOT_ACCEPTABLE);
 			}
 
-			for (Element item : items) {
-				checkItem(room, item, senderJid, senderAffiliation, senderRole);
-			}
-			for (Element item : items) {
-				final Role newRole = getRole(item);
-				final Affiliation newAffiliation = getAffiliation(item);
-				final String reason = getReason(item);
-				final String actor = senderJid.toString();
-
-				if (newAffiliation != null) {
-					processSetAffiliation(room, item, newAffiliation, newRole, reason, actor);
+			// items are checked and applied while holding room lock, so no concurrent change may invalidate checks,
+			// but occupants are notified about changes after the lock is released
+			final List<ChangeNotification> notifications = new ArrayList<ChangeNotification>(items.size());
+			final Lock roomWriteLock = room.getWriteLock();
+			roomWriteLock.lock();
+			try {
+				for (Element item : items) {
+					checkItem(room, item, senderJid, senderAffiliation, senderRole);
 				}
-				if (newRole != null) {
-					String occupantNick = item.getAttributeStaticStr("nick");
-					processSetRole(room, occupantNick, newRole, reason, actor);
+				for (Element item : items) {
+					final Role newRole = getRole(item);
+					final Affiliation newAffiliation = getAffiliation(item);
+					final String reason = getReason(item);
+					final String actor = senderJid.toString();
+
+					if (newAffiliation != null) {
+						notifications.add(processSetAffiliation(room, item, newAffiliation, newRole, reason, actor));
+					}
+					if (newRole != null) {
+						String occupantNick = item.getAttributeStaticStr("nick");
+						notifications.add(processSetRole(room, occupantNick, newRole, reason, actor));
+					}
 				}
+			} finally {
+				roomWriteLock.unlock();
+			}
+			for (ChangeNotification notification : notifications) {
+				notification.send();
 			}
 			write(element.okResult((Element) null, 0));
 		} catch (MUCException e1) {
@@ -441,8 +457,13 @@ public class ModeratorModule
 		}
 	}
 
-	protected void processSetAffiliation(Room room, Element item, Affiliation newAffiliation, Role newRole,
-										 String reason, String actor)
+	/**
+	 * Changes affiliation of occupant. Has to be called while holding room write lock.
+	 *
+	 * @return notification about the change, which should be sent after room lock is released.
+	 */
+	protected ChangeNotification processSetAffiliation(Room room, Element item, Affiliation newAffiliation,
+													   Role newRole, String reason, String actor)
 			throws RepositoryException, TigaseStringprepException {
 
 		final BareJID occupantBareJid = JID.jidInstance(item.getAttributeStaticStr("jid")).getBareJID();
@@ -453,15 +474,16 @@ public class ModeratorModule
 							 previousAffiliation + ")");
 		}
 
-		if (room.getConfig().isRoomMembersOnly() && (previousAffiliation.getWeight() <= Affiliation.none.getWeight()) &&
-				(newAffiliation.getWeight() >= Affiliation.member.getWeight())) {
-			sendInvitation(room, occupantBareJid, actor);
-		}
+		final boolean invite = room.getConfig().isRoomMembersOnly() &&
+				(previousAffiliation.getWeight() <= Affiliation.none.getWeight()) &&
+				(newAffiliation.getWeight() >= Affiliation.member.getWeight());
 		room.addAffiliationByJid(occupantBareJid, newAffiliation);
 
 		boolean isUnavailable = false;
 		Set<String> codes = new HashSet<String>();
-		Collection<String> occupantsNicknames = room.getOccupantsNicknames(occupantBareJid);
+		final Collection<String> occupantsNicknames = new ArrayList<String>(
+				room.getOccupantsNicknames(occupantBareJid));
+		final List<Packet> kickPackets = new ArrayList<Packet>();
 
 		boolean kick = newAffiliation == Affiliation.outcast;
 		kick |= room.getConfig().isRoomMembersOnly() && newAffiliation == Affiliation.none;
@@ -473,62 +495,85 @@ public class ModeratorModule
 				codes.add("301");
 				isUnavailable = true;
 
-				final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(occupantNick);
+				final Collection<JID> occupantJids = new ArrayList<JID>(room.getOccupantsJidsByNickname(occupantNick));
 
 				for (JID jid : occupantJids) {
 					Packet occupantKickPresence = makePresence(jid, room.getRoomJID(), room, occupantBareJid,
 															   isUnavailable, newAffiliation, newRole, occupantNick,
 															   reason, actor, codes.toArray(new String[]{}));
 
-					write(occupantKickPresence);
+					kickPackets.add(occupantKickPresence);
 				}
 				room.removeOccupant(occupantNick);
 				ghostbuster.remove(occupantJids, room);
 			}
 		}
 
-		if (log.isLoggable(Level.FINE)) {
-			log.fine("Sending new affiliation of " + occupantBareJid + " to occupants " + room.getOccupantsNicknames());
+		final Map<String, Role> currentRoles = new HashMap<String, Role>();
+		for (String changedNickname : occupantsNicknames) {
+			currentRoles.put(changedNickname, room.getRole(changedNickname));
 		}
-		for (String nickname : room.getOccupantsNicknames()) {
-			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
+		final Room.Roster roster = room.getRoster();
+		final boolean unavailable = isUnavailable;
+		final String[] presenceCodes = codes.toArray(new String[]{});
 
-			if (log.isLoggable(Level.FINER)) {
-				log.finer("Sending new affiliation of " + occupantBareJid + " to occupant " + nickname + " (" +
-								  occupantJids + ")");
+		return () -> {
+			if (invite) {
+				sendInvitation(room, occupantBareJid, actor);
 			}
+			writeAll(kickPackets);
 
-			for (JID jid : occupantJids) {
-				for (String changedNickname : occupantsNicknames) {
-					final Role currentRole = room.getRole(changedNickname);
-					Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantBareJid, isUnavailable,
-														   newAffiliation, currentRole, changedNickname, reason, null,
-														   codes.toArray(new String[]{}));
-					write(occupantPresence);
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Sending new affiliation of " + occupantBareJid + " to " + roster.size() + " occupants");
+			}
+			final List<Packet> packets = new ArrayList<Packet>(roster.size() * occupantsNicknames.size());
+			for (int i = 0; i < roster.size(); i++) {
+				final Room.Roster.Occupant occupant = roster.get(i);
+
+				if (log.isLoggable(Level.FINER)) {
+					log.finer("Sending new affiliation of " + occupantBareJid + " to occupant " + occupant);
+				}
+
+				for (int j = 0; j < occupant.getJidsCount(); j++) {
+					final JID jid = occupant.getJid(j);
+					for (String changedNickname : occupantsNicknames) {
+						Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantBareJid,
+															   unavailable, newAffiliation,
+															   currentRoles.get(changedNickname), changedNickname,
+															   reason, null, presenceCodes);
+						packets.add(occupantPresence);
+					}
 				}
 			}
-		}
+			writeAll(packets);
+		};
 	}
 
-	protected void processSetRole(Room room, String occupantNick, Role newRole, String reason, String actor)
-			throws TigaseStringprepException {
+	/**
+	 * Changes role of occupant. Has to be called while holding room write lock.
+	 *
+	 * @return notification about the change, which should be sent after room lock is released.
+	 */
+	protected ChangeNotification processSetRole(Room room, String occupantNick, Role newRole, String reason,
+												String actor) throws TigaseStringprepException {
 		final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNick);
 		final Affiliation occupantAffiliation = room.getAffiliation(occupantJid);
 		boolean isUnavailable = false;
 		List<String> codes = new ArrayList<String>();
+		final List<Packet> kickPackets = new ArrayList<Packet>();
 
 		if (newRole == Role.none) {
 			codes.add("307");
 			isUnavailable = true;
 
-			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(occupantNick);
+			final Collection<JID> occupantJids = new ArrayList<JID>(room.getOccupantsJidsByNickname(occupantNick));
 
 			for (JID jid : occupantJids) {
 				Packet occupantKickPresence = makePresence(jid, room.getRoomJID(), room, occupantJid, isUnavailable,
 														   occupantAffiliation, newRole, occupantNick, reason, actor,
 														   codes.toArray(new String[]{}));
 
-				write(occupantKickPresence);
+				kickPackets.add(occupantKickPresence);
 			}
 			room.removeOccupant(occupantNick);
 			ghostbuster.remove(occupantJids, room);
@@ -536,18 +581,29 @@ public class ModeratorModule
 			room.setNewRole(occupantNick, newRole);
 		}
 
-		// sending presence to all occupants
-		for (String nickname : room.getOccupantsNicknames()) {
-			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
+		final Room.Roster roster = room.getRoster();
+		final boolean unavailable = isUnavailable;
+		final String[] presenceCodes = codes.toArray(new String[]{});
 
-			for (JID jid : occupantJids) {
-				Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantJid, isUnavailable,
-													   occupantAffiliation, newRole, occupantNick, reason, null,
-													   codes.toArray(new String[]{}));
+		return () -> {
+			writeAll(kickPackets);
+
+			// sending presence to all occupants
+			final List<Packet> packets = new ArrayList<Packet>(roster.size());
+			for (int i = 0; i < roster.size(); i++) {
+				final Room.Roster.Occupant occupant = roster.get(i);
+
+				for (int j = 0; j < occupant.getJidsCount(); j++) {
+					final JID jid = occupant.getJid(j);
+					Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantJid, unavailable,
+														   occupantAffiliation, newRole, occupantNick, reason, null,
+														   presenceCodes);
 
-				write(occupantPresence);
+					packets.add(occupantPresence);
+				}
 			}
-		}
+			writeAll(packets);
+		};
 	}
 
 	protected void sendInvitation(Room room, BareJID occupantBareJid, String actor) throws TigaseStringprepException {
@@ -569,6 +625,17 @@ public class ModeratorModule
 		write(message);
 	}
 
+	/**
+	 * Notification of occupants about change of affiliation or role, prepared while holding room lock and sent after
+	 * it is released.
+	 */
+	@FunctionalInterface
+	protected interface ChangeNotification {
+
+		void send() throws TigaseStringprepException;
+
+	}
+
 	static class Item
 			extends Element {
 
@@ -22,6 +22,7 @@ import tigase.muc.Affiliation;
 import tigase.muc.Role;
 import tigase.muc.Room;
 import tigase.muc.RoomConfig.Anonymity;
+import tigase.muc.RosterChangelog;
 import tigase.server.Packet;
 import tigase.server.Priority;
 import tigase.util.stringprep.TigaseStringprepException;
@@ -42,6 +43,11 @@ public interface PresenceModule
 
 	void doQuit(final Room room, final JID senderJID) throws TigaseStringprepException;
 
+	/**
+	 * Removes many occupants from room at once, ie. after mass disconnection of users.
+	 */
+	void doQuit(final Room room, final Collection<JID> senderJIDs) throws TigaseStringprepException;
+
 	public void sendPresencesToNewOccupant(Room room, JID senderJID) throws TigaseStringprepException;
 
 	public static class PresenceWrapper {
@@ -150,4 +156,111 @@ public interface PresenceModule
 		}
 	}
 
+	/**
+	 * Template of presence of a single occupant sent to many recipients. Recipient may see the presence with or without
+	 * real JIDs of occupant, and with or without status codes sent only to occupant itself, so at most four variants of
+	 * presence are built. For each recipient only an envelope with destination JID is created.
+	 * <br>
+	 * Wrappers created from template share their children, so they must not be modified.
+	 */
+	public static class PresenceTemplate {
+
+		private final Affiliation occupantAffiliation;
+		private final BareJID occupantBareJID;
+		private final Collection<JID> occupantJIDs;
+		private final JID occupantRoomJID;
+		private final String occupantNickname;
+		private final Role occupantRole;
+		private final Element presence;
+		private final boolean newRoomCreated;
+		private final String newNickName;
+		private final Room room;
+		private final Variant[] variants = new Variant[4];
+
+		public PresenceTemplate(Room room, Element presence, BareJID occupantBareJID, Collection<JID> occupantJIDs,
+								String occupantNickname, Affiliation occupantAffiliation, Role occupantRole,
+								boolean newRoomCreated, String newNickName) throws TigaseStringprepException {
+			this.room = room;
+			this.presence = presence;
+			this.occupantBareJID = occupantBareJID;
+			this.occupantJIDs = occupantJIDs;
+			this.occupantNickname = occupantNickname;
+			this.occupantAffiliation = occupantAffiliation;
+			this.occupantRole = occupantRole;
+			this.newRoomCreated = newRoomCreated;
+			this.newNickName = newNickName;
+			this.occupantRoomJID = JID.jidInstance(room.getRoomJID(), occupantNickname);
+		}
+
+		public PresenceWrapper createWrapper(final JID destinationJID) {
+			final Anonymity anonymity = room.getConfig().getRoomAnonymity();
+			final boolean withRealJids = (anonymity == Anonymity.nonanonymous) ||
+					((anonymity == Anonymity.semianonymous) &&
+							room.getAffiliation(destinationJID.getBareJID()).isViewOccupantsJid());
+			final boolean self = occupantBareJID != null && occupantBareJID.equals(destinationJID.getBareJID());
+
+			final int idx = (withRealJids ? 1 : 0) | (self ? 2 : 0);
+			Variant variant = variants[idx];
+			if (variant == null) {
+				variant = new Variant(withRealJids, self, anonymity);
+				variants[idx] = variant;
+			}
+
+			final Packet packet = variant.template.createPacket(occupantRoomJID, destinationJID);
+			if (self) {
+				packet.setPriority(Priority.HIGH);
+			}
+			return new PresenceWrapper(packet, variant.x, variant.items);
+		}
+
+		private final class Variant {
+
+			private final Element[] items;
+			private final BroadcastPacketTemplate template;
+			private final Element x;
+
+			Variant(boolean withRealJids, boolean self, Anonymity anonymity) {
+				final Element p = presence.clone();
+				x = new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc#user"});
+
+				final ArrayList<Element> items = new ArrayList<Element>();
+				if (withRealJids) {
+					for (JID jid : occupantJIDs) {
+						Element item = new Element("item", new String[]{"affiliation", "role", "nick", "jid"},
+												   new String[]{occupantAffiliation.name(), occupantRole.name(),
+																occupantNickname, jid.toString()});
+						x.addChild(item);
+						items.add(item);
+					}
+				} else {
+					Element item = new Element("item", new String[]{"affiliation", "role", "nick"},
+											   new String[]{occupantAffiliation.name(), occupantRole.name(),
+															occupantNickname});
+					x.addChild(item);
+					items.add(item);
+				}
+				p.addChild(x);
+				this.items = items.toArray(new Element[items.size()]);
+
+				final PresenceWrapper wrapper = new PresenceWrapper(null, x, this.items);
+				if (self) {
+					wrapper.addStatusCode(110);
+					if (anonymity == Anonymity.nonanonymous) {
+						wrapper.addStatusCode(100);
+					}
+					if (room.getConfig().isLoggingEnabled()) {
+						wrapper.addStatusCode(170);
+					}
+					// version of roster which may be used by occupant to receive only changes when rejoining
+					p.addChild(new Element("roster", new String[]{"xmlns", "ver"},
+										   new String[]{RosterChangelog.XMLNS,
+														room.getRosterChangelog().getVersion()}));
+				}
+				PresenceModuleImpl.addCodes(wrapper, newRoomCreated, newNickName);
+
+				this.template = new BroadcastPacketTemplate(p);
+			}
+		}
+	}
+
 }
\ No newline at end of file
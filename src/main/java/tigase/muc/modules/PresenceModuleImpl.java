@@ -17,7 +17,9 @@
  */
 package tigase.muc.modules;
 
+import tigase.component.PacketWriter;
 import tigase.component.exceptions.RepositoryException;
+import tigase.component.responses.AsyncCallback;
 import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
 import tigase.kernel.beans.Bean;
@@ -29,6 +31,7 @@ import tigase.muc.logger.MucLogger;
 import tigase.muc.repository.IMucRepository;
 import tigase.server.Message;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.util.datetime.TimestampHelper;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
@@ -39,6 +42,8 @@ import tigase.xmpp.jid.JID;
 
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,11 +53,14 @@ import java.util.logging.Logger;
 @Bean(name = PresenceModuleImpl.ID, parent = MUCComponent.class, active = true)
 public class PresenceModuleImpl
 		extends AbstractMucModule
-		implements PresenceModule {
+		implements PresenceModule, MUCStatisticsProvider {
 
 	protected static final Logger log = Logger.getLogger(PresenceModule.class.getName());
 	private static final Criteria CRIT = ElementCriteria.name("presence");
 	private final Set<Criteria> allowedElements = new HashSet<Criteria>();
+	private final AtomicLong fullRostersSent = new AtomicLong();
+	private final AtomicLong rosterDeltasSent = new AtomicLong();
+	private final AtomicLong suppressedPresenceBroadcasts = new AtomicLong();
 	@Inject
 	private MUCConfig config;
 	@Inject
@@ -60,8 +68,18 @@ public class PresenceModuleImpl
 	@Inject
 	private HistoryProvider historyProvider;
 	@Inject(nullAllowed = true)
+	private DelayedDeliveryQueue delayedDeliveryQueue;
+	@Inject(nullAllowed = true)
 	private MucLogger mucLogger;
 	@Inject
+	private JoinAdmissionController joinAdmissionController;
+	@Inject
+	private OccupantsCountNotifier occupantsCountNotifier;
+	@Inject
+	private ParallelFanOut parallelFanOut;
+	@Inject
+	private PresenceDebouncer presenceDebouncer;
+	@Inject
 	private IMucRepository repository;
 
 	private TimestampHelper dateTimeFormatter = new TimestampHelper();
@@ -217,70 +235,32 @@ public class PresenceModuleImpl
 
 		room.updatePresenceByJid(senderJID, leavingNickname, null);
 
-		if (config.isMultiItemMode()) {
-			final PresenceWrapper selfPresence = PresenceWrapper.preparePresenceW(room, senderJID, presenceElement,
-																				  senderJID.getBareJID(), occupantJIDs,
-																				  leavingNickname, leavingAffiliation,
-																				  Role.none);
-			write(selfPresence.packet);
-		} else {
-			Collection<JID> z = new ArrayList<JID>(1);
-			z.add(senderJID);
-
-			final PresenceWrapper selfPresence = PresenceWrapper.preparePresenceW(room, senderJID, presenceElement,
-																				  senderJID.getBareJID(), z,
-																				  leavingNickname, leavingAffiliation,
-																				  Role.none);
-			write(selfPresence.packet);
-		}
+		write(prepareSelfUnavailablePresence(room, senderJID, presenceElement, occupantJIDs, leavingNickname,
+											 leavingAffiliation));
 
 		// TODO if highest priority is gone, then send current highest priority
 		// to occupants
 		if (nicknameGone) {
-			for (String occupantNickname : room.getOccupantsNicknames()) {
-				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
-					presenceElement = new Element("presence");
-					presenceElement.setAttribute("type", "unavailable");
-
-					PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, presenceElement,
-																				senderJID.getBareJID(), occupantJIDs,
-																				leavingNickname, leavingAffiliation,
-																				Role.none);
-
-					write(presence.packet);
-				}
-			}
-			if (room.getConfig().isLoggingEnabled()) {
-				addLeaveToHistory(room, new Date(), senderJID, leavingNickname);
-			}
+			RosterPresenceCache.getInstance(room).remove(leavingNickname);
+			final Collection<JID> leavingJIDs = occupantJIDs;
+			final Date leaveDate = new Date();
+			// broadcast may be delayed and dropped if occupant rejoins the room shortly
+			presenceDebouncer.submitLeave(room, JID.jidInstance(room.getRoomJID(), leavingNickname), senderJID,
+										  () -> broadcastLeave(room, senderJID, leavingJIDs, leavingNickname,
+															   leavingAffiliation, leaveDate));
 		} else {
-			occupantJIDs = new ArrayList<JID>(room.getOccupantsJidsByNickname(leavingNickname));
-
-			Element pe = room.getLastPresenceCopy(senderJID.getBareJID(), leavingNickname);
-			if (pe == null) {
-				pe = new Element("presence", new String[]{"type"}, new String[]{"unavailable"});
-			}
-			for (String occupantNickname : room.getOccupantsNicknames()) {
-				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
-					if (config.isMultiItemMode()) {
-						PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, pe.clone(),
-																					senderJID.getBareJID(),
-																					occupantJIDs, leavingNickname,
-																					leavingAffiliation, Role.none);
-						write(presence.packet);
-					} else {
-						for (JID jid : occupantJIDs) {
-							Collection<JID> z = new ArrayList<JID>(1);
-							z.add(jid);
-							PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, pe.clone(),
-																						senderJID.getBareJID(), z,
-																						leavingNickname,
-																						leavingAffiliation, Role.none);
-							write(presence.packet);
-						}
-					}
+			final Room.Roster roster = getPresenceRecipients(room);
+			final List<Packet> packets = new ArrayList<Packet>(roster.size());
+			final List<PresenceTemplate> templates = createRemainingPresenceTemplates(room, senderJID,
+																					  leavingNickname,
+																					  leavingAffiliation);
+			for (int i = 0; i < roster.size(); i++) {
+				final Room.Roster.Occupant occupant = roster.get(i);
+				for (int j = 0; j < occupant.getJidsCount(); j++) {
+					preparePresenceToOccupant(packets, occupant.getJid(j), templates);
 				}
 			}
+			writeAll(packets);
 		}
 
 		Element event = new Element("RoomLeave", new String[]{"xmlns"}, new String[]{"tigase:events:muc"});
@@ -289,7 +269,156 @@ public class PresenceModuleImpl
 		event.addChild(new Element("jid", senderJID.toString()));
 		fireEvent(event);
 
+		checkEmptyRoom(room);
+	}
+
+	/**
+	 * Removes many occupants from room at once. All of them are removed first, then each of remaining occupants
+	 * receives unavailable presences of all leaving occupants in a single pass over list of occupants.
+	 *
+	 * @param room room which occupants are leaving.
+	 * @param senderJIDs JIDs of leaving occupants.
+	 */
+	@Override
+	public void doQuit(final Room room, final Collection<JID> senderJIDs) throws TigaseStringprepException {
+		final List<Packet> selfPackets = new ArrayList<Packet>(senderJIDs.size());
+		final Map<String, LeavingOccupant> gone = new LinkedHashMap<String, LeavingOccupant>();
+		final Map<String, LeavingOccupant> remaining = new LinkedHashMap<String, LeavingOccupant>();
+		final Map<JID, String> leftNicknames = new LinkedHashMap<JID, String>();
+
+		final Lock roomWriteLock = room.getWriteLock();
+		roomWriteLock.lock();
+		try {
+			for (JID senderJID : senderJIDs) {
+				final String leavingNickname = room.getOccupantsNickname(senderJID);
+				if (leavingNickname == null) {
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("JID " + senderJID + " has no name. It is not occupant of room " + room.getRoomJID());
+					}
+					continue;
+				}
+				final Affiliation leavingAffiliation = room.getAffiliation(leavingNickname);
+				final Collection<JID> occupantJIDs = new ArrayList<JID>(
+						room.getOccupantsJidsByNickname(leavingNickname));
+				final boolean nicknameGone = room.removeOccupant(senderJID);
+				ghostbuster.remove(senderJID, room);
+				room.updatePresenceByJid(senderJID, leavingNickname, null);
+				leftNicknames.put(senderJID, leavingNickname);
+
+				final Element presenceElement = new Element("presence", new String[]{"type"},
+															new String[]{"unavailable"});
+				selfPackets.add(
+						prepareSelfUnavailablePresence(room, senderJID, presenceElement, occupantJIDs, leavingNickname,
+													   leavingAffiliation));
+
+				final LeavingOccupant leaving = new LeavingOccupant(senderJID, leavingNickname, leavingAffiliation,
+																	occupantJIDs);
+				if (nicknameGone) {
+					remaining.remove(leavingNickname);
+					gone.put(leavingNickname, leaving);
+				} else {
+					remaining.put(leavingNickname, leaving);
+				}
+			}
+		} finally {
+			roomWriteLock.unlock();
+		}
+
+		if (log.isLoggable(Level.FINER)) {
+			log.finer(gone.size() + " occupants left room " + room.getRoomJID() + ", " + remaining.size() +
+							  " occupants closed some of connections");
+		}
+
+		writeAll(selfPackets);
+
+		final List<List<PresenceTemplate>> templates = new ArrayList<List<PresenceTemplate>>(
+				gone.size() + remaining.size());
+		final RosterPresenceCache cache = RosterPresenceCache.getInstance(room);
+		for (LeavingOccupant leaving : gone.values()) {
+			cache.remove(leaving.nickname);
+			final Element presenceElement = new Element("presence", new String[]{"type"},
+														new String[]{"unavailable"});
+			templates.add(Collections.singletonList(
+					new PresenceTemplate(room, presenceElement, leaving.jid.getBareJID(), leaving.jids,
+										 leaving.nickname, leaving.affiliation, Role.none, false, null)));
+		}
+		for (LeavingOccupant leaving : remaining.values()) {
+			templates.add(createRemainingPresenceTemplates(room, leaving.jid, leaving.nickname, leaving.affiliation));
+		}
+
+		// single pass over remaining occupants
+		final Room.Roster roster = getPresenceRecipients(room);
+		final List<Packet> packets = new ArrayList<Packet>(roster.size() * templates.size());
+		for (int i = 0; i < roster.size(); i++) {
+			final Room.Roster.Occupant occupant = roster.get(i);
+			for (int j = 0; j < occupant.getJidsCount(); j++) {
+				for (List<PresenceTemplate> occupantTemplates : templates) {
+					preparePresenceToOccupant(packets, occupant.getJid(j), occupantTemplates);
+				}
+			}
+		}
+		writeAll(packets);
+
+		if (room.getConfig().isLoggingEnabled()) {
+			final Date leaveDate = new Date();
+			for (LeavingOccupant leaving : gone.values()) {
+				addLeaveToHistory(room, leaveDate, leaving.jid, leaving.nickname);
+			}
+		}
+		if (!gone.isEmpty()) {
+			occupantsCountNotifier.occupantsChanged(room);
+		}
+
+		for (Map.Entry<JID, String> left : leftNicknames.entrySet()) {
+			Element event = new Element("RoomLeave", new String[]{"xmlns"}, new String[]{"tigase:events:muc"});
+			event.addChild(new Element("room", room.getRoomJID().toString()));
+			event.addChild(new Element("nickname", left.getValue()));
+			event.addChild(new Element("jid", left.getKey().toString()));
+			fireEvent(event);
+		}
+
+		checkEmptyRoom(room);
+	}
+
+	private Packet prepareSelfUnavailablePresence(final Room room, final JID senderJID, final Element presenceElement,
+												  final Collection<JID> occupantJIDs, final String leavingNickname,
+												  final Affiliation leavingAffiliation)
+			throws TigaseStringprepException {
+		final Collection<JID> jids;
+		if (config.isMultiItemMode()) {
+			jids = occupantJIDs;
+		} else {
+			jids = new ArrayList<JID>(1);
+			jids.add(senderJID);
+		}
+		final PresenceWrapper selfPresence = PresenceWrapper.preparePresenceW(room, senderJID, presenceElement,
+																			  senderJID.getBareJID(), jids,
+																			  leavingNickname, leavingAffiliation,
+																			  Role.none);
+		return selfPresence.packet;
+	}
+
+	/**
+	 * Creates templates of presence of occupant which closed one of connections, but is still in room.
+	 */
+	private List<PresenceTemplate> createRemainingPresenceTemplates(final Room room, final JID senderJID,
+																	final String leavingNickname,
+																	final Affiliation leavingAffiliation)
+			throws TigaseStringprepException {
+		final Collection<JID> occupantJIDs = new ArrayList<JID>(room.getOccupantsJidsByNickname(leavingNickname));
+
+		Element pe = room.getLastPresenceCopy(senderJID.getBareJID(), leavingNickname);
+		if (pe == null) {
+			pe = new Element("presence", new String[]{"type"}, new String[]{"unavailable"});
+		}
+		return createPresenceTemplates(room, pe, senderJID.getBareJID(), occupantJIDs, leavingNickname,
+									   leavingAffiliation, Role.none, false, null);
+	}
+
+	private void checkEmptyRoom(final Room room) {
 		if (room.getOccupantsCount() == 0) {
+			// delayed leaves have to be processed before history of the room is removed
+			presenceDebouncer.flushLeaves(room.getRoomJID());
 			if (!room.getConfig().isPersistentRoom()) {
 				if ((historyProvider != null)) {
 					if (log.isLoggable(Level.FINE)) {
@@ -311,9 +440,41 @@ public class PresenceModuleImpl
 		}
 	}
 
+	private void broadcastLeave(final Room room, final JID senderJID, final Collection<JID> occupantJIDs,
+								final String leavingNickname, final Affiliation leavingAffiliation,
+								final Date leaveDate) throws TigaseStringprepException {
+		final Element presenceElement = new Element("presence");
+		presenceElement.setAttribute("type", "unavailable");
+		final PresenceTemplate template = new PresenceTemplate(room, presenceElement, senderJID.getBareJID(),
+															   occupantJIDs, leavingNickname, leavingAffiliation,
+															   Role.none, false, null);
+		final Room.Roster roster = getPresenceRecipients(room);
+		final List<Packet> packets = new ArrayList<Packet>(roster.size());
+		for (int i = 0; i < roster.size(); i++) {
+			final Room.Roster.Occupant occupant = roster.get(i);
+			for (int j = 0; j < occupant.getJidsCount(); j++) {
+				packets.add(template.createWrapper(occupant.getJid(j)).packet);
+			}
+		}
+		writeAll(packets);
+		if (room.getConfig().isLoggingEnabled()) {
+			addLeaveToHistory(room, leaveDate, senderJID, leavingNickname);
+		}
+		occupantsCountNotifier.occupantsChanged(room);
+	}
+
+	/**
+	 * Returns occupants which should receive presence broadcasted by other occupant. In large channel only moderators
+	 * receive it.
+	 */
+	private Room.Roster getPresenceRecipients(final Room room) {
+		final Room.Roster roster = room.getRoster();
+		return room.getConfig().isLargeChannel() ? roster.getModerators() : roster;
+	}
+
 	@Override
 	public String[] getFeatures() {
-		return null;
+		return new String[]{RosterChangelog.XMLNS};
 	}
 
 	@Override
@@ -321,6 +482,13 @@ public class PresenceModuleImpl
 		return CRIT;
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Suppressed unchanged presence broadcasts", suppressedPresenceBroadcasts.get(), Level.FINE);
+		list.add(compName, "Full occupants lists sent", fullRostersSent.get(), Level.FINE);
+		list.add(compName, "Occupants list deltas sent", rosterDeltasSent.get(), Level.FINE);
+	}
+
 	protected PresenceWrapper preparePresence(JID destinationJID, final Element presence, Room room, JID occupantJID,
 											  boolean newRoomCreated, String newNickName)
 			throws TigaseStringprepException {
@@ -353,11 +521,24 @@ public class PresenceModuleImpl
 			Room room = repository.getRoom(roomJID);
 
 			if ((presenceType != null) && "unavailable".equals(presenceType)) {
+				// user may leave room before join was admitted
+				joinAdmissionController.cancel(roomJID, senderJID);
 				processExit(room, element.getElement(), senderJID);
 
 				return;
 			}
 
+			if (room == null || room.getOccupantsNickname(senderJID) == null) {
+				// joins of owners and admins (and creation of new rooms) are admitted first
+				final Affiliation affiliation = room == null ? Affiliation.owner : room.getAffiliation(
+						senderJID.getBareJID());
+				final boolean priority = affiliation == Affiliation.owner || affiliation == Affiliation.admin;
+				if (!joinAdmissionController.admit(element, roomJID, priority)) {
+					// join will be processed when admitted
+					return;
+				}
+			}
+
 			final String knownNickname;
 			final boolean roomCreated;
 
@@ -409,12 +590,25 @@ public class PresenceModuleImpl
 				!room.getConfig().getPresenceFilteredAffiliations().isEmpty() && room.getConfig()
 				.getPresenceFilteredAffiliations()
 				.contains(room.getAffiliation(senderJID.getBareJID())))) {
-			room.updatePresenceByJid(null, nickname, clonePresence(presenceElement));
+			if (!room.updatePresenceByJid(null, nickname, clonePresence(presenceElement))) {
+				// presence is the same as before, there is no need to broadcast it again
+				suppressedPresenceBroadcasts.incrementAndGet();
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest("Presence of " + senderJID + " in room " + room.getRoomJID() +
+									   " not changed, skipping broadcast");
+				}
+				return;
+			}
 		}
 
-		Element pe = room.getLastPresenceCopyByJid(senderJID.getBareJID());
-
-		sendPresenceToAllOccupants(pe, room, senderJID, false, null);
+		// successive changes of presence may be collapsed, so broadcast the latest presence when it is sent
+		presenceDebouncer.submitUpdate(room, JID.jidInstance(room.getRoomJID(), nickname), () -> {
+			if (room.getOccupantsNickname(senderJID) == null) {
+				return;
+			}
+			Element pe = room.getLastPresenceCopyByJid(senderJID.getBareJID());
+			sendPresenceToAllOccupants(pe, room, senderJID, false, null);
+		});
 	}
 
 	protected void processChangeNickname(final Room room, final Element element, final JID senderJID,
@@ -440,6 +634,8 @@ public class PresenceModuleImpl
 		final Affiliation affiliation = room.getAffiliation(senderJID.getBareJID());
 		final Element xElement = element.getChild("x", "http://jabber.org/protocol/muc");
 		final Element password = (xElement == null) ? null : xElement.getChild("password");
+		final Element rosterElement = (xElement == null) ? null : xElement.getChild("roster", RosterChangelog.XMLNS);
+		final String knownRosterVersion = (rosterElement == null) ? null : rosterElement.getAttributeStaticStr("ver");
 
 		if (room.getConfig().isPasswordProtectedRoom()) {
 			final String psw = (password == null) ? null : password.getCData();
@@ -481,31 +677,6 @@ public class PresenceModuleImpl
 			throw new MUCException(Authorization.REGISTRATION_REQUIRED);
 		}
 
-		final BareJID currentOccupantJid = room.getOccupantsJidByNickname(nickname);
-
-		if ((currentOccupantJid != null) &&
-				(!config.isMultiItemMode() || !currentOccupantJid.equals(senderJID.getBareJID()))) {
-
-			// Service Denies Access Because of Nick Conflict
-			throw new MUCException(Authorization.CONFLICT);
-		}
-
-		final Integer roomMaxUsers = room.getConfig().getMaxUsers();
-		if (roomMaxUsers != null && currentOccupantJid == null && room.getOccupantsCount() >= roomMaxUsers) {
-			log.finest(
-					"User " + nickname + "' <" + senderJID.toString() + "> cannot join to room '" + room.getRoomJID() +
-							"' because maximum number of occupants is reached.");
-			throw new MUCException(Authorization.SERVICE_UNAVAILABLE, "Reached maximum number of occupants.");
-		}
-
-		final Integer roomMaxResources = room.getConfig().getMaxUserResources();
-		if (roomMaxResources != null && roomMaxResources >= room.getOccupantsJidsByNickname(nickname).size()) {
-			log.finest(
-					"User " + nickname + "' <" + senderJID.toString() + "> cannot join to room '" + room.getRoomJID() +
-							"' because maximum number of the same occupant resources is reached.");
-			throw new MUCException(Authorization.SERVICE_UNAVAILABLE, "Reached maximum number of occupant resources");
-		}
-
 		// we need to have those values ready before we will be able to join to the room as parsing those may throw exceptions
 		Integer maxchars = null;
 		Integer maxstanzas = null;
@@ -524,20 +695,71 @@ public class PresenceModuleImpl
 			}
 		}
 
-		// TODO Service Informs User that Room Occupant Limit Has Been Reached
-		// Service Sends Presence from Existing Occupants to New Occupant
-		sendPresencesToNewOccupant(room, senderJID);
+		// checking for conflicts and adding occupant has to be atomic, otherwise two concurrent joins with the same
+		// nickname could both pass the check; presences are sent to new occupant after releasing the lock from the
+		// roster snapshot taken while adding occupant, so large rooms are not blocked while they are written
+		final Room.Roster roster;
+		final Set<String> changedNicknames;
+		final boolean rejoined;
+		final Lock roomWriteLock = room.getWriteLock();
+		roomWriteLock.lock();
+		try {
+			final BareJID currentOccupantJid = room.getOccupantsJidByNickname(nickname);
 
-		final Role newRole = getDefaultRole(room.getConfig(), affiliation);
+			if ((currentOccupantJid != null) &&
+					(!config.isMultiItemMode() || !currentOccupantJid.equals(senderJID.getBareJID()))) {
 
-		if (log.isLoggable(Level.FINEST)) {
-			log.finest(
-					"Occupant '" + nickname + "' <" + senderJID.toString() + "> is entering room " + room.getRoomJID() +
-							" as role=" + newRole.name() + ", affiliation=" + affiliation.name());
+				// Service Denies Access Because of Nick Conflict
+				throw new MUCException(Authorization.CONFLICT);
+			}
+
+			final Integer roomMaxUsers = room.getConfig().getMaxUsers();
+			if (roomMaxUsers != null && currentOccupantJid == null && room.getOccupantsCount() >= roomMaxUsers) {
+				log.finest(
+						"User " + nickname + "' <" + senderJID.toString() + "> cannot join to room '" + room.getRoomJID() +
+								"' because maximum number of occupants is reached.");
+				throw new MUCException(Authorization.SERVICE_UNAVAILABLE, "Reached maximum number of occupants.");
+			}
+
+			final Integer roomMaxResources = room.getConfig().getMaxUserResources();
+			if (roomMaxResources != null && roomMaxResources >= room.getOccupantsJidsByNickname(nickname).size()) {
+				log.finest(
+						"User " + nickname + "' <" + senderJID.toString() + "> cannot join to room '" + room.getRoomJID() +
+								"' because maximum number of the same occupant resources is reached.");
+				throw new MUCException(Authorization.SERVICE_UNAVAILABLE, "Reached maximum number of occupant resources");
+			}
+
+			// TODO Service Informs User that Room Occupant Limit Has Been Reached
+			// if occupant knows version of roster, only presences changed since then are sent
+			roster = room.getRoster();
+			changedNicknames = (knownRosterVersion == null)
+							   ? null
+							   : room.getRosterChangelog().getChangedSince(knownRosterVersion);
+
+			final Role newRole = getDefaultRole(room.getConfig(), affiliation);
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest(
+						"Occupant '" + nickname + "' <" + senderJID.toString() + "> is entering room " + room.getRoomJID() +
+								" as role=" + newRole.name() + ", affiliation=" + affiliation.name());
+			}
+
+			// if occupant left shortly before, other occupants will see this join as presence update; unavailable
+			// presence of other occupant which used this nickname is sent before new occupant is added
+			rejoined = presenceDebouncer.rejoin(JID.jidInstance(room.getRoomJID(), nickname), senderJID);
+
+			Element pe = clonePresence(element);
+			room.addOccupantByJid(senderJID, nickname, newRole, pe);
+		} finally {
+			roomWriteLock.unlock();
 		}
 
-		Element pe = clonePresence(element);
-		room.addOccupantByJid(senderJID, nickname, newRole, pe);
+		// Service Sends Presence from Existing Occupants to New Occupant
+		if (changedNicknames == null) {
+			sendPresencesToNewOccupant(room, senderJID, roster);
+		} else {
+			sendChangedPresencesToNewOccupant(room, senderJID, nickname, roster, changedNicknames);
+		}
 
 		ghostbuster.add(senderJID, room);
 
@@ -547,6 +769,7 @@ public class PresenceModuleImpl
 		// Service Sends New Occupant's Presence to New Occupant
 		sendPresenceToAllOccupants(room, senderJID, roomCreated, null);
 		// }
+		occupantsCountNotifier.occupantsChanged(room);
 
 		Element event = new Element("RoomJoin", new String[]{"xmlns"}, new String[]{"tigase:events:muc"});
 		event.addChild(new Element("room", room.getRoomJID().toString()));
@@ -554,7 +777,11 @@ public class PresenceModuleImpl
 		event.addChild(new Element("jid", senderJID.toString()));
 		fireEvent(event);
 
-		sendHistoryToUser(room, senderJID, maxchars, maxstanzas, seconds, since);
+		// history and subject are delivered together, so subject is still received after history
+		final HistoryCollector delayed =
+				delayedDeliveryQueue != null && delayedDeliveryQueue.isEnabled() ? new HistoryCollector() : null;
+		final PacketWriter historyWriter = delayed == null ? writer : delayed;
+		sendHistoryToUser(room, senderJID, maxchars, maxstanzas, seconds, since, historyWriter);
 		if ((room.getSubjectChangerNick() != null) && (room.getSubjectChangeDate() != null)) {
 			Element message = new Element(Message.ELEM_NAME,
 										  new String[]{Packet.TYPE_ATT, Packet.FROM_ATT, Packet.TO_ATT, Packet.ID_ATT},
@@ -581,7 +808,11 @@ public class PresenceModuleImpl
 			Packet p = Packet.packetInstance(message);
 			p.setXMLNS(Packet.CLIENT_XMLNS);
 
-			write(p);
+			historyWriter.write(p);
+		}
+		if (delayed != null && !delayedDeliveryQueue.put(delayed.elements)) {
+			// queue is full, history is delivered right away
+			writer.write(delayed.packets);
 		}
 		if (room.isRoomLocked() && config.isWelcomeMessagesEnabled() && room.getConfig().isWelcomeMessageEnabled()) {
 			sendMucMessage(room, room.getOccupantsNickname(senderJID), "Room is locked. Please configure.");
@@ -600,7 +831,7 @@ public class PresenceModuleImpl
 				sendMucMessage(room, room.getOccupantsNickname(senderJID), sb.toString());
 			}
 		}
-		if (room.getConfig().isLoggingEnabled()) {
+		if (room.getConfig().isLoggingEnabled() && !rejoined) {
 			addJoinToHistory(room, new Date(), senderJID, nickname);
 		}
 
@@ -631,13 +862,14 @@ public class PresenceModuleImpl
 	}
 
 	private void sendHistoryToUser(final Room room, final JID senderJID, final Integer maxchars,
-								   final Integer maxstanzas, final Integer seconds, final Date since) {
+								   final Integer maxstanzas, final Integer seconds, final Date since,
+								   final PacketWriter historyWriter) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Sending history to user using: " + historyProvider + " history provider");
 		}
 
 		if (historyProvider != null) {
-			historyProvider.getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
+			historyProvider.getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, historyWriter);
 		}
 	}
 
@@ -648,48 +880,107 @@ public class PresenceModuleImpl
 		final BareJID occupantJID = room.getOccupantsJidByNickname(occupantNickname);
 		final Affiliation occupantAffiliation = room.getAffiliation(occupantJID);
 		final Role occupantRole = room.getRole(occupantNickname);
-
-		Collection<String> occupantsNicknames;
-
-		if (room.getConfig().isPresenceFilterEnabled()) {
+		// presence of occupant is built once and only addressed to each of recipients
+		final List<PresenceTemplate> templates = createPresenceTemplates(room, $presence, occupantJID,
+																		 room.getOccupantsJidsByNickname(
+																				 occupantNickname), occupantNickname,
+																		 occupantAffiliation, occupantRole,
+																		 newRoomCreated, newNickName);
+
+		if (room.getConfig().isLargeChannel()) {
+			// presence is sent back to the occupant and to moderators only
+			final Room.Roster moderators = room.getRoster().getModerators();
+			final List<Packet> packets = new ArrayList<Packet>(moderators.size() + 1);
+			for (JID destinationJID : room.getOccupantsJidsByNickname(occupantNickname)) {
+				preparePresenceToOccupant(packets, destinationJID, templates);
+			}
+			for (int i = 0; i < moderators.size(); i++) {
+				final Room.Roster.Occupant destination = moderators.get(i);
+				if (destination.getNickname().equals(occupantNickname)) {
+					continue;
+				}
+				for (int j = 0; j < destination.getJidsCount(); j++) {
+					preparePresenceToOccupant(packets, destination.getJid(j), templates);
+				}
+			}
+			writeAll(packets);
+		} else if (room.getConfig().isPresenceFilterEnabled()) {
+			Collection<JID> occupantsJIDs;
 			if (room.getConfig().getPresenceFilteredAffiliations().contains(occupantAffiliation)) {
 				// we only want users with propper affiliation
-				occupantsNicknames = room.getPresenceFiltered().getOccupantsPresenceFilteredNicknames();
+				occupantsJIDs = room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs();
 			} else {
 				// only send presence back to user that joined
-				occupantsNicknames = Arrays.asList(occupantNickname);
+				occupantsJIDs = room.getOccupantsJidsByNickname(occupantNickname);
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Sending presence to all occupants, filtering enabled: " +
+						room.getConfig().isPresenceFilterEnabled() + ", occupantsJIDs: " + occupantsJIDs);
+			}
+
+			final List<Packet> packets = new ArrayList<Packet>(occupantsJIDs.size());
+			for (JID destinationJID : occupantsJIDs) {
+				preparePresenceToOccupant(packets, destinationJID, templates);
 			}
+			writeAll(packets);
 		} else {
 			// no filtering, send presence to all users
-			occupantsNicknames = room.getOccupantsNicknames();
+			final Room.Roster roster = room.getRoster();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Sending presence to all " + roster.size() + " occupants, filtering disabled");
+			}
+
+			final List<Packet> packets = parallelFanOut.prepare(roster, (destination, result) -> {
+				for (int j = 0; j < destination.getJidsCount(); j++) {
+					preparePresenceToOccupant(result, destination.getJid(j), templates);
+				}
+			});
+			writeAll(packets);
 		}
+	}
 
-		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "Sending presence to all occupants, filtering enabled: " +
-					room.getConfig().isPresenceFilterEnabled() + ", occupantsNicknames: " +
-					Arrays.asList(occupantsNicknames));
+	private List<PresenceTemplate> createPresenceTemplates(final Room room, final Element presence,
+														   final BareJID occupantJID,
+														   final Collection<JID> occupantJIDs,
+														   final String occupantNickname,
+														   final Affiliation occupantAffiliation,
+														   final Role occupantRole, final boolean newRoomCreated,
+														   final String newNickName)
+			throws TigaseStringprepException {
+		if (config.isMultiItemMode()) {
+			return Collections.singletonList(
+					new PresenceTemplate(room, presence, occupantJID, occupantJIDs, occupantNickname,
+										 occupantAffiliation, occupantRole, newRoomCreated, newNickName));
+		} else {
+			// each of occupant JIDs is sent in separate presence
+			final List<PresenceTemplate> templates = new ArrayList<PresenceTemplate>(occupantJIDs.size());
+			for (JID jid : occupantJIDs) {
+				templates.add(new PresenceTemplate(room, presence, occupantJID, Collections.singletonList(jid),
+												   occupantNickname, occupantAffiliation, occupantRole,
+												   newRoomCreated, newNickName));
+			}
+			return templates;
 		}
+	}
 
-		for (String destinationNickname : occupantsNicknames) {
-			for (JID destinationJID : room.getOccupantsJidsByNickname(destinationNickname)) {
+	private List<PresenceTemplate> createRosterPresenceTemplates(final Room room, final Room.Roster.Occupant occupant,
+																 final Element presence,
+																 final Affiliation occupantAffiliation)
+			throws TigaseStringprepException {
+		final Collection<JID> occupantJIDs = new ArrayList<JID>(occupant.getJidsCount());
+		for (int j = 0; j < occupant.getJidsCount(); j++) {
+			occupantJIDs.add(occupant.getJid(j));
+		}
+		return createPresenceTemplates(room, presence, occupant.getJid(), occupantJIDs, occupant.getNickname(),
+									   occupantAffiliation, occupant.getRole(), false, null);
+	}
 
-				if (config.isMultiItemMode()) {
-					PresenceWrapper presence = preparePresence(destinationJID, $presence.clone(), room, senderJID,
-															   newRoomCreated, newNickName);
-					write(presence.packet);
-				} else {
-					for (JID jid : room.getOccupantsJidsByNickname(occupantNickname)) {
-						Collection<JID> z = new ArrayList<JID>(1);
-						z.add(jid);
-						PresenceWrapper l = PresenceWrapper.preparePresenceW(room, destinationJID, $presence.clone(),
-																			 occupantJID, z, occupantNickname,
-																			 occupantAffiliation, occupantRole);
-						addCodes(l, newRoomCreated, newNickName);
-
-						write(l.packet);
-					}
-				}
-			}
+	private void preparePresenceToOccupant(final Collection<Packet> packets, final JID destinationJID,
+										   final List<PresenceTemplate> templates) {
+		for (PresenceTemplate template : templates) {
+			packets.add(template.createWrapper(destinationJID).packet);
 		}
 	}
 
@@ -713,8 +1004,69 @@ public class PresenceModuleImpl
 
 	@Override
 	public void sendPresencesToNewOccupant(Room room, JID senderJID) throws TigaseStringprepException {
-		BareJID currentOccupantJid = senderJID.getBareJID();
-		Affiliation senderAffiliation = room.getAffiliation(currentOccupantJid);
+		sendPresencesToNewOccupant(room, senderJID, room.getRoster());
+	}
+
+	/**
+	 * Sends to new occupant presences of all occupants from passed snapshot of roster.
+	 */
+	protected void sendPresencesToNewOccupant(Room room, JID senderJID, Room.Roster roster)
+			throws TigaseStringprepException {
+		if (!isOccupantsListAllowed(room, senderJID)) {
+			return;
+		}
+
+		final RosterPresenceCache cache = RosterPresenceCache.getInstance(room);
+		final List<Packet> packets = new ArrayList<Packet>(roster.size());
+		for (int i = 0; i < roster.size(); i++) {
+			preparePresenceOfOccupant(packets, room, senderJID, cache, roster.get(i));
+		}
+		cache.retain(room, roster);
+		fullRostersSent.incrementAndGet();
+		writeAll(packets);
+	}
+
+	/**
+	 * Sends to new occupant only presences of occupants which changed since version of roster known to new occupant.
+	 * For occupants which left the room unavailable presence is sent.
+	 *
+	 * @param nickname nickname of new occupant.
+	 * @param roster snapshot of roster taken when new occupant was added.
+	 * @param changedNicknames nicknames of occupants changed since version known to new occupant.
+	 */
+	protected void sendChangedPresencesToNewOccupant(Room room, JID senderJID, String nickname, Room.Roster roster,
+													 Collection<String> changedNicknames)
+			throws TigaseStringprepException {
+		if (!isOccupantsListAllowed(room, senderJID)) {
+			return;
+		}
+
+		final RosterPresenceCache cache = RosterPresenceCache.getInstance(room);
+		final List<Packet> packets = new ArrayList<Packet>(changedNicknames.size());
+		for (String changedNickname : changedNicknames) {
+			final Room.Roster.Occupant occupant = roster.getOccupant(changedNickname);
+			if (occupant != null) {
+				preparePresenceOfOccupant(packets, room, senderJID, cache, occupant);
+			} else if (!changedNickname.equals(nickname)) {
+				final Element presence = new Element("presence", new String[]{Packet.TYPE_ATT},
+													 new String[]{"unavailable"});
+				final Element x = new Element("x", new String[]{"xmlns"},
+											  new String[]{"http://jabber.org/protocol/muc#user"});
+				x.addChild(new Element("item", new String[]{"affiliation", "role"},
+									   new String[]{Affiliation.none.name(), Role.none.name()}));
+				presence.addChild(x);
+				final Packet packet = Packet.packetInstance(presence, JID.jidInstance(room.getRoomJID(),
+																					  changedNickname), senderJID);
+				packet.setXMLNS(Packet.CLIENT_XMLNS);
+				packets.add(packet);
+			}
+		}
+		rosterDeltasSent.incrementAndGet();
+		writeAll(packets);
+	}
+
+	private boolean isOccupantsListAllowed(final Room room, final JID senderJID) {
+		final Affiliation senderAffiliation = room.getAffiliation(senderJID.getBareJID());
 
 		// in filtered room we skip sending occupants list to new occupants
 		// witout propper affiliation
@@ -724,112 +1076,147 @@ public class PresenceModuleImpl
 				log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
 						"; new occupant doesn't have propper affiliation -  skip sending occupants list");
 			}
+			return false;
+		}
+
+		// in large channel only moderators receive presences of other occupants, so only they need occupants list
+		if (room.getConfig().isLargeChannel() &&
+				getDefaultRole(room.getConfig(), senderAffiliation) != Role.moderator) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Large channel; new occupant will not be moderator - skip sending occupants list");
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private void preparePresenceOfOccupant(final Collection<Packet> packets, final Room room, final JID senderJID,
+										   final RosterPresenceCache cache, final Room.Roster.Occupant occupant)
+			throws TigaseStringprepException {
+		final BareJID currentOccupantJid = senderJID.getBareJID();
+		final BareJID occupantJid = occupant.getJid();
+
+		if (occupantJid == null) {
+			// why the hell occupantJid is null?
 			return;
 		}
 
-		for (String occupantNickname : room.getOccupantsNicknames()) {
-			final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNickname);
+		// we don't include current user in occupants presence broadcast
+		if (currentOccupantJid != null && currentOccupantJid.equals(occupantJid)) {
+			return;
+		}
 
-			if (occupantJid == null) {
-				// why the hell occupantJid is null?
-				continue;
+		final Affiliation occupantAffiliation = room.getAffiliation(occupantJid);
+		if (room.getConfig().isPresenceFilterEnabled() &&
+				!room.getConfig().getPresenceFilteredAffiliations().contains(occupantAffiliation)) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
+						"; target occupant doesn't have propper affiliation -  don't include him in the list");
 			}
+			return;
+		}
 
-			// we don't include current user in occupants presence broadcast
-			if (currentOccupantJid != null && currentOccupantJid.equals(occupantJid)) {
-				continue;
-			}
+		final Element op = room.getLastPresence(occupantJid);
 
-			Affiliation affiliation = room.getAffiliation(occupantJid);
-			if (room.getConfig().isPresenceFilterEnabled() &&
-					!room.getConfig().getPresenceFilteredAffiliations().contains(affiliation)) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
-							"; target occupant doesn't have propper affiliation -  don't include him in the list");
-				}
-				continue;
-			}
+		if (op == null) {
+			return;
+		}
 
-			Element op = room.getLastPresenceCopyByJid(occupantJid);
+		final List<PresenceTemplate> templates = cache.getTemplates(room, occupant, op, occupantAffiliation,
+																	 this::createRosterPresenceTemplates);
+		preparePresenceToOccupant(packets, senderJID, templates);
+	}
 
-			if (op == null) {
-				continue;
-			}
+	private static class HistoryCollector
+			implements PacketWriter {
 
-			final Collection<JID> occupantJIDs = room.getOccupantsJidsByNickname(occupantNickname);
-			final BareJID occupantBareJID = room.getOccupantsJidByNickname(occupantNickname);
-			final Affiliation occupantAffiliation = room.getAffiliation(occupantBareJID);
-			final Role occupantRole = room.getRole(occupantNickname);
+		private final List<Element> elements = new ArrayList<>();
+		private final List<Packet> packets = new ArrayList<>();
 
-			if (config.isMultiItemMode()) {
-				PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
-																	 occupantJIDs, occupantNickname,
-																	 occupantAffiliation, occupantRole);
-				write(l.packet);
-			} else {
-				for (JID jid : occupantJIDs) {
-					Collection<JID> z = new ArrayList<JID>(1);
-					z.add(jid);
-					PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
-																		 z, occupantNickname, occupantAffiliation,
-																		 occupantRole);
-					write(l.packet);
-				}
+		@Override
+		public void write(Collection<Packet> packets) {
+			for (Packet packet : packets) {
+				write(packet);
 			}
 		}
+
+		@Override
+		public void write(Packet packet) {
+			packets.add(packet);
+			elements.add(packet.getElement());
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
+	private static class LeavingOccupant {
+
+		private final Affiliation affiliation;
+		private final JID jid;
+		private final Collection<JID> jids;
+		private final String nickname;
+
+		LeavingOccupant(JID jid, String nickname, Affiliation affiliation, Collection<JID> jids) {
+			this.jid = jid;
+			this.nickname = nickname;
+			this.affiliation = affiliation;
+			this.jids = jids;
+		}
 	}
 
+	/**
+	 * @deprecated use {@link DelayedDeliveryQueue} instead.
+	 */
+	@Deprecated
 	public static class DelayDeliveryThread
 			extends Thread {
 
-		private final LinkedList<Element[]> items = new LinkedList<Element[]>();
-		private final DelDeliverySend sender;
+		private final Object lock = new Object();
+		private final DelayedDeliveryQueue queue;
 
 		public DelayDeliveryThread(DelDeliverySend component) {
-			this.sender = component;
+			this.queue = new DelayedDeliveryQueue(component, 553, Integer.MAX_VALUE, Integer.MAX_VALUE);
 		}
 
 		public void put(Collection<Element> elements) {
-			if ((elements != null) && (elements.size() > 0)) {
-				items.push(elements.toArray(new Element[]{}));
-			}
+			queue.put(elements);
 		}
 
 		public void put(Element element) {
-			items.add(new Element[]{element});
+			queue.put(element);
 		}
 
+		/**
+		 * Starts delivery of stanzas by the queue and waits until the thread is interrupted.
+		 */
 		@Override
 		public void run() {
+			queue.start();
 			try {
-				do {
-					sleep(553);
-					if (items.size() > 0) {
-						Element[] toSend = items.poll();
-
-						if (toSend != null) {
-							for (Element element : toSend) {
-								try {
-									Packet p = Packet.packetInstance(element);
-									p.setXMLNS(Packet.CLIENT_XMLNS);
-									sender.sendDelayedPacket(p);
-								} catch (TigaseStringprepException ex) {
-									if (log.isLoggable(Level.INFO)) {
-										log.info("Packet addressing problem, stringprep failed: " + element);
-									}
-								}
-							}
-						}
+				synchronized (lock) {
+					while (!isInterrupted()) {
+						lock.wait();
 					}
-				} while (true);
+				}
 			} catch (InterruptedException e) {
-				log.log(Level.WARNING, "Error during delayed delivery", e);
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Delayed delivery stopped");
+				}
+			} finally {
+				queue.shutdown();
 			}
 		}
 
-		public interface DelDeliverySend {
+		/**
+		 * @deprecated use {@link DelayedDeliveryQueue.DelDeliverySend} instead.
+		 */
+		@Deprecated
+		public interface DelDeliverySend
+				extends DelayedDeliveryQueue.DelDeliverySend {
 
-			void sendDelayedPacket(Packet packet);
 		}
 	}
 
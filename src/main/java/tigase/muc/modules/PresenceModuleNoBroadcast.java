@@ -108,6 +108,16 @@ public class PresenceModuleNoBroadcast
 		}
 	}
 
+	@Override
+	public void doQuit(final Room room, final Collection<JID> senderJIDs) throws TigaseStringprepException {
+		// presences are not broadcasted, so there is nothing to batch
+		for (JID senderJID : senderJIDs) {
+			if (room.getOccupantsNickname(senderJID) != null) {
+				doQuit(room, senderJID);
+			}
+		}
+	}
+
 	@Override
 	public String[] getFeatures() {
 		return null;
@@ -123,6 +133,19 @@ public class PresenceModuleNoBroadcast
 		// do nothing
 	}
 
+	@Override
+	protected void sendPresencesToNewOccupant(Room room, JID senderJID, Room.Roster roster)
+			throws TigaseStringprepException {
+		// do nothing
+	}
+
+	@Override
+	protected void sendChangedPresencesToNewOccupant(Room room, JID senderJID, String nickname, Room.Roster roster,
+													 Collection<String> changedNicknames)
+			throws TigaseStringprepException {
+		// do nothing
+	}
+
 	@Override
 	protected void processExit(Room room, Element presenceElement, JID senderJID)
 			throws MUCException, TigaseStringprepException {
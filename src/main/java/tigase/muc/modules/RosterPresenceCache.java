@@ -0,0 +1,130 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import tigase.muc.Affiliation;
+import tigase.muc.Role;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig.Anonymity;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of presence templates of room occupants, used to send presences of all occupants to a joining occupant.
+ * Cached templates of an occupant are rebuilt when its presence, role, affiliation or JIDs change.
+ */
+class RosterPresenceCache {
+
+	private static final String ROOM_CUSTOM_DATA_KEY = "roster_presence_cache";
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	static RosterPresenceCache getInstance(Room room) {
+		RosterPresenceCache cache = (RosterPresenceCache) room.getRoomCustomData(ROOM_CUSTOM_DATA_KEY);
+		if (cache == null) {
+			synchronized (room) {
+				cache = (RosterPresenceCache) room.getRoomCustomData(ROOM_CUSTOM_DATA_KEY);
+				if (cache == null) {
+					cache = new RosterPresenceCache();
+					room.setRoomCustomData(ROOM_CUSTOM_DATA_KEY, cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	List<PresenceModule.PresenceTemplate> getTemplates(final Room room, final Room.Roster.Occupant occupant,
+													   final Element presence, final Affiliation affiliation,
+													   final TemplatesFactory factory)
+			throws TigaseStringprepException {
+		final Anonymity anonymity = room.getConfig().getRoomAnonymity();
+		final Entry entry = entries.get(occupant.getNickname());
+		if (entry != null && entry.isValid(occupant, presence, affiliation, anonymity)) {
+			return entry.templates;
+		}
+
+		final List<PresenceModule.PresenceTemplate> templates = factory.create(room, occupant, presence, affiliation);
+		entries.put(occupant.getNickname(), new Entry(occupant, presence, affiliation, anonymity, templates));
+		return templates;
+	}
+
+	void remove(String nickname) {
+		entries.remove(nickname);
+	}
+
+	/**
+	 * Removes entries of occupants which are no longer in the room.
+	 */
+	void retain(final Room room, final Room.Roster roster) {
+		if (entries.size() > roster.size()) {
+			entries.keySet().removeIf(nickname -> room.getOccupantsJidByNickname(nickname) == null);
+		}
+	}
+
+	interface TemplatesFactory {
+
+		List<PresenceModule.PresenceTemplate> create(Room room, Room.Roster.Occupant occupant, Element presence,
+													 Affiliation affiliation) throws TigaseStringprepException;
+
+	}
+
+	private static final class Entry {
+
+		private final Affiliation affiliation;
+		private final Anonymity anonymity;
+		private final Room.Roster.Occupant occupant;
+		private final Element presence;
+		private final Role role;
+		private final List<PresenceModule.PresenceTemplate> templates;
+
+		Entry(Room.Roster.Occupant occupant, Element presence, Affiliation affiliation, Anonymity anonymity,
+			  List<PresenceModule.PresenceTemplate> templates) {
+			this.occupant = occupant;
+			this.presence = presence;
+			this.affiliation = affiliation;
+			this.anonymity = anonymity;
+			this.role = occupant.getRole();
+			this.templates = templates;
+		}
+
+		boolean isValid(Room.Roster.Occupant current, Element presence, Affiliation affiliation,
+						Anonymity anonymity) {
+			if (this.presence != presence || this.affiliation != affiliation || this.anonymity != anonymity ||
+					this.role != current.getRole()) {
+				return false;
+			}
+			if (this.occupant == current) {
+				return true;
+			}
+			if (this.occupant.getJidsCount() != current.getJidsCount()) {
+				return false;
+			}
+			for (int i = 0; i < current.getJidsCount(); i++) {
+				if (!this.occupant.getJid(i).equals(current.getJid(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -23,6 +23,8 @@ import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by andrzej on 19.10.2016.
@@ -280,6 +282,75 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucMamGetMessagesKeyset(String roomJid, Timestamp since, Timestamp to, String nickname,
+												  Timestamp afterTs, Long afterId, Timestamp beforeTs, Long beforeId,
+												  Integer fromEnd, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			// only conditions which are set are added, so messages are read by a seek on (room_jid_sha1, ts, id) index
+			final List<Object> params = new ArrayList<>();
+			final StringBuilder query = new StringBuilder(
+					"select h.id, h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg" +
+							" from tig_muc_room_history h where h.room_jid_sha1 = ?");
+			params.add(sha1OfLower(roomJid));
+			final Timestamp lower = since == null || (afterTs != null && afterTs.after(since)) ? afterTs : since;
+			if (lower != null) {
+				query.append(" and h.ts >= ?");
+				params.add(lower);
+			}
+			final Timestamp upper = to == null || (beforeTs != null && beforeTs.before(to)) ? beforeTs : to;
+			if (upper != null) {
+				query.append(" and h.ts <= ?");
+				params.add(upper);
+			}
+			if (afterTs != null) {
+				if (afterId != null) {
+					query.append(" and (h.ts > ? or h.id > ?)");
+					params.add(afterTs);
+					params.add(afterId);
+				} else {
+					query.append(" and h.ts > ?");
+					params.add(afterTs);
+				}
+			}
+			if (beforeTs != null) {
+				if (beforeId != null) {
+					query.append(" and (h.ts < ? or h.id < ?)");
+					params.add(beforeTs);
+					params.add(beforeId);
+				} else {
+					query.append(" and h.ts < ?");
+					params.add(beforeTs);
+				}
+			}
+			if (nickname != null) {
+				query.append(" and h.sender_nickname = ?");
+				params.add(nickname);
+			}
+			if (fromEnd != null && fromEnd == 1) {
+				query.insert(0, "select t.id, t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg from (");
+				query.append(" order by h.ts desc, h.id desc fetch next ? rows only) t order by t.ts asc, t.id asc");
+			} else {
+				query.append(" order by h.ts asc, h.id asc fetch next ? rows only");
+			}
+			params.add(limit);
+			PreparedStatement ps = conn.prepareStatement(query.toString());
+
+			for (int i = 0; i < params.size(); i++) {
+				ps.setObject(i + 1, params.get(i));
+			}
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucMamGetMessagesCount(String roomJid, Timestamp since, Timestamp to, String nickname,
 												 ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -0,0 +1,143 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ChatStateCoalescerTest {
+
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.example.com");
+	private final List<Packet> sent = new CopyOnWriteArrayList<>();
+	private final ChatStateCoalescer.ChatStateSender sender = (room, from, msg) -> sent.add(msg);
+	private ChatStateCoalescer coalescer;
+
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+	private final JID witchJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+
+	@After
+	public void tearDown() {
+		coalescer.beforeUnregister();
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		coalescer = new ChatStateCoalescer(config(TimeUnit.HOURS.toMillis(1), 0), scheduler);
+		Room room = createRoom();
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+		JID hag = JID.jidInstance(roomJID, "thirdwitch");
+		JID hagJID = JID.jidInstanceNS("hag66@shakespeare.lit/pda");
+
+		coalescer.submit(room, witch, chatState("composing", witchJID), sender);
+		coalescer.submit(room, witch, chatState("paused", witchJID), sender);
+		coalescer.submit(room, hag, chatState("composing", hagJID), sender);
+		coalescer.submit(room, hag, chatState("active", hagJID), sender);
+		// regular message from occupant supersedes pending chat state
+		coalescer.cancel(hag);
+		Assert.assertTrue(sent.isEmpty());
+
+		runScheduledTasks();
+		Assert.assertEquals(1, sent.size());
+		Assert.assertNotNull(sent.get(0).getElement().getChild("paused"));
+	}
+
+	@Test
+	public void testDroppingInLargeRooms() throws Exception {
+		coalescer = new ChatStateCoalescer(config(0, 1), scheduler);
+		Room room = createRoom();
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+
+		coalescer.submit(room, witch, chatState("composing", witchJID), sender);
+		Assert.assertEquals(1, sent.size());
+
+		room.addOccupantByJid(JID.jidInstance("hag66@shakespeare.lit/pda"), "thirdwitch", Role.participant,
+							  new Element("presence", new String[]{"from"}, new String[]{"hag66@shakespeare.lit/pda"}));
+		coalescer.submit(room, witch, chatState("paused", witchJID), sender);
+		Assert.assertEquals(1, sent.size());
+	}
+
+	@Test
+	public void testDroppingAfterOccupantLeft() throws Exception {
+		coalescer = new ChatStateCoalescer(config(TimeUnit.HOURS.toMillis(1), 0), scheduler);
+		Room room = createRoom();
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+
+		coalescer.submit(room, witch, chatState("composing", witchJID), sender);
+		room.removeOccupant(witchJID);
+
+		runScheduledTasks();
+		Assert.assertTrue(sent.isEmpty());
+	}
+
+	/**
+	 * Runs all scheduled deliveries without waiting for the coalescing window.
+	 */
+	private void runScheduledTasks() throws InterruptedException {
+		final List<Runnable> tasks = new ArrayList<>();
+		for (Runnable task : scheduler.getQueue()) {
+			tasks.add(task);
+		}
+		scheduler.getQueue().clear();
+		for (Runnable task : tasks) {
+			task.run();
+		}
+	}
+
+	private Packet chatState(String state, JID from) throws Exception {
+		Element message = new Element("message", new String[]{"type", "from"},
+									  new String[]{"groupchat", from.toString()});
+		message.addChild(new Element(state, new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/chatstates"}));
+		return Packet.packetInstance(message);
+	}
+
+	private MUCConfig config(long window, int maxOccupants) {
+		return new MUCConfig() {
+			@Override
+			public long getChatStatesCoalescingWindow() {
+				return window;
+			}
+
+			@Override
+			public int getChatStatesMaxOccupants() {
+				return maxOccupants;
+			}
+		};
+	}
+
+	private Room createRoom() throws Exception {
+		Room room = new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+														   BareJID.bareJIDInstanceNS("owner@example.com"));
+		room.addOccupantByJid(JID.jidInstance("crone1@shakespeare.lit/desktop"), "firstwitch", Role.participant,
+							  new Element("presence", new String[]{"from"},
+										  new String[]{"crone1@shakespeare.lit/desktop"}));
+		return room;
+	}
+
+}
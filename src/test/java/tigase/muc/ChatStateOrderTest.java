@@ -0,0 +1,91 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+
+public class ChatStateOrderTest {
+
+	private final ChatStateOrder order = new ChatStateOrder();
+
+	@Test
+	public void testChatStateQueuedBeforeMessageIsDropped() throws Exception {
+		Packet composing = chatState("user@example.com/res");
+		Packet message = message("user@example.com/res");
+		Packet paused = chatState("user@example.com/res");
+
+		queue(composing);
+		queue(message);
+		queue(paused);
+
+		// message leaves queue first, as chat states are in lower lane
+		Assert.assertTrue(order.process(message));
+		Assert.assertFalse(order.process(composing));
+		Assert.assertTrue(order.process(paused));
+	}
+
+	@Test
+	public void testChatStatesOfOtherSenderAreKept() throws Exception {
+		Packet composing = chatState("other@example.com/res");
+		Packet message = message("user@example.com/res");
+
+		queue(composing);
+		queue(message);
+
+		Assert.assertTrue(order.process(message));
+		Assert.assertTrue(order.process(composing));
+	}
+
+	@Test
+	public void testRejectedChatStateIsForgotten() throws Exception {
+		Packet composing = chatState("user@example.com/res");
+		order.queued(composing, TrafficClass.chatState);
+		order.rejected(composing, TrafficClass.chatState);
+
+		Packet message = message("user@example.com/res");
+		Packet paused = chatState("user@example.com/res");
+		queue(message);
+		queue(paused);
+
+		Assert.assertTrue(order.process(message));
+		Assert.assertTrue(order.process(paused));
+	}
+
+	private void queue(Packet packet) {
+		order.queued(packet, TrafficClass.classify(packet));
+	}
+
+	private Packet chatState(String from) throws Exception {
+		Element element = new Element("message", new String[]{"type", "from", "to"},
+									  new String[]{"groupchat", from, "room@muc.example.com"});
+		element.addChild(new Element("composing", new String[]{"xmlns"},
+									 new String[]{"http://jabber.org/protocol/chatstates"}));
+		return Packet.packetInstance(element);
+	}
+
+	private Packet message(String from) throws Exception {
+		Element element = new Element("message", new String[]{"type", "from", "to"},
+									  new String[]{"groupchat", from, "room@muc.example.com"});
+		element.addChild(new Element("body", "Hi"));
+		return Packet.packetInstance(element);
+	}
+
+}
@@ -18,6 +18,15 @@
 package tigase.muc;
 
 import org.junit.Test;
+import tigase.component.DSLBeanConfigurator;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.conf.ConfigWriter;
+import tigase.db.beans.DataSourceBean;
+import tigase.eventbus.EventBusFactory;
+import tigase.kernel.DefaultTypesConverter;
+import tigase.kernel.beans.config.AbstractBeanConfigurator;
+import tigase.kernel.core.Kernel;
 import tigase.muc.modules.PresenceModule;
 import tigase.muc.modules.PresenceModuleImpl;
 import tigase.muc.repository.IMucRepository;
@@ -31,14 +40,22 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by andrzej on 27.12.2016.
@@ -158,6 +175,88 @@ public class Ghostbuster2Test {
 		assertEquals(0, packetCounter.get());
 	}
 
+	@Test
+	public void testBatchedRemovalOfUnreachableOccupants() throws Exception {
+		final Kernel kernel = new Kernel();
+		kernel.registerBean(DefaultTypesConverter.class).exportable().exec();
+		kernel.registerBean(AbstractBeanConfigurator.DEFAULT_CONFIGURATOR_NAME)
+				.asClass(DSLBeanConfigurator.class)
+				.exportable()
+				.exec();
+		Map<String, Object> props = new HashMap();
+		props.put("muc/" + "multi-user-chat", BareJID.bareJIDInstance("multi-user-chat"));
+		props.put("muc/" + MUCConfig.LOG_DIR_KEY, "./");
+		props.put("muc/" + MUCConfig.GHOSTBUSTER_REMOVAL_DELAY_KEY, 100L);
+		props = ConfigWriter.buildTree(props);
+		kernel.getInstance(DSLBeanConfigurator.class).setProperties(props);
+		kernel.registerBean("eventBus").asInstance(EventBusFactory.getInstance()).exportable().exec();
+		kernel.registerBean("dataSourceBean").asClass(DataSourceBean.class).exportable().exec();
+		kernel.registerBean("mucRepository").asInstance(new MockMucRepository()).exportable().exec();
+
+		final BatchWriter writer = new BatchWriter();
+		kernel.registerBean("muc").asClass(TestMUCCompoent.class).exec();
+		final TestMUCCompoent mucComponent = kernel.getInstance(TestMUCCompoent.class);
+		((Kernel) kernel.getInstance("muc#KERNEL")).registerBean("writer").asInstance(writer).exec();
+
+		final BareJID roomJID = BareJID.bareJIDInstance("darkcave@macbeth.shakespeare.lit");
+		final JID owner = JID.jidInstance("owner@example.com/res");
+		final Room room = kernel.getInstance(MockMucRepository.class).createNewRoom(roomJID, owner);
+
+		join(mucComponent, room, owner, "owner");
+		final List<JID> unreachable = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			JID jid = JID.jidInstance("user-" + i + "@example.com/res");
+			join(mucComponent, room, jid, "user-" + i);
+			unreachable.add(jid);
+		}
+		assertEquals(6, room.getOccupantsCount());
+
+		writer.batches.clear();
+		for (JID jid : unreachable) {
+			Element error = new Element("message", new String[]{"type", "from", "to"},
+										new String[]{"error", jid.toString(), roomJID.toString()});
+			error.addChild(new Element("error", new Element[]{
+					new Element("recipient-unavailable", new String[]{"xmlns"},
+								new String[]{"urn:ietf:params:xml:ns:xmpp-stanzas"})}, new String[]{"type"},
+									   new String[]{"cancel"}));
+			Packet packet = Packet.packetInstance(error);
+			packet.setXMLNS(Packet.CLIENT_XMLNS);
+			mucComponent.processPacket(packet);
+		}
+
+		for (int i = 0; i < 100 && room.getOccupantsCount() > 1; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(1, room.getOccupantsCount());
+		assertTrue(room.isOccupantInRoom(owner));
+		for (JID jid : unreachable) {
+			assertFalse(room.isOccupantInRoom(jid));
+		}
+
+		// unavailable presences of all unreachable occupants are sent to remaining occupant at once
+		boolean batched = false;
+		for (List<Element> batch : writer.batches) {
+			int unavailable = 0;
+			for (Element el : batch) {
+				if ("presence".equals(el.getName()) && "unavailable".equals(el.getAttributeStaticStr("type")) &&
+						owner.toString().equals(el.getAttributeStaticStr("to"))) {
+					unavailable++;
+				}
+			}
+			batched |= unavailable == unreachable.size();
+		}
+		assertTrue(batched);
+	}
+
+	private void join(TestMUCCompoent mucComponent, Room room, JID jid, String nickname) throws Exception {
+		Element presence = new Element("presence", new String[]{"from", "to"},
+									   new String[]{jid.toString(), room.getRoomJID() + "/" + nickname});
+		presence.addChild(new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc"}));
+		Packet packet = Packet.packetInstance(presence);
+		packet.setXMLNS(Packet.CLIENT_XMLNS);
+		mucComponent.processPacket(packet);
+	}
+
 	public void setActiveRooms(Ghostbuster2 ghostbuster2, final Map<BareJID, Room> activeRooms) throws Exception {
 		IMucRepository mucRepository = new MockMucRepository() {
 			@Override
@@ -170,6 +269,31 @@ public class Ghostbuster2Test {
 		f.set(ghostbuster2, mucRepository);
 	}
 
+	private static class BatchWriter
+			implements PacketWriter {
+
+		private final List<List<Element>> batches = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			List<Element> batch = new ArrayList<>();
+			for (Packet packet : packets) {
+				batch.add(packet.getElement());
+			}
+			batches.add(batch);
+		}
+
+		@Override
+		public void write(Packet packet) {
+			batches.add(Collections.singletonList(packet.getElement()));
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
 	private interface PacketHandler {
 
 		void handle(Packet packet, ReceiverTimeoutHandler handler) throws PacketErrorTypeException;
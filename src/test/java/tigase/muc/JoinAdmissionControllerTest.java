@@ -0,0 +1,147 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JoinAdmissionControllerTest {
+
+	private final List<Packet> rejected = new CopyOnWriteArrayList<>();
+	private final List<Packet> reinjected = new CopyOnWriteArrayList<>();
+	private final Semaphore reinjectedPermits = new Semaphore(0);
+	private JoinAdmissionController controller;
+
+	@After
+	public void tearDown() {
+		controller.beforeUnregister();
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		controller = create(0);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(controller.admit(join("user" + i, "room1"), room("room1"), false));
+		}
+	}
+
+	@Test
+	public void testPriorityAndFairness() throws Exception {
+		controller = create(10);
+		Packet a1 = join("a1", "room1");
+		Packet a2 = join("a2", "room1");
+		Packet a3 = join("a3", "room1");
+		Packet b1 = join("b1", "room2");
+		Packet owner = join("owner", "room1");
+		Packet left = join("left", "room2");
+
+		Assert.assertFalse(controller.admit(a1, room("room1"), false));
+		Assert.assertFalse(controller.admit(a2, room("room1"), false));
+		Assert.assertFalse(controller.admit(a3, room("room1"), false));
+		Assert.assertFalse(controller.admit(b1, room("room2"), false));
+		Assert.assertFalse(controller.admit(left, room("room2"), false));
+		Assert.assertFalse(controller.admit(owner, room("room1"), true));
+		controller.cancel(room("room2"), left.getStanzaFrom());
+
+		Assert.assertTrue(reinjectedPermits.tryAcquire(5, 10, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList(owner, a1, b1, a2, a3), reinjected);
+
+		// packets passed back to component are processed
+		for (Packet packet : reinjected) {
+			Assert.assertTrue(controller.admit(packet, room("room1"), false));
+		}
+	}
+
+	@Test
+	public void testQueuedJoinsAdmittedWhenDisabled() throws Exception {
+		AtomicInteger rate = new AtomicInteger(1);
+		controller = create(rate);
+		// first token is available after a second, so all joins are queued
+		for (int i = 0; i < 10; i++) {
+			Assert.assertFalse(controller.admit(join("user" + i, "room1"), room("room1"), false));
+		}
+
+		rate.set(0);
+		Assert.assertTrue(reinjectedPermits.tryAcquire(10, 5, TimeUnit.SECONDS));
+		for (Packet packet : reinjected) {
+			Assert.assertTrue(controller.admit(packet, room("room1"), false));
+		}
+	}
+
+	@Test
+	public void testQueuedJoinsRejectedOnUnregister() throws Exception {
+		controller = create(1);
+		Packet a1 = join("a1", "room1");
+		Packet b1 = join("b1", "room2");
+		Packet owner = join("owner", "room1");
+		Assert.assertFalse(controller.admit(a1, room("room1"), false));
+		Assert.assertFalse(controller.admit(b1, room("room2"), false));
+		Assert.assertFalse(controller.admit(owner, room("room1"), true));
+
+		controller.beforeUnregister();
+		Assert.assertEquals(Arrays.asList(owner, a1, b1), rejected);
+		Assert.assertTrue(reinjected.isEmpty());
+	}
+
+	private JoinAdmissionController create(int rate) {
+		return create(new AtomicInteger(rate));
+	}
+
+	private JoinAdmissionController create(AtomicInteger rate) {
+		return new JoinAdmissionController(new MUCConfig() {
+			@Override
+			public int getJoinAdmissionRate() {
+				return rate.get();
+			}
+		}) {
+			@Override
+			protected void reinject(Packet packet) {
+				reinjected.add(packet);
+				reinjectedPermits.release();
+			}
+
+			@Override
+			protected void reject(Packet packet) {
+				rejected.add(packet);
+			}
+		};
+	}
+
+	private Packet join(String user, String room) throws Exception {
+		Element presence = new Element("presence", new String[]{"from", "to"},
+									   new String[]{user + "@example.com/res", room + "@muc.example.com/" + user});
+		return Packet.packetInstance(presence);
+	}
+
+	private BareJID room(String room) {
+		return BareJID.bareJIDInstanceNS(room + "@muc.example.com");
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class OutgoingBatchQueueTest {
+
+	private final List<Packet> sent = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void testOrderOfBatchesAndSingleStanzas() throws Exception {
+		final CountDownLatch delivered = new CountDownLatch(5);
+		OutgoingBatchQueue queue = new OutgoingBatchQueue(packet -> {
+			sent.add(packet);
+			delivered.countDown();
+		}, 100);
+		try {
+			Assert.assertTrue(queue.offer(Arrays.asList(message("1"), message("2"))));
+			Assert.assertTrue(queue.offer(message("3")));
+			Assert.assertTrue(queue.offer(Arrays.asList(message("4"), message("5"))));
+
+			Assert.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+			List<String> ids = new ArrayList<>();
+			for (Packet packet : sent) {
+				ids.add(packet.getAttributeStaticStr("id"));
+			}
+			Assert.assertEquals(Arrays.asList("1", "2", "3", "4", "5"), ids);
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void testLimitAndShutdown() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		OutgoingBatchQueue queue = new OutgoingBatchQueue(packet -> {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sent.add(packet);
+		}, 3);
+
+		Assert.assertTrue(queue.offer(message("1")));
+		Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(queue.offer(Arrays.asList(message("2"), message("3"))));
+		Assert.assertFalse(queue.offer(message("4")));
+		Assert.assertEquals(3, queue.getSize());
+
+		release.countDown();
+		queue.shutdown();
+		Assert.assertEquals(3, sent.size());
+		Assert.assertEquals("3", sent.get(2).getAttributeStaticStr("id"));
+		Assert.assertEquals(0, queue.getSize());
+	}
+
+	private Packet message(String id) throws Exception {
+		return Packet.packetInstance(
+				new Element("message", new String[]{"id", "type", "from", "to"},
+							new String[]{id, "groupchat", "room@muc.example.com/nick", "user@example.com/res"}));
+	}
+
+}
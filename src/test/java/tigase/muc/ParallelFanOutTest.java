@@ -0,0 +1,133 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelFanOutTest {
+
+	private final ParallelFanOut fanOut = new ParallelFanOut(new MUCConfig() {
+		@Override
+		public int getParallelFanOutParallelism() {
+			return 4;
+		}
+
+		@Override
+		public int getParallelFanOutThreshold() {
+			return 100;
+		}
+	});
+
+	@After
+	public void tearDown() {
+		fanOut.beforeUnregister();
+	}
+
+	@Test
+	public void testOrderIsPreserved() throws Exception {
+		for (int occupants : new int[]{10, 1000}) {
+			Room.Roster roster = createRoom(occupants).getRoster();
+			List<Packet> packets = fanOut.prepare(roster, (occupant, result) -> {
+				for (int j = 0; j < occupant.getJidsCount(); j++) {
+					result.add(Packet.packetInstance(new Element("message"), JID.jidInstance("room@muc.example.com"),
+													 occupant.getJid(j)));
+				}
+			});
+
+			Assert.assertEquals(occupants, packets.size());
+			for (int i = 0; i < occupants; i++) {
+				Assert.assertEquals(roster.get(i).getJid(0), packets.get(i).getStanzaTo());
+			}
+		}
+	}
+
+	@Test
+	public void testParallelismChangedDuringBroadcast() throws Exception {
+		final AtomicInteger parallelism = new AtomicInteger(4);
+		final ParallelFanOut fanOut = new ParallelFanOut(new MUCConfig() {
+			@Override
+			public int getParallelFanOutParallelism() {
+				return parallelism.get();
+			}
+
+			@Override
+			public int getParallelFanOutThreshold() {
+				return 100;
+			}
+		});
+		final Room.Roster roster = createRoom(1000).getRoster();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch resume = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<Packet>> inFlight = executor.submit(() -> fanOut.prepare(roster, (occupant, result) -> {
+				started.countDown();
+				try {
+					resume.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				result.add(Packet.packetInstance(new Element("message"), JID.jidInstance("room@muc.example.com"),
+												 occupant.getJid(0)));
+			}));
+			Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+			parallelism.set(2);
+			List<Packet> packets = fanOut.prepare(roster, (occupant, result) -> result.add(
+					Packet.packetInstance(new Element("message"), JID.jidInstance("room@muc.example.com"),
+										  occupant.getJid(0))));
+			Assert.assertEquals(1000, packets.size());
+
+			resume.countDown();
+			Assert.assertEquals(1000, inFlight.get(10, TimeUnit.SECONDS).size());
+		} finally {
+			resume.countDown();
+			executor.shutdown();
+			fanOut.beforeUnregister();
+		}
+	}
+
+	private Room createRoom(int occupants) throws Exception {
+		BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.example.com");
+		Room room = new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+														   BareJID.bareJIDInstanceNS("owner@example.com"));
+		for (int i = 0; i < occupants; i++) {
+			JID jid = JID.jidInstanceNS("user" + i + "@example.com/res");
+			Element presence = new Element("presence", new String[]{"from", "to"},
+										   new String[]{jid.toString(), roomJID + "/nick" + i});
+			room.addOccupantByJid(jid, "nick" + i, Role.participant, presence);
+		}
+		return room;
+	}
+
+}
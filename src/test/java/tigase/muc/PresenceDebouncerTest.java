@@ -0,0 +1,152 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class PresenceDebouncerTest {
+
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+	private final PresenceDebouncer debouncer = new PresenceDebouncer(scheduler);
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.example.com");
+	private final List<String> sent = new CopyOnWriteArrayList<>();
+
+	@After
+	public void tearDown() {
+		debouncer.beforeUnregister();
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		Room room = createRoom(0);
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+
+		debouncer.submitUpdate(room, witch, () -> sent.add("away"));
+		debouncer.submitUpdate(room, witch, () -> sent.add("dnd"));
+		debouncer.submitLeave(room, witch, JID.jidInstance("crone1@shakespeare.lit/desktop"),
+							  () -> sent.add("unavailable"));
+
+		Assert.assertEquals(3, sent.size());
+		Assert.assertFalse(debouncer.rejoin(witch, JID.jidInstance("crone1@shakespeare.lit/desktop")));
+	}
+
+	@Test
+	public void testStatusChangesCoalesced() throws Exception {
+		Room room = createRoom(TimeUnit.HOURS.toMillis(1));
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+
+		debouncer.submitUpdate(room, witch, () -> sent.add("away"));
+		debouncer.submitUpdate(room, witch, () -> sent.add("xa"));
+		debouncer.submitUpdate(room, witch, () -> sent.add("dnd"));
+		Assert.assertTrue(sent.isEmpty());
+
+		runScheduledTasks();
+		Assert.assertEquals(1, sent.size());
+		Assert.assertEquals("dnd", sent.get(0));
+	}
+
+	@Test
+	public void testRejoin() throws Exception {
+		Room room = createRoom(TimeUnit.HOURS.toMillis(1));
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+		JID jid = JID.jidInstance("crone1@shakespeare.lit/desktop");
+
+		debouncer.submitUpdate(room, witch, () -> sent.add("away"));
+		debouncer.submitLeave(room, witch, jid, () -> sent.add("unavailable"));
+		Assert.assertTrue(debouncer.rejoin(witch, jid));
+
+		runScheduledTasks();
+		Assert.assertTrue(sent.isEmpty());
+	}
+
+	@Test
+	public void testJoinWithNicknameOfLeavingOccupant() throws Exception {
+		Room room = createRoom(TimeUnit.HOURS.toMillis(1));
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+
+		debouncer.submitLeave(room, witch, JID.jidInstance("crone1@shakespeare.lit/desktop"),
+							  () -> sent.add("unavailable"));
+		Assert.assertTrue(sent.isEmpty());
+
+		// other user takes nickname, so unavailable presence has to be sent before presence of new occupant
+		Assert.assertFalse(debouncer.rejoin(witch, JID.jidInstance("wiccarocks@shakespeare.lit/laptop")));
+		Assert.assertEquals(1, sent.size());
+
+		runScheduledTasks();
+		Assert.assertEquals(1, sent.size());
+	}
+
+	@Test
+	public void testFlushLeavesOfEmptiedRoom() throws Exception {
+		Room room = createRoom(TimeUnit.HOURS.toMillis(1));
+		JID witch = JID.jidInstance(roomJID, "firstwitch");
+		JID otherWitch = JID.jidInstance(BareJID.bareJIDInstanceNS("other@muc.example.com"), "firstwitch");
+
+		debouncer.submitLeave(room, witch, JID.jidInstance("crone1@shakespeare.lit/desktop"),
+							  () -> sent.add("unavailable"));
+		debouncer.submitLeave(room, otherWitch, JID.jidInstance("crone1@shakespeare.lit/desktop"),
+							  () -> sent.add("other-unavailable"));
+		Assert.assertTrue(sent.isEmpty());
+
+		debouncer.flushLeaves(roomJID);
+		Assert.assertEquals(1, sent.size());
+		Assert.assertEquals("unavailable", sent.get(0));
+		Assert.assertFalse(debouncer.rejoin(witch, JID.jidInstance("crone1@shakespeare.lit/desktop")));
+
+		runScheduledTasks();
+		Assert.assertEquals(2, sent.size());
+		Assert.assertEquals("unavailable", sent.get(0));
+	}
+
+	/**
+	 * Runs all scheduled broadcasts without waiting for the debounce window.
+	 */
+	private void runScheduledTasks() {
+		final List<Runnable> tasks = new ArrayList<>();
+		for (Runnable task : scheduler.getQueue()) {
+			tasks.add(task);
+		}
+		scheduler.getQueue().clear();
+		for (Runnable task : tasks) {
+			task.run();
+		}
+	}
+
+	private Room createRoom(long window) throws Exception {
+		RoomConfig roomConfig = new RoomConfig(roomJID);
+		roomConfig.setValue(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_DEBOUNCE_WINDOW, String.valueOf(window));
+		Room room = new Room.RoomFactoryImpl().newInstance(null, roomConfig, new Date(),
+														   BareJID.bareJIDInstanceNS("owner@example.com"));
+		room.addOccupantByJid(JID.jidInstance("hag66@shakespeare.lit/pda"), "thirdwitch", Role.participant,
+							  new Element("presence", new String[]{"from"}, new String[]{"hag66@shakespeare.lit/pda"}));
+		return room;
+	}
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collection;
+import java.util.Date;
+
+public class PresenceFilteredTest {
+
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.example.com");
+	private final JID memberDesktop = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final JID memberPda = JID.jidInstanceNS("crone1@shakespeare.lit/pda");
+	private final JID visitor = JID.jidInstanceNS("hag66@shakespeare.lit/pda");
+	private Room room;
+
+	@Before
+	public void init() throws Exception {
+		RoomConfig config = new RoomConfig(roomJID);
+		config.setValue(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_FILTERING, "true");
+		config.setValues(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS,
+						 new String[]{Affiliation.member.name()});
+		room = new Room.RoomFactoryImpl().newInstance(null, config, new Date(),
+													  BareJID.bareJIDInstanceNS("owner@example.com"));
+		room.addAffiliationByJid(memberDesktop.getBareJID(), Affiliation.member);
+	}
+
+	@Test
+	public void testJoinAndLeave() throws Exception {
+		join(memberDesktop, "firstwitch");
+		join(memberPda, "firstwitch");
+		join(visitor, "thirdwitch");
+
+		Collection<JID> jids = room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs();
+		Assert.assertEquals(2, jids.size());
+		Assert.assertTrue(jids.contains(memberDesktop));
+		Assert.assertTrue(jids.contains(memberPda));
+		Assert.assertSame(jids, room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs());
+		Assert.assertEquals(1, room.getPresenceFiltered().getOccupantsPresenceFilteredNicknames().size());
+
+		room.removeOccupant(memberDesktop);
+		jids = room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs();
+		Assert.assertEquals(1, jids.size());
+		Assert.assertTrue(jids.contains(memberPda));
+		Assert.assertTrue(room.getPresenceFiltered().getOccupantsPresenceFiltered().contains(memberPda.getBareJID()));
+
+		room.removeOccupant(memberPda);
+		Assert.assertTrue(room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs().isEmpty());
+		Assert.assertTrue(room.getPresenceFiltered().getOccupantsPresenceFiltered().isEmpty());
+	}
+
+	@Test
+	public void testAffiliationAndNicknameChange() throws Exception {
+		join(memberDesktop, "firstwitch");
+		join(visitor, "thirdwitch");
+		Assert.assertFalse(room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs().contains(visitor));
+
+		room.addAffiliationByJid(visitor.getBareJID(), Affiliation.member);
+		Assert.assertTrue(room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs().contains(visitor));
+		Assert.assertTrue(room.getPresenceFiltered().getOccupantsPresenceFilteredNicknames().contains("thirdwitch"));
+
+		room.changeNickName(visitor, "oldhag");
+		Collection<String> nicknames = room.getPresenceFiltered().getOccupantsPresenceFilteredNicknames();
+		Assert.assertTrue(nicknames.contains("oldhag"));
+		Assert.assertFalse(nicknames.contains("thirdwitch"));
+
+		room.addAffiliationByJid(visitor.getBareJID(), Affiliation.none);
+		Assert.assertFalse(room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs().contains(visitor));
+		Assert.assertEquals(1, room.getPresenceFiltered().getOccupantsPresenceFilteredJIDs().size());
+	}
+
+	private void join(JID jid, String nickname) throws Exception {
+		Element presence = new Element("presence", new String[]{"from", "to"},
+									   new String[]{jid.toString(), roomJID + "/" + nickname});
+		room.addOccupantByJid(jid, nickname, Role.participant, presence);
+	}
+
+}
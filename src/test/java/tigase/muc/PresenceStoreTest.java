@@ -0,0 +1,141 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+public class PresenceStoreTest {
+
+	private final JID desktop = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final JID pda = JID.jidInstanceNS("crone1@shakespeare.lit/pda");
+	private final BareJID bareJid = desktop.getBareJID();
+
+	@Test
+	public void testPreferPriority() throws TigaseStringprepException {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+
+		Element desktopPresence = presence(desktop, 5);
+		Element pdaPresence = presence(pda, 1);
+		store.update(desktopPresence);
+		store.update(pdaPresence);
+		Assert.assertSame(desktopPresence, store.getBestPresence(bareJid));
+
+		// downgrade of best presence
+		Element desktopAway = presence(desktop, 0);
+		store.update(desktopAway);
+		Assert.assertSame(pdaPresence, store.getBestPresence(bareJid));
+
+		// equal priority - the latest one wins
+		Element desktopBack = presence(desktop, 1);
+		store.update(desktopBack);
+		Assert.assertSame(desktopBack, store.getBestPresence(bareJid));
+
+		store.update(unavailable(desktop));
+		Assert.assertSame(pdaPresence, store.getBestPresence(bareJid));
+
+		store.remove(pda);
+		Assert.assertNull(store.getBestPresence(bareJid));
+		Assert.assertFalse(store.isAvailable(bareJid));
+	}
+
+	@Test
+	public void testPreferLast() throws TigaseStringprepException {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_LAST);
+
+		Element desktopPresence = presence(desktop, 5);
+		Element pdaPresence = presence(pda, 1);
+		store.update(desktopPresence);
+		store.update(pdaPresence);
+		Assert.assertSame(pdaPresence, store.getBestPresence(bareJid));
+
+		store.remove(pda);
+		Assert.assertSame(desktopPresence, store.getBestPresence(bareJid));
+
+		store.setOrdening(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+		store.update(pdaPresence);
+		Assert.assertSame(desktopPresence, store.getBestPresence(bareJid));
+	}
+
+	@Test
+	public void testUnchangedPresence() throws TigaseStringprepException {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+
+		Assert.assertTrue(store.update(presence(desktop, 5)));
+		Assert.assertFalse(store.update(presence(desktop, 5)));
+		// presence of other resource with lower priority does not change best presence
+		Assert.assertFalse(store.update(presence(pda, 1)));
+		Assert.assertTrue(store.update(presence(desktop, 6)));
+
+		Element away = presence(desktop, 6);
+		away.addChild(new Element("show", "away"));
+		Assert.assertTrue(store.update(away));
+		Assert.assertFalse(store.update(away.clone()));
+
+		Assert.assertTrue(store.remove(desktop));
+		Assert.assertTrue(store.remove(pda));
+	}
+
+	@Test
+	public void testChangedPresenceWithSameFingerprint() throws TigaseStringprepException {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+
+		// "Aa" and "BB" have the same hash code
+		Element first = presence(desktop, 5);
+		first.addChild(new Element("status", "Aa"));
+		Element second = presence(desktop, 5);
+		second.addChild(new Element("status", "BB"));
+		Assert.assertEquals(PresenceStore.calculateFingerprint(first), PresenceStore.calculateFingerprint(second));
+
+		Assert.assertTrue(store.update(first));
+		Assert.assertTrue(store.update(second));
+		Assert.assertFalse(store.update(second.clone()));
+	}
+
+	@Test
+	public void testChangedNestedChild() throws TigaseStringprepException {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+
+		Element first = presence(desktop, 5);
+		first.addChild(new Element("x", new Element[]{new Element("photo", "1234")}, new String[]{"xmlns"},
+								   new String[]{"vcard-temp:x:update"}));
+		Element second = presence(desktop, 5);
+		second.addChild(new Element("x", new Element[]{new Element("photo", "5678")}, new String[]{"xmlns"},
+									new String[]{"vcard-temp:x:update"}));
+
+		Assert.assertFalse(PresenceStore.isSameContent(first, second));
+		Assert.assertTrue(PresenceStore.isSameContent(first, first.clone()));
+		Assert.assertTrue(store.update(first));
+		Assert.assertFalse(store.update(first.clone()));
+		Assert.assertTrue(store.update(second));
+	}
+
+	private Element presence(JID from, int priority) {
+		return new Element("presence", new Element[]{new Element("priority", String.valueOf(priority))},
+						   new String[]{"from"}, new String[]{from.toString()});
+	}
+
+	private Element unavailable(JID from) {
+		return new Element("presence", new String[]{"from", "type"}, new String[]{from.toString(), "unavailable"});
+	}
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RoomOccupantsTest {
+
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.example.com");
+	private Room room;
+
+	@Before
+	public void init() {
+		room = new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+													  BareJID.bareJIDInstanceNS("owner@example.com"));
+	}
+
+	@Test
+	public void testAddAndRemoveByJid() throws TigaseStringprepException {
+		JID desktop = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+		JID pda = JID.jidInstanceNS("crone1@shakespeare.lit/pda");
+
+		join(desktop, "firstwitch");
+		join(pda, "firstwitch");
+
+		Assert.assertEquals("firstwitch", room.getOccupantsNickname(desktop));
+		Assert.assertEquals("firstwitch", room.getOccupantsNickname(pda));
+		Assert.assertEquals(1, room.getOccupantsNicknames(desktop.getBareJID()).size());
+
+		Assert.assertFalse(room.removeOccupant(desktop));
+		Assert.assertFalse(room.isOccupantInRoom(desktop));
+		Assert.assertTrue(room.isOccupantInRoom(pda));
+
+		Assert.assertTrue(room.removeOccupant(pda));
+		Assert.assertFalse(room.isOccupantInRoom(pda));
+		Assert.assertTrue(room.getOccupantsNicknames(pda.getBareJID()).isEmpty());
+		Assert.assertNull(room.getOccupantsNickname(null));
+	}
+
+	@Test
+	public void testChangeNickname() throws TigaseStringprepException {
+		JID jid = JID.jidInstanceNS("hag66@shakespeare.lit/pda");
+		join(jid, "thirdwitch");
+
+		room.changeNickName(jid, "oldhag");
+
+		Assert.assertEquals("oldhag", room.getOccupantsNickname(jid));
+		Assert.assertTrue(room.getOccupantsNicknames(jid.getBareJID()).contains("oldhag"));
+		Assert.assertFalse(room.getOccupantsNicknames(jid.getBareJID()).contains("thirdwitch"));
+		Assert.assertNull(room.getOccupantsJidByNickname("thirdwitch"));
+	}
+
+	@Test
+	public void testRemoveByNickname() throws TigaseStringprepException {
+		JID desktop = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+		JID pda = JID.jidInstanceNS("crone1@shakespeare.lit/pda");
+		join(desktop, "firstwitch");
+		join(pda, "firstwitch");
+
+		room.removeOccupant("firstwitch");
+
+		Assert.assertFalse(room.isOccupantInRoom(desktop));
+		Assert.assertFalse(room.isOccupantInRoom(pda));
+		Assert.assertTrue(room.getOccupantsNicknames(desktop.getBareJID()).isEmpty());
+		Assert.assertEquals(0, room.getOccupantsCount());
+	}
+
+	@Test
+	public void testRosterSnapshot() throws TigaseStringprepException {
+		JID witch = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+		JID hag = JID.jidInstanceNS("hag66@shakespeare.lit/pda");
+		join(witch, "firstwitch");
+
+		Room.Roster roster = room.getRoster();
+		Assert.assertSame(roster, room.getRoster());
+		Assert.assertEquals(1, roster.size());
+
+		join(hag, "thirdwitch");
+		Room.Roster updated = room.getRoster();
+		Assert.assertNotSame(roster, updated);
+		Assert.assertTrue(updated.getVersion() > roster.getVersion());
+		Assert.assertEquals(1, roster.size());
+		Assert.assertEquals(2, updated.size());
+		Assert.assertEquals("firstwitch", updated.get(0).getNickname());
+		Assert.assertEquals("thirdwitch", updated.get(1).getNickname());
+		Assert.assertEquals(hag, updated.get(1).getJid(0));
+
+		room.setNewRole("thirdwitch", Role.visitor);
+		Assert.assertEquals(Role.visitor, room.getRoster().get(1).getRole());
+		Assert.assertEquals(Role.participant, updated.get(1).getRole());
+	}
+
+	@Test
+	public void testRosterModerators() throws TigaseStringprepException {
+		join(JID.jidInstanceNS("crone1@shakespeare.lit/desktop"), "firstwitch");
+		join(JID.jidInstanceNS("hag66@shakespeare.lit/pda"), "thirdwitch");
+
+		Room.Roster roster = room.getRoster();
+		Assert.assertEquals(0, roster.getModerators().size());
+
+		room.setNewRole("thirdwitch", Role.moderator);
+		Room.Roster moderators = room.getRoster().getModerators();
+		Assert.assertSame(moderators, room.getRoster().getModerators());
+		Assert.assertEquals(1, moderators.size());
+		Assert.assertEquals("thirdwitch", moderators.get(0).getNickname());
+		Assert.assertEquals(0, roster.getModerators().size());
+	}
+
+	@Test
+	public void testConcurrentJoinsAndLeaves() throws Exception {
+		final int threads = 8;
+		final int iterations = 500;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int id = t;
+				final JID jid = JID.jidInstanceNS("user" + id + "@shakespeare.lit/res");
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < iterations; i++) {
+						join(jid, "nick-" + id);
+						room.changeNickName(jid, "renamed-" + id);
+						room.removeOccupant(jid);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(0, room.getOccupantsCount());
+		Assert.assertEquals(0, room.getRoster().size());
+		for (int t = 0; t < threads; t++) {
+			final JID jid = JID.jidInstanceNS("user" + t + "@shakespeare.lit/res");
+			Assert.assertFalse(room.isOccupantInRoom(jid));
+			Assert.assertTrue(room.getOccupantsNicknames(jid.getBareJID()).isEmpty());
+		}
+	}
+
+	private void join(JID jid, String nickname) throws TigaseStringprepException {
+		Element presence = new Element("presence", new String[]{"from", "to"},
+									   new String[]{jid.toString(), roomJID + "/" + nickname});
+		room.addOccupantByJid(jid, nickname, Role.participant, presence);
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+public class RosterChangelogTest {
+
+	@Test
+	public void testChangedSince() {
+		RosterChangelog changelog = new RosterChangelog(nickname -> true, 10);
+		String empty = changelog.getVersion();
+		changelog.changed("firstwitch");
+		changelog.changed("secondwitch");
+		String version = changelog.getVersion();
+		changelog.changed("thirdwitch");
+		changelog.changed("firstwitch");
+
+		Assert.assertEquals(new HashSet<>(Arrays.asList("firstwitch", "secondwitch", "thirdwitch")),
+							changelog.getChangedSince(empty));
+		Assert.assertEquals(new HashSet<>(Arrays.asList("firstwitch", "thirdwitch")),
+							changelog.getChangedSince(version));
+		Assert.assertEquals(Collections.emptySet(), changelog.getChangedSince(changelog.getVersion()));
+	}
+
+	@Test
+	public void testUnknownVersion() {
+		RosterChangelog changelog = new RosterChangelog(nickname -> true, 10);
+		changelog.changed("firstwitch");
+
+		Assert.assertNull(changelog.getChangedSince(null));
+		Assert.assertNull(changelog.getChangedSince("abc"));
+		Assert.assertNull(changelog.getChangedSince(new RosterChangelog(nickname -> true, 10).getVersion()));
+		String version = changelog.getVersion();
+		Assert.assertNull(changelog.getChangedSince(version.substring(0, version.length() - 1) + "5"));
+	}
+
+	@Test
+	public void testTombstones() {
+		Set<String> occupants = new HashSet<>();
+		RosterChangelog changelog = new RosterChangelog(occupants::contains, 2);
+		String empty = changelog.getVersion();
+		for (String nickname : Arrays.asList("firstwitch", "secondwitch")) {
+			occupants.add(nickname);
+			changelog.changed(nickname);
+		}
+		String joined = changelog.getVersion();
+
+		occupants.remove("secondwitch");
+		changelog.changed("secondwitch");
+		occupants.add("thirdwitch");
+		changelog.changed("thirdwitch");
+		occupants.remove("thirdwitch");
+		changelog.changed("thirdwitch");
+		String left = changelog.getVersion();
+
+		Assert.assertEquals(new HashSet<>(Arrays.asList("firstwitch", "secondwitch", "thirdwitch")),
+							changelog.getChangedSince(empty));
+		Assert.assertEquals(new HashSet<>(Arrays.asList("secondwitch", "thirdwitch")),
+							changelog.getChangedSince(joined));
+
+		// third tombstone exceeds limit, so the oldest one is removed
+		occupants.remove("firstwitch");
+		changelog.changed("firstwitch");
+		Assert.assertNull(changelog.getChangedSince(empty));
+		Assert.assertNull(changelog.getChangedSince(joined));
+		Assert.assertEquals(Collections.singleton("firstwitch"), changelog.getChangedSince(left));
+	}
+
+	@Test
+	public void testMassReconnection() {
+		Set<String> occupants = new HashSet<>();
+		RosterChangelog changelog = new RosterChangelog(occupants::contains, 10);
+		for (int i = 0; i < 1000; i++) {
+			occupants.add("nick" + i);
+			changelog.changed("nick" + i);
+		}
+		String version = changelog.getVersion();
+
+		// all occupants reconnect and change presence many times, far more changes than tombstones limit
+		for (int i = 0; i < 1000; i++) {
+			occupants.remove("nick" + i);
+			changelog.changed("nick" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			occupants.add("nick" + i);
+			changelog.changed("nick" + i);
+			changelog.changed("nick" + i);
+		}
+
+		Assert.assertEquals(1000, changelog.getChangedSince(version).size());
+	}
+
+	@Test
+	public void testRoomChanges() throws Exception {
+		Room room = new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(
+				BareJID.bareJIDInstance("room@muc.example.com")), new Date(), BareJID.bareJIDInstance(
+				"owner@example.com"));
+		JID witch = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		room.addOccupantByJid(witch, "firstwitch", Role.participant, new Element("presence", new String[]{"from"},
+																				 new String[]{witch.toString()}));
+		String version = room.getRosterChangelog().getVersion();
+
+		room.setNewRole("firstwitch", Role.visitor);
+		Assert.assertEquals(Collections.singleton("firstwitch"), room.getRosterChangelog().getChangedSince(version));
+
+		version = room.getRosterChangelog().getVersion();
+		room.addAffiliationByJid(witch.getBareJID(), Affiliation.member);
+		Assert.assertEquals(Collections.singleton("firstwitch"), room.getRosterChangelog().getChangedSince(version));
+
+		version = room.getRosterChangelog().getVersion();
+		room.removeOccupant(witch);
+		Assert.assertEquals(Collections.singleton("firstwitch"), room.getRosterChangelog().getChangedSince(version));
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+
+public class TrafficClassTest {
+
+	@Test
+	public void testClassify() throws Exception {
+		Assert.assertEquals(TrafficClass.presence, TrafficClass.classify(packet(new Element("presence"))));
+		Assert.assertEquals(TrafficClass.iq, TrafficClass.classify(packet(
+				new Element("iq", new Element[]{new Element("query", new String[]{"xmlns"},
+																new String[]{"http://jabber.org/protocol/disco#info"})},
+							new String[]{"type"}, new String[]{"get"}))));
+
+		Element message = groupchat();
+		message.addChild(new Element("body", "Hi"));
+		Assert.assertEquals(TrafficClass.groupchat, TrafficClass.classify(packet(message)));
+
+		message.addChild(new Element("active", new String[]{"xmlns"},
+									 new String[]{"http://jabber.org/protocol/chatstates"}));
+		Assert.assertEquals(TrafficClass.groupchat, TrafficClass.classify(packet(message)));
+
+		message.addChild(new Element("delay", new String[]{"xmlns", "stamp"},
+									 new String[]{"urn:xmpp:delay", "2002-10-13T23:58:37Z"}));
+		Assert.assertEquals(TrafficClass.history, TrafficClass.classify(packet(message)));
+
+		Element chatState = groupchat();
+		chatState.addChild(new Element("composing", new String[]{"xmlns"},
+									   new String[]{"http://jabber.org/protocol/chatstates"}));
+		Assert.assertEquals(TrafficClass.chatState, TrafficClass.classify(packet(chatState)));
+	}
+
+	@Test
+	public void testForName() {
+		Assert.assertEquals(TrafficClass.chatState, TrafficClass.forName("chat-state"));
+		Assert.assertEquals(TrafficClass.groupchat, TrafficClass.forName("groupchat"));
+		Assert.assertNull(TrafficClass.forName("unknown"));
+	}
+
+	@Test
+	public void testPresencesAndChatStatesDegradeFirst() {
+		Assert.assertTrue(TrafficClass.presence.getDefaultPriority().ordinal() >
+								  TrafficClass.groupchat.getDefaultPriority().ordinal());
+		Assert.assertTrue(TrafficClass.chatState.getDefaultPriority().ordinal() >
+								  TrafficClass.groupchat.getDefaultPriority().ordinal());
+	}
+
+	private Element groupchat() {
+		return new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+	}
+
+	private Packet packet(Element element) throws Exception {
+		element.setAttribute("from", "user@example.com/res");
+		element.setAttribute("to", "room@muc.example.com/nick");
+		return Packet.packetInstance(element);
+	}
+
+}
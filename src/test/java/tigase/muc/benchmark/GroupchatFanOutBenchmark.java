@@ -0,0 +1,95 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.muc.modules.BroadcastPacketTemplate;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares creating groupchat message for each recipient by copying whole message with creating lightweight envelopes
+ * sharing payload. Run with GC profiler (enabled in {@link #main(String[])}) to see allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupchatFanOutBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	private int recipients;
+
+	private JID from;
+	private Packet message;
+	private JID[] jids;
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder().include(GroupchatFanOutBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+
+	@Setup
+	public void setup() throws TigaseStringprepException {
+		from = JID.jidInstanceNS("benchmark@muc.example.com/sender");
+		jids = new JID[recipients];
+		for (int i = 0; i < recipients; i++) {
+			jids[i] = JID.jidInstanceNS("user" + i + "@example.com/res");
+		}
+		Element e = new Element("message", new String[]{"type", "id"}, new String[]{"groupchat", "msg-1"});
+		e.addChild(new Element("body", "Lorem ipsum dolor sit amet, consectetur adipiscing elit."));
+		e.addChild(new Element("active", new String[]{"xmlns"},
+							   new String[]{"http://jabber.org/protocol/chatstates"}));
+		e.addChild(new Element("origin-id", new String[]{"xmlns", "id"}, new String[]{"urn:xmpp:sid:0", "abcdef"}));
+		message = Packet.packetInstance(e);
+		message.setXMLNS(Packet.CLIENT_XMLNS);
+	}
+
+	@Benchmark
+	public void copyPerRecipient(Blackhole blackhole) {
+		for (JID jid : jids) {
+			Packet packet = message.copyElementOnly();
+			packet.initVars(from, jid);
+			packet.setXMLNS(Packet.CLIENT_XMLNS);
+			blackhole.consume(packet);
+		}
+	}
+
+	@Benchmark
+	public void sharedPayload(Blackhole blackhole) {
+		BroadcastPacketTemplate template = new BroadcastPacketTemplate(message);
+		for (JID jid : jids) {
+			blackhole.consume(template.createPacket(from, jid));
+		}
+	}
+
+}
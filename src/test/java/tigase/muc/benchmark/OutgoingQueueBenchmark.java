@@ -0,0 +1,127 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.muc.OutgoingBatchQueue;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares adding each stanza of a broadcast to outgoing queue by processing threads with adding the whole broadcast
+ * to {@link OutgoingBatchQueue}. Outgoing queue is emulated by a bounded blocking queue drained by consumer threads,
+ * like outgoing queues of a component. Both variants wait until the consumers keep up, so throughput of delivered
+ * stanzas is compared and not only the time of enqueueing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class OutgoingQueueBenchmark {
+
+	private static final int CONSUMERS = 4;
+	private static final int MAX_WAITING = 100000;
+
+	@Param({"100", "1000", "5000"})
+	private int recipients;
+
+	private OutgoingBatchQueue batchQueue;
+	private Thread[] consumers;
+	private BlockingQueue<Packet> outQueue;
+	private List<Packet> packets;
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder().include(OutgoingQueueBenchmark.class.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+
+	@Setup
+	public void setup() throws TigaseStringprepException {
+		outQueue = new ArrayBlockingQueue<>(MAX_WAITING);
+		batchQueue = new OutgoingBatchQueue(packet -> {
+			try {
+				outQueue.put(packet);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, MAX_WAITING);
+		consumers = new Thread[CONSUMERS];
+		for (int i = 0; i < CONSUMERS; i++) {
+			consumers[i] = new Thread(() -> {
+				try {
+					while (true) {
+						outQueue.take();
+					}
+				} catch (InterruptedException e) {
+					// benchmark finished
+				}
+			});
+			consumers[i].setDaemon(true);
+			consumers[i].start();
+		}
+
+		final JID from = JID.jidInstanceNS("benchmark@muc.example.com/sender");
+		packets = new ArrayList<>(recipients);
+		for (int i = 0; i < recipients; i++) {
+			Element e = new Element("message", new String[]{"type", "id"}, new String[]{"groupchat", "msg-1"});
+			e.addChild(new Element("body", "Lorem ipsum dolor sit amet."));
+			Packet packet = Packet.packetInstance(e, from, JID.jidInstanceNS("user" + i + "@example.com/res"));
+			packet.setXMLNS(Packet.CLIENT_XMLNS);
+			packets.add(packet);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		batchQueue.shutdown();
+		for (Thread consumer : consumers) {
+			consumer.interrupt();
+		}
+	}
+
+	@Benchmark
+	public void perPacketOffer() throws InterruptedException {
+		for (Packet packet : packets) {
+			outQueue.put(packet);
+		}
+	}
+
+	@Benchmark
+	public void batchedOffer() throws InterruptedException {
+		while (!batchQueue.offer(packets)) {
+			// queue is full, waiting until stanzas are passed further
+			Thread.sleep(0, 100000);
+		}
+	}
+
+}
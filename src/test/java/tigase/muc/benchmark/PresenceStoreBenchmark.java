@@ -0,0 +1,115 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.muc.PresenceStore;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of presence churn (updates with changing priority and unavailable presences followed by rejoin) for
+ * users with growing number of resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceStoreBenchmark {
+
+	private static final int USERS = 100;
+
+	@Param({"PREFERE_PRIORITY", "PREFERE_LAST"})
+	private PresenceStore.PresenceDeliveryLogic logic;
+	@Param({"1", "5", "10", "20"})
+	private int resources;
+
+	private Element[][] available;
+	private JID[][] jids;
+	private PresenceStore store;
+	private Element[][] unavailable;
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder().include(PresenceStoreBenchmark.class.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+
+	@Setup
+	public void setup() throws TigaseStringprepException {
+		store = new PresenceStore(logic);
+		jids = new JID[USERS][resources];
+		available = new Element[USERS][resources];
+		unavailable = new Element[USERS][resources];
+		for (int u = 0; u < USERS; u++) {
+			for (int r = 0; r < resources; r++) {
+				JID jid = JID.jidInstanceNS("user" + u + "@example.com/res" + r);
+				jids[u][r] = jid;
+				available[u][r] = new Element("presence", new Element[]{new Element("priority", String.valueOf(r)),
+																		 new Element("show", "away")},
+											  new String[]{"from"}, new String[]{jid.toString()});
+				unavailable[u][r] = new Element("presence", new String[]{"from", "type"},
+												new String[]{jid.toString(), "unavailable"});
+				store.update(available[u][r]);
+			}
+		}
+	}
+
+	@Benchmark
+	public Element update() throws TigaseStringprepException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int u = random.nextInt(USERS);
+		store.update(available[u][random.nextInt(resources)]);
+		return store.getBestPresence(jids[u][0].getBareJID());
+	}
+
+	@Benchmark
+	public Element unavailableAndRejoin() throws TigaseStringprepException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int u = random.nextInt(USERS);
+		int r = random.nextInt(resources);
+		store.update(unavailable[u][r]);
+		store.update(available[u][r]);
+		return store.getBestPresence(jids[u][0].getBareJID());
+	}
+
+	@Benchmark
+	public Element removeAndRejoin() throws TigaseStringprepException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int u = random.nextInt(USERS);
+		int r = random.nextInt(resources);
+		store.remove(jids[u][r]);
+		store.update(available[u][r]);
+		return store.getBestPresence(jids[u][0].getBareJID());
+	}
+
+	@Benchmark
+	public Element bestPresenceLookup() {
+		return store.getBestPresence(jids[ThreadLocalRandom.current().nextInt(USERS)][0].getBareJID());
+	}
+
+}
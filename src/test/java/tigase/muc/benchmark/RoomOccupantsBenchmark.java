@@ -0,0 +1,90 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.muc.Role;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of looking up occupant by its full JID in rooms of growing size. With JID index in place results
+ * should stay flat regardless of number of occupants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomOccupantsBenchmark {
+
+	@Param({"10", "100", "1000", "5000"})
+	private int occupants;
+
+	private JID[] jids;
+	private Room room;
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder().include(RoomOccupantsBenchmark.class.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+
+	@Setup
+	public void setup() throws TigaseStringprepException {
+		BareJID roomJID = BareJID.bareJIDInstanceNS("benchmark@muc.example.com");
+		room = new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+													  BareJID.bareJIDInstanceNS("owner@example.com"));
+		jids = new JID[occupants];
+		for (int i = 0; i < occupants; i++) {
+			jids[i] = JID.jidInstanceNS("user" + i + "@example.com/res");
+			Element presence = new Element("presence", new String[]{"from", "to"},
+										   new String[]{jids[i].toString(), roomJID + "/nick" + i});
+			room.addOccupantByJid(jids[i], "nick" + i, Role.participant, presence);
+		}
+	}
+
+	@Benchmark
+	public String getOccupantsNickname() {
+		return room.getOccupantsNickname(jids[ThreadLocalRandom.current().nextInt(occupants)]);
+	}
+
+	@Benchmark
+	public Collection<String> getOccupantsNicknamesByBareJid() {
+		return room.getOccupantsNicknames(jids[ThreadLocalRandom.current().nextInt(occupants)].getBareJID());
+	}
+
+	@Benchmark
+	public boolean isOccupantInRoom() {
+		return room.isOccupantInRoom(jids[ThreadLocalRandom.current().nextInt(occupants)]);
+	}
+
+}
@@ -71,6 +71,9 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 
 	@After
 	public void tearDown() {
+		if (historyProvider != null) {
+			setKeysetPagination(false);
+		}
 		historyProvider = null;
 	}
 
@@ -79,6 +82,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 		RoomConfig rc = new RoomConfig(roomJID);
 		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
 		creationDate = new Date();
+		savedMessages.clear();
 		room = roomFactory.newInstance(null, rc, creationDate, creatorJID.getBareJID());
 		room.addAffiliationByJid(creatorJID.getBareJID(), Affiliation.owner);
 	}
@@ -244,6 +248,126 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 		}
 	}
 
+	@Test
+	public void test4_mam_keyset_retrieveBetween()
+			throws RepositoryException, ComponentException, TigaseDBException {
+		if (historyProvider instanceof MAMRepository && setKeysetPagination(true)) {
+			Date since = savedMessages.get(4).ts;
+			Date until = savedMessages.get(8).ts;
+			MAMRepository mamRepository = (MAMRepository) historyProvider;
+			Query query = mamRepository.newQuery();
+
+			query.setComponentJID(JID.jidInstance(roomJID));
+			query.setQuestionerJID(creatorJID);
+			query.setStart(since);
+			query.setEnd(until);
+			query.getRsm().setMax(2);
+
+			List<MAMRepository.Item> items = new ArrayList<>();
+
+			mamRepository.queryItems(query, (query1, item) -> {
+				items.add(item);
+			});
+
+			assertEquals(2, items.size());
+
+			Arrays.asList(0, 1).stream().forEach(pos -> {
+				assertEquals(savedMessages.get(4 + pos).body,
+							 items.get(pos).getMessage().getChildCData(new String[]{"message", "body"}));
+			});
+		}
+	}
+
+	@Test
+	public void test4_mam_keyset_retrieveAfter() throws RepositoryException, ComponentException, TigaseDBException {
+		if (historyProvider instanceof MAMRepository && setKeysetPagination(true)) {
+			Date since = savedMessages.get(4).ts;
+			Date until = savedMessages.get(8).ts;
+			MAMRepository mamRepository = (MAMRepository) historyProvider;
+			Query query = mamRepository.newQuery();
+
+			query.setComponentJID(JID.jidInstance(roomJID));
+			query.setQuestionerJID(creatorJID);
+			query.setStart(since);
+			query.setEnd(until);
+			query.getRsm().setMax(2);
+
+			List<MAMRepository.Item> items = new ArrayList<>();
+
+			mamRepository.queryItems(query, (query1, item) -> {
+				items.add(item);
+			});
+
+			assertEquals(2, items.size());
+
+			String id = items.get(0).getId();
+			String expId = items.get(1).getId();
+			items.clear();
+			query.getRsm().setAfter(id);
+			mamRepository.queryItems(query, (query1, item) -> {
+				items.add(item);
+			});
+
+			assertEquals(2, items.size());
+			assertEquals(expId, items.get(0).getId());
+			Arrays.asList(0, 1).stream().forEach(pos -> {
+				assertEquals(savedMessages.get(5 + pos).body,
+							 items.get(pos).getMessage().getChildCData(new String[]{"message", "body"}));
+			});
+		}
+	}
+
+	@Test
+	public void test4_mam_keyset_retrieveSameTimestamp()
+			throws RepositoryException, ComponentException, TigaseDBException {
+		if (historyProvider instanceof MAMRepository && setKeysetPagination(true)) {
+			BareJID sameTsRoomJID = BareJID.bareJIDInstanceNS(UUID.randomUUID().toString(), "muc.test.local");
+			RoomConfig rc = new RoomConfig(sameTsRoomJID);
+			rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+			Room sameTsRoom = roomFactory.newInstance(null, rc, new Date(), creatorJID.getBareJID());
+			sameTsRoom.addAffiliationByJid(creatorJID.getBareJID(), Affiliation.owner);
+
+			Date ts = new Date();
+			List<Item> added = new ArrayList<>();
+			for (int i = 0; i < 5; i++) {
+				Item item = new Item("");
+				historyProvider.addMessage(sameTsRoom, item.getMessage(sameTsRoomJID), item.body, item.sender,
+										   item.nick, ts);
+				added.add(item);
+			}
+
+			try {
+				MAMRepository mamRepository = (MAMRepository) historyProvider;
+				Query query = mamRepository.newQuery();
+
+				query.setComponentJID(JID.jidInstance(sameTsRoomJID));
+				query.setQuestionerJID(creatorJID);
+				query.getRsm().setMax(2);
+
+				List<MAMRepository.Item> items = new ArrayList<>();
+				List<MAMRepository.Item> page = new ArrayList<>();
+				do {
+					page.clear();
+					mamRepository.queryItems(query, (query1, item) -> {
+						page.add(item);
+					});
+					items.addAll(page);
+					if (!page.isEmpty()) {
+						query.getRsm().setAfter(page.get(page.size() - 1).getId());
+					}
+				} while (!page.isEmpty() && items.size() <= added.size());
+
+				assertEquals(added.size(), items.size());
+				IntStream.range(0, added.size()).forEach(pos -> {
+					assertEquals(added.get(pos).body,
+								 items.get(pos).getMessage().getChildCData(new String[]{"message", "body"}));
+				});
+			} finally {
+				historyProvider.removeHistory(sameTsRoom);
+			}
+		}
+	}
+
 	@Test
 	public void test5_deleteMessages() throws RepositoryException {
 		historyProvider.removeHistory(room);
@@ -264,6 +388,15 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 		return HistoryProvider.class;
 	}
 
+	/**
+	 * Switches tested provider between keyset and offset pagination of archive queries.
+	 *
+	 * @return <code>false</code> if provider does not support keyset pagination and keyset tests should be skipped
+	 */
+	protected boolean setKeysetPagination(boolean enabled) {
+		return false;
+	}
+
 	@Override
 	protected void registerBeans(Kernel kernel) {
 		super.registerBeans(kernel);
@@ -0,0 +1,155 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HistoryCacheTest {
+
+	private static final String ROOM = "room@muc.example.com";
+
+	@Test
+	public void testLoadAndAdd() throws Exception {
+		HistoryCache cache = new HistoryCache(10);
+		AtomicInteger loads = new AtomicInteger();
+		HistoryCache.Loader loader = limit -> {
+			loads.incrementAndGet();
+			return items(0, 3);
+		};
+
+		Assert.assertFalse(cache.contains(ROOM));
+		List<HistoryCache.Item> result = cache.get(ROOM, 5, 5, null, loader);
+		Assert.assertTrue(cache.contains(ROOM));
+		Assert.assertEquals(3, result.size());
+		Assert.assertEquals("0", result.get(0).body);
+
+		cache.add(ROOM, item(3));
+		cache.add(ROOM, item(4));
+		cache.add(ROOM, item(5));
+
+		result = cache.get(ROOM, 5, 5, null, loader);
+		Assert.assertEquals(5, result.size());
+		Assert.assertEquals("1", result.get(0).body);
+		Assert.assertEquals("5", result.get(4).body);
+
+		result = cache.get(ROOM, 5, 2, null, loader);
+		Assert.assertEquals(2, result.size());
+		Assert.assertEquals("4", result.get(0).body);
+
+		result = cache.get(ROOM, 5, 5, new Date(3000), loader);
+		Assert.assertEquals(3, result.size());
+		Assert.assertEquals("3", result.get(0).body);
+
+		// messages older than cached ones may exist in database
+		Assert.assertNull(cache.get(ROOM, 5, 10, null, loader));
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertEquals(3, cache.getHits());
+
+		cache.remove(ROOM);
+		cache.get(ROOM, 5, 5, null, loader);
+		Assert.assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testSingleLoad() throws Exception {
+		HistoryCache cache = new HistoryCache(10);
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		HistoryCache.Loader loader = limit -> {
+			loads.incrementAndGet();
+			loading.await(5, TimeUnit.SECONDS);
+			return items(0, 2);
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<HistoryCache.Item>>> futures = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executor.submit(() -> cache.get(ROOM, 5, 5, null, loader)));
+			}
+			Thread.sleep(100);
+			loading.countDown();
+			for (Future<List<HistoryCache.Item>> future : futures) {
+				Assert.assertEquals(2, future.get().size());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testAddDuringLoad() throws Exception {
+		HistoryCache cache = new HistoryCache(10);
+		AtomicInteger loads = new AtomicInteger();
+		HistoryCache.Loader loader = limit -> {
+			if (loads.incrementAndGet() == 1) {
+				cache.add(ROOM, item(2));
+			}
+			return items(0, 2);
+		};
+
+		Assert.assertEquals(2, cache.get(ROOM, 5, 5, null, loader).size());
+		Assert.assertEquals(2, cache.get(ROOM, 5, 5, null, loader).size());
+		Assert.assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testRemoveDuringLoad() throws Exception {
+		HistoryCache cache = new HistoryCache(10);
+		AtomicInteger loads = new AtomicInteger();
+		HistoryCache.Loader loader = limit -> {
+			if (loads.incrementAndGet() == 1) {
+				// history removed from database after it was read
+				cache.remove(ROOM);
+				return items(0, 2);
+			}
+			return items(0, 0);
+		};
+
+		Assert.assertNull(cache.get(ROOM, 5, 5, null, loader));
+		Assert.assertEquals(0, cache.getSize());
+		Assert.assertEquals(0, cache.get(ROOM, 5, 5, null, loader).size());
+		Assert.assertEquals(2, loads.get());
+	}
+
+	private HistoryCache.Item item(int i) {
+		return new HistoryCache.Item(new Date(i * 1000), "user@example.com/res", "nick", String.valueOf(i), null);
+	}
+
+	private List<HistoryCache.Item> items(int from, int to) {
+		List<HistoryCache.Item> items = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			items.add(item(i));
+		}
+		return items;
+	}
+
+}
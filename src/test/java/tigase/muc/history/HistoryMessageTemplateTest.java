@@ -0,0 +1,88 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Date;
+
+public class HistoryMessageTemplateTest {
+
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.example.com");
+
+	@Test
+	public void testCreatePacket() throws Exception {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider();
+		String msg = "<message type=\"groupchat\" to=\"room@muc.example.com\" from=\"sender@example.com/res\" id=\"1\"><body>Hi</body></message>";
+		Date timestamp = new Date(1000);
+
+		HistoryMessageTemplate template = provider.createMessageTemplate(roomJID, "nick", msg, "Hi", timestamp);
+		JID first = JID.jidInstanceNS("first@example.com/res");
+		JID second = JID.jidInstanceNS("second@example.com/res");
+		Packet firstPacket = template.createPacket(first);
+		Packet secondPacket = template.createPacket(second);
+
+		Packet expected = provider.createMessage(roomJID, first, "nick", msg, "Hi", "sender@example.com/res", false,
+												 timestamp);
+		Assert.assertEquals(expected.getStanzaFrom(), firstPacket.getStanzaFrom());
+		Assert.assertEquals(expected.getStanzaTo(), firstPacket.getStanzaTo());
+		Assert.assertEquals(expected.getType(), firstPacket.getType());
+		Assert.assertEquals(expected.getElement().getChild("body").getCData(),
+							firstPacket.getElement().getChild("body").getCData());
+		Assert.assertEquals(expected.getElement().getChild("delay").getAttributeStaticStr("stamp"),
+							firstPacket.getElement().getChild("delay").getAttributeStaticStr("stamp"));
+		Assert.assertEquals(JID.jidInstanceNS("room@muc.example.com/nick"), secondPacket.getStanzaFrom());
+		Assert.assertEquals(second, secondPacket.getStanzaTo());
+		Assert.assertEquals("1", secondPacket.getAttributeStaticStr("id"));
+
+		Element delay = secondPacket.getElement().getChild("delay", "urn:xmpp:delay");
+		Assert.assertSame(firstPacket.getElement().getChild("delay", "urn:xmpp:delay"), delay);
+		Assert.assertEquals("room@muc.example.com", delay.getAttributeStaticStr("from"));
+	}
+
+	@Test
+	public void testCreateFromElement() throws Exception {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider();
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			body.append("0123456789");
+		}
+		Element message = new Element("message", new String[]{"type", "to", "from", "id"},
+									  new String[]{"groupchat", "room@muc.example.com", "sender@example.com/res", "1"});
+		message.addChild(new Element("body", body.toString()));
+
+		HistoryMessageTemplate template = provider.createMessageTemplate(roomJID, "nick", message, body.toString(),
+																		 new Date(1000));
+		// template keeps its own copy of message
+		message.getChild("body").setCData("changed");
+		message.setAttribute("id", "2");
+
+		Packet packet = template.createPacket(JID.jidInstanceNS("first@example.com/res"));
+		Assert.assertEquals(body.toString(), packet.getElement().getChildCData(new String[]{"message", "body"}));
+		Assert.assertEquals("1", packet.getAttributeStaticStr("id"));
+		Assert.assertEquals(JID.jidInstanceNS("room@muc.example.com/nick"), packet.getStanzaFrom());
+		Assert.assertNotNull(packet.getElement().getChild("delay", "urn:xmpp:delay"));
+		Assert.assertTrue(template.getSize() > 2 * body.length());
+	}
+
+}
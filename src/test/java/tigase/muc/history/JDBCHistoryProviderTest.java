@@ -28,6 +28,7 @@ import tigase.server.Packet;
 import tigase.vhosts.VHostItem;
 
 import java.io.File;
+import java.lang.reflect.Field;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -64,4 +65,19 @@ public class JDBCHistoryProviderTest
 		loadSchema(PROJECT_ID, VERSION, Collections.singleton("muc"));
 	}
 
+	@Override
+	protected boolean setKeysetPagination(boolean enabled) {
+		if (!(historyProvider instanceof JDBCHistoryProvider)) {
+			return false;
+		}
+		try {
+			Field f = JDBCHistoryProvider.class.getDeclaredField("mamPagination");
+			f.setAccessible(true);
+			f.set(historyProvider, enabled ? "keyset" : "offset");
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		return true;
+	}
+
 }
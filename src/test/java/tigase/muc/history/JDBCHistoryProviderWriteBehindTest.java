@@ -0,0 +1,96 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Assume;
+import org.junit.Test;
+import tigase.component.exceptions.ComponentException;
+import tigase.component.exceptions.RepositoryException;
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.MAMRepository;
+import tigase.xmpp.mam.Query;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs tests of {@link JDBCHistoryProviderTest} with messages written to database asynchronously.
+ */
+public class JDBCHistoryProviderWriteBehindTest
+		extends JDBCHistoryProviderTest {
+
+	@Override
+	public void setup() throws RepositoryException, DBInitException, IllegalAccessException, InstantiationException {
+		super.setup();
+		Assume.assumeTrue(historyProvider instanceof JDBCHistoryProvider);
+		try {
+			Field f = JDBCHistoryProvider.class.getDeclaredField("writeBehindEnabled");
+			f.setAccessible(true);
+			f.setBoolean(historyProvider, true);
+		} catch (NoSuchFieldException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	public void test4_writeBehindUnderSteadyTraffic()
+			throws InterruptedException, ComponentException, TigaseDBException {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicInteger added = new AtomicInteger();
+		final Thread sender = new Thread(() -> {
+			while (running.get()) {
+				Item item = new Item("");
+				historyProvider.addMessage(room, item.getMessage(room.getRoomJID()), item.body, item.sender,
+										   item.nick, item.ts);
+				added.incrementAndGet();
+			}
+		});
+		sender.start();
+		try {
+			while (added.get() < 100) {
+				Thread.sleep(10);
+			}
+			// reader waits only for messages added before it, not until the queue is empty
+			final long start = System.nanoTime();
+			QueueWriter writer = new QueueWriter();
+			historyProvider.getHistoryMessages(room, creatorJID, 0, 10, null, null, writer);
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+			assertEquals(10, writer.queue.size());
+		} finally {
+			running.set(false);
+			sender.join();
+		}
+
+		MAMRepository mamRepository = (MAMRepository) historyProvider;
+		Query query = mamRepository.newQuery();
+		query.setComponentJID(JID.jidInstance(roomJID));
+		query.setQuestionerJID(creatorJID);
+		query.getRsm().setMax(0);
+		mamRepository.queryItems(query, (query1, item) -> {
+		});
+		assertEquals(savedMessages.size() + added.get(), query.getRsm().getCount().intValue());
+	}
+
+}
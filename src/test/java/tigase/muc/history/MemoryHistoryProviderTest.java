@@ -0,0 +1,117 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class MemoryHistoryProviderTest {
+
+	private final JID recipient = JID.jidInstanceNS("recipient@example.com/res");
+	private final JID sender = JID.jidInstanceNS("sender@example.com/res");
+	private final MemoryHistoryProvider provider = new MemoryHistoryProvider();
+
+	@Test
+	public void testRingBuffer() {
+		Room room = createRoom("room@muc.example.com", 5);
+		for (int i = 0; i < 8; i++) {
+			addMessage(room, i);
+		}
+
+		Assert.assertEquals(Arrays.asList("3", "4", "5", "6", "7"), getHistory(room, null, null, null));
+		Assert.assertEquals(Arrays.asList("6", "7"), getHistory(room, 2, null, null));
+		Assert.assertEquals(Arrays.asList("5", "6", "7"), getHistory(room, null, null, new Date(5000)));
+
+		provider.removeHistory(room);
+		Assert.assertTrue(getHistory(room, null, null, null).isEmpty());
+	}
+
+	@Test
+	public void testEviction() {
+		Room first = createRoom("first@muc.example.com", 50);
+		Room second = createRoom("second@muc.example.com", 50);
+		addMessage(first, 0);
+		addMessage(second, 0);
+		provider.setMemoryLimit(1000);
+
+		for (int i = 1; i < 4; i++) {
+			addMessage(second, i);
+		}
+
+		Assert.assertTrue(getHistory(first, null, null, null).isEmpty());
+		Assert.assertFalse(getHistory(second, null, null, null).isEmpty());
+	}
+
+	@Test
+	public void testResizeWhileAdding() throws Exception {
+		Room room = createRoom("room@muc.example.com", 2000);
+		Thread adder = new Thread(() -> {
+			for (int i = 0; i < 1000; i++) {
+				addMessage(room, i);
+			}
+		});
+		adder.start();
+		for (int i = 0; adder.isAlive(); i++) {
+			room.getConfig().setValue(RoomConfig.MUC_ROOMCONFIG_MAXHISTORY_KEY, String.valueOf(2000 + (i % 2)));
+			getHistory(room, null, null, null);
+		}
+		adder.join();
+
+		List<String> history = getHistory(room, null, null, null);
+		Assert.assertEquals(1000, history.size());
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(String.valueOf(i), history.get(i));
+		}
+	}
+
+	private void addMessage(Room room, int i) {
+		Element message = new Element("message", new String[]{"type", "to", "from"},
+									  new String[]{"groupchat", room.getRoomJID().toString(), sender.toString()});
+		message.addChild(new Element("body", String.valueOf(i)));
+		provider.addMessage(room, message, String.valueOf(i), sender, "nick", new Date(i * 1000));
+	}
+
+	private Room createRoom(String jid, int maxHistory) {
+		RoomConfig config = new RoomConfig(BareJID.bareJIDInstanceNS(jid));
+		config.setValue(RoomConfig.MUC_ROOMCONFIG_MAXHISTORY_KEY, String.valueOf(maxHistory));
+		return new Room.RoomFactoryImpl().newInstance(null, config, new Date(),
+													  BareJID.bareJIDInstanceNS("owner@example.com"));
+	}
+
+	private List<String> getHistory(Room room, Integer maxstanzas, Integer seconds, Date since) {
+		AbstractHistoryProviderTest.QueueWriter writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room, recipient, null, maxstanzas, seconds, since, writer);
+		List<String> bodies = new ArrayList<>();
+		for (Packet packet : writer.queue) {
+			bodies.add(packet.getElement().getChild("body").getCData());
+		}
+		return bodies;
+	}
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+public class BroadcastPacketTemplateTest {
+
+	@Test
+	public void testCreatePacket() throws Exception {
+		Element e = new Element("message", new String[]{"type", "id", "xml:lang"},
+								new String[]{"groupchat", "msg-1", "en"});
+		e.addChild(new Element("body", "Test message"));
+		Packet message = Packet.packetInstance(e);
+
+		JID from = JID.jidInstance("room@muc.example.com/nick");
+		JID to1 = JID.jidInstance("user1@example.com/res");
+		JID to2 = JID.jidInstance("user2@example.com/res");
+
+		BroadcastPacketTemplate template = new BroadcastPacketTemplate(message);
+		Packet p1 = template.createPacket(from, to1);
+		Packet p2 = template.createPacket(from, to2);
+
+		Assert.assertEquals(from, p1.getStanzaFrom());
+		Assert.assertEquals(to1, p1.getStanzaTo());
+		Assert.assertEquals(to2, p2.getStanzaTo());
+		Assert.assertEquals(to1.toString(), p1.getElement().getAttributeStaticStr(Packet.TO_ATT));
+		Assert.assertEquals(to2.toString(), p2.getElement().getAttributeStaticStr(Packet.TO_ATT));
+		Assert.assertEquals("groupchat", p2.getElement().getAttributeStaticStr(Packet.TYPE_ATT));
+		Assert.assertEquals("msg-1", p2.getElement().getAttributeStaticStr(Packet.ID_ATT));
+		Assert.assertEquals("en", p2.getElement().getAttributeStaticStr("xml:lang"));
+		Assert.assertEquals("Test message", p2.getElement().getChildCData(new String[]{"message", "body"}));
+		Assert.assertSame(p1.getElement().getChild("body"), p2.getElement().getChild("body"));
+		Assert.assertEquals(Packet.CLIENT_XMLNS, p1.getXMLNS());
+	}
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.component.DSLBeanConfigurator;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.conf.ConfigWriter;
+import tigase.db.beans.DataSourceBean;
+import tigase.eventbus.EventBusFactory;
+import tigase.kernel.DefaultTypesConverter;
+import tigase.kernel.beans.config.AbstractBeanConfigurator;
+import tigase.kernel.core.Kernel;
+import tigase.muc.MUCConfig;
+import tigase.muc.MockMucRepository;
+import tigase.muc.Room;
+import tigase.muc.TestMUCCompoent;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class DelayedDeliveryQueueTest {
+
+	private final List<Packet> sent = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void testDeliveryAfterDelay() throws Exception {
+		DelayedDeliveryQueue queue = new DelayedDeliveryQueue(sent::add, 50, 10, 10);
+		queue.start();
+		try {
+			Assert.assertTrue(queue.put(Arrays.asList(message("1"), message("2"))));
+			Assert.assertTrue(sent.isEmpty());
+
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (sent.size() < 2 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(2, sent.size());
+			Assert.assertEquals("1", sent.get(0).getAttributeStaticStr("id"));
+			Assert.assertEquals("2", sent.get(1).getAttributeStaticStr("id"));
+			Assert.assertEquals(Packet.CLIENT_XMLNS, sent.get(0).getXMLNS());
+			Assert.assertEquals(0, queue.getSize());
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void testLimitAndShutdown() throws Exception {
+		DelayedDeliveryQueue queue = new DelayedDeliveryQueue(sent::add, TimeUnit.HOURS.toMillis(1), 2, 10);
+		queue.start();
+
+		Assert.assertTrue(queue.put(message("1")));
+		Assert.assertTrue(queue.put(message("2")));
+		Assert.assertFalse(queue.put(message("3")));
+		Assert.assertEquals(2, queue.getSize());
+		Assert.assertTrue(sent.isEmpty());
+
+		queue.shutdown();
+		Assert.assertEquals(2, sent.size());
+		Assert.assertEquals("1", sent.get(0).getAttributeStaticStr("id"));
+		Assert.assertEquals("2", sent.get(1).getAttributeStaticStr("id"));
+		Assert.assertEquals(0, queue.getSize());
+	}
+
+	@Test
+	public void testDelayedDeliveryOfSubjectToJoiningOccupant() throws Exception {
+		final Kernel kernel = new Kernel();
+		kernel.registerBean(DefaultTypesConverter.class).exportable().exec();
+		kernel.registerBean(AbstractBeanConfigurator.DEFAULT_CONFIGURATOR_NAME)
+				.asClass(DSLBeanConfigurator.class)
+				.exportable()
+				.exec();
+		Map<String, Object> props = new HashMap();
+		props.put("muc/" + "multi-user-chat", BareJID.bareJIDInstance("multi-user-chat"));
+		props.put("muc/" + MUCConfig.LOG_DIR_KEY, "./");
+		props.put("muc/delayedDeliveryQueue/" + DelayedDeliveryQueue.DELAY_KEY, 200L);
+		props = ConfigWriter.buildTree(props);
+		kernel.getInstance(DSLBeanConfigurator.class).setProperties(props);
+		kernel.registerBean("eventBus").asInstance(EventBusFactory.getInstance()).exportable().exec();
+		kernel.registerBean("dataSourceBean").asClass(DataSourceBean.class).exportable().exec();
+		kernel.registerBean("mucRepository").asInstance(new MockMucRepository()).exportable().exec();
+
+		final PacketWriter writer = new PacketWriter() {
+			@Override
+			public void write(Collection<Packet> packets) {
+				sent.addAll(packets);
+			}
+
+			@Override
+			public void write(Packet packet) {
+				sent.add(packet);
+			}
+
+			@Override
+			public void write(Packet packet, AsyncCallback callback) {
+				write(packet);
+			}
+		};
+		kernel.registerBean("muc").asClass(TestMUCCompoent.class).exec();
+		final TestMUCCompoent mucComponent = kernel.getInstance(TestMUCCompoent.class);
+		final Kernel mucKernel = kernel.getInstance("muc#KERNEL");
+		mucKernel.registerBean("writer").asInstance(writer).exec();
+		final DelayedDeliveryQueue queue = mucKernel.getInstance(DelayedDeliveryQueue.class);
+		Assert.assertTrue(queue.isEnabled());
+
+		final BareJID roomJID = BareJID.bareJIDInstance("darkcave@macbeth.shakespeare.lit");
+		final JID owner = JID.jidInstance("owner@example.com/res");
+		final Room room = kernel.getInstance(MockMucRepository.class).createNewRoom(roomJID, owner);
+		room.setNewSubject("Subject", "owner");
+
+		Element presence = new Element("presence", new String[]{"from", "to"},
+									   new String[]{owner.toString(), roomJID + "/owner"});
+		presence.addChild(new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc"}));
+		Packet packet = Packet.packetInstance(presence);
+		packet.setXMLNS(Packet.CLIENT_XMLNS);
+		mucComponent.processPacket(packet);
+
+		Assert.assertFalse(sent.isEmpty());
+		Assert.assertFalse(sent.stream().anyMatch(p -> p.getElement().getChild("subject") != null));
+		Assert.assertEquals(1, queue.getSize());
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (queue.getSize() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, queue.getSize());
+		final Packet subject = sent.get(sent.size() - 1);
+		Assert.assertEquals("Subject", subject.getElement().getChildCData(new String[]{"message", "subject"}));
+		Assert.assertEquals(owner, subject.getStanzaTo());
+
+		queue.beforeUnregister();
+	}
+
+	private Element message(String id) {
+		return new Element("message", new String[]{"id", "from", "to"},
+						   new String[]{id, "room@muc.example.com/nick", "user@example.com/res"});
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.muc.Affiliation;
+import tigase.muc.Role;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collections;
+import java.util.Date;
+
+public class PresenceTemplateTest {
+
+	@Test
+	public void testSemiAnonymousRoom() throws Exception {
+		BareJID roomJID = BareJID.bareJIDInstance("room@muc.example.com");
+		Room room = new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+														   BareJID.bareJIDInstance("owner@example.com"));
+		room.addAffiliationByJid(BareJID.bareJIDInstance("owner@example.com"), Affiliation.owner);
+
+		JID occupant = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		Element presence = new Element("presence");
+		presence.addChild(new Element("show", "away"));
+
+		PresenceModule.PresenceTemplate template = new PresenceModule.PresenceTemplate(room, presence,
+																					   occupant.getBareJID(),
+																					   Collections.singletonList(
+																							   occupant),
+																					   "firstwitch",
+																					   Affiliation.none,
+																					   Role.participant, false,
+																					   null);
+
+		Packet toOwner = template.createWrapper(JID.jidInstance("owner@example.com/res")).getPacket();
+		Packet toOther = template.createWrapper(JID.jidInstance("hag66@shakespeare.lit/pda")).getPacket();
+		Packet toOther2 = template.createWrapper(JID.jidInstance("wiccarocks@shakespeare.lit/laptop")).getPacket();
+		Packet toSelf = template.createWrapper(occupant).getPacket();
+
+		Assert.assertEquals("room@muc.example.com/firstwitch", toOther.getElement().getAttributeStaticStr("from"));
+		Assert.assertEquals("hag66@shakespeare.lit/pda", toOther.getElement().getAttributeStaticStr("to"));
+		Assert.assertEquals("away", toOther.getElement().getChildCData(new String[]{"presence", "show"}));
+
+		Assert.assertEquals(occupant.toString(), getItem(toOwner).getAttributeStaticStr("jid"));
+		Assert.assertNull(getItem(toOther).getAttributeStaticStr("jid"));
+		Assert.assertSame(getItem(toOther), getItem(toOther2));
+
+		Assert.assertNull(getX(toOther).getChild("status"));
+		Assert.assertEquals("110", getX(toSelf).getChild("status").getAttributeStaticStr("code"));
+	}
+
+	private Element getX(Packet packet) {
+		return packet.getElement().getChild("x", "http://jabber.org/protocol/muc#user");
+	}
+
+	private Element getItem(Packet packet) {
+		return getX(packet).getChild("item");
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.muc.Affiliation;
+import tigase.muc.Role;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RosterPresenceCacheTest {
+
+	private final AtomicInteger created = new AtomicInteger();
+	private final JID occupantJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final RosterPresenceCache.TemplatesFactory factory = (room, occupant, presence, affiliation) -> {
+		created.incrementAndGet();
+		return Collections.singletonList(
+				new PresenceModule.PresenceTemplate(room, presence, occupant.getJid(),
+													Collections.singletonList(occupant.getJid(0)),
+													occupant.getNickname(), affiliation, occupant.getRole(), false,
+													null));
+	};
+	private Room room;
+
+	@Before
+	public void init() throws Exception {
+		BareJID roomJID = BareJID.bareJIDInstance("room@muc.example.com");
+		room = new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+													  BareJID.bareJIDInstance("owner@example.com"));
+		room.addOccupantByJid(occupantJID, "firstwitch", Role.participant, new Element("presence"));
+	}
+
+	@Test
+	public void testTemplatesReused() throws Exception {
+		RosterPresenceCache cache = RosterPresenceCache.getInstance(room);
+		Assert.assertSame(cache, RosterPresenceCache.getInstance(room));
+
+		List<PresenceModule.PresenceTemplate> first = getTemplates(cache);
+		List<PresenceModule.PresenceTemplate> second = getTemplates(cache);
+
+		Assert.assertSame(first, second);
+		Assert.assertEquals(1, created.get());
+	}
+
+	@Test
+	public void testInvalidatedOnChange() throws Exception {
+		RosterPresenceCache cache = RosterPresenceCache.getInstance(room);
+		List<PresenceModule.PresenceTemplate> templates = getTemplates(cache);
+
+		room.setNewRole("firstwitch", Role.visitor);
+		Assert.assertNotSame(templates, templates = getTemplates(cache));
+
+		Element presence = new Element("presence");
+		presence.addChild(new Element("show", "away"));
+		room.updatePresenceByJid(occupantJID, "firstwitch", presence);
+		Assert.assertNotSame(templates, templates = getTemplates(cache));
+
+		room.addAffiliationByJid(occupantJID.getBareJID(), Affiliation.member);
+		Assert.assertNotSame(templates, templates = getTemplates(cache));
+
+		cache.remove("firstwitch");
+		Assert.assertNotSame(templates, getTemplates(cache));
+		Assert.assertEquals(5, created.get());
+	}
+
+	private List<PresenceModule.PresenceTemplate> getTemplates(RosterPresenceCache cache) throws Exception {
+		Room.Roster.Occupant occupant = room.getRoster().get(0);
+		return cache.getTemplates(room, occupant, room.getLastPresence(occupant.getJid()),
+								  room.getAffiliation(occupant.getJid()), factory);
+	}
+
+}